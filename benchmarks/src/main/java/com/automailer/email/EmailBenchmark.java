@@ -0,0 +1,64 @@
+package com.automailer.email;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how many emails a second the email manager sends to a stand-in server on the same machine.<br>
+ *     Each email goes to five recipients, and every round trip to the server takes the given delay, so the results
+ *     show how much pooled connections and pipelining save when the server is some distance away. The rate limits
+ *     are turned off, since they would hold back every way of sending the same
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Dautomailer.smtp.rate=0", "-Dautomailer.smtp.domain.rate=0"})
+public class EmailBenchmark {
+    /**
+     * The number of emails sent at once by each invocation
+     */
+    static final int BATCH = 100;
+
+    @Param({"1", "4"})
+    public int connections;
+
+    @Param({"true", "false"})
+    public boolean pipelining;
+
+    @Param({"0", "1000"})
+    public int delayMicros;
+
+    private SmtpStandIn server;
+    private EmailManager manager;
+    private final List<String> recipients = List.of("ann@example.com", "bob@example.com", "cy@example.com",
+            "dee@example.com", "eve@example.com");
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        server = new SmtpStandIn(pipelining, delayMicros);
+        manager = new EmailManager("localhost", server.getPort(), "sender@example.com", "secret", connections);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        manager.close();
+        server.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public long send() {
+        List<CompletableFuture<List<String>>> sends = new ArrayList<>(BATCH);
+        for (int i = 0; i < BATCH; i++)
+            sends.add(manager.send(recipients, "Your order #" + i + " has shipped", "Hello,\n\nIt is on its way.\n"));
+        CompletableFuture.allOf(sends.toArray(new CompletableFuture[0])).join();
+        return manager.getSent();
+    }
+}
@@ -0,0 +1,128 @@
+package com.automailer.email;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Measures how fast emails are written to the mail queue and acknowledged, and how long it takes to read the queue
+ * back after a restart.<br>
+ *     Run with -jvmArgsAppend -Dautomailer.queue.sync=0 to measure a queue that syncs every record to disk
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MailQueueBenchmark {
+    private static Outgoing message(int i) {
+        Email email = new Email("sender@example.com", List.of("ann@example.com", "bob@example.com"),
+                "Your order #" + i + " has shipped", "Hello,\n\nOrder #" + i + " is on its way.\n");
+        return new Outgoing(email, new CompletableFuture<>());
+    }
+
+    private static void delete(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path path : files.sorted(Comparator.reverseOrder()).toList())
+                Files.delete(path);
+        }
+    }
+
+    /**
+     * An open queue with an encoded email to write to it
+     */
+    @State(Scope.Thread)
+    public static class Writing {
+        Path directory;
+        MailQueue queue;
+        Outgoing message;
+
+        @Setup(Level.Trial)
+        public void setup() throws IOException {
+            directory = Files.createTempDirectory("queue");
+            queue = new MailQueue(directory);
+            message = message(0);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            queue.close();
+            delete(directory);
+        }
+    }
+
+    /**
+     * A queue left behind with a number of emails in it that were not acknowledged
+     */
+    @State(Scope.Thread)
+    public static class Reading {
+        @Param({"10000", "100000"})
+        public int pending;
+
+        Path directory;
+        Set<Path> segments;
+        MailQueue queue;
+
+        @Setup(Level.Trial)
+        public void setup() throws IOException {
+            directory = Files.createTempDirectory("queue");
+            MailQueue queue = new MailQueue(directory);
+            for (int i = 0; i < pending; i++) {
+                Outgoing message = message(i);
+                queue.enqueue(message);
+                // Every other email is sent, so the queue has acknowledgements to read too
+                if (i % 2 == 1)
+                    queue.acknowledge(message);
+            }
+            queue.close();
+            try (Stream<Path> files = Files.list(directory)) {
+                segments = files.collect(Collectors.toSet());
+            }
+        }
+
+        /**
+         * Removes the segment that opening the queue started, so every invocation reads the same segments
+         */
+        @TearDown(Level.Invocation)
+        public void reset() throws IOException {
+            queue.close();
+            try (Stream<Path> files = Files.list(directory)) {
+                for (Path path : files.filter((p) -> !segments.contains(p)).toList())
+                    Files.delete(path);
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            delete(directory);
+        }
+    }
+
+    /**
+     * Writes an email to the queue and acknowledges it, like an email that is sent straight away
+     */
+    @Benchmark
+    public void enqueue(Writing writing) {
+        writing.queue.enqueue(writing.message);
+        writing.queue.acknowledge(writing.message);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 3)
+    @Measurement(iterations = 10)
+    public int recover(Reading reading) throws IOException {
+        reading.queue = new MailQueue(reading.directory);
+        return reading.queue.getRecovered().size();
+    }
+}
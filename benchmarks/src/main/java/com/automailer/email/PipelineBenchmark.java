@@ -0,0 +1,104 @@
+package com.automailer.email;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how many emails a second a bulk send gets through, sending each email after the last one was sent, all of
+ * them at once through the email manager, and through the send pipeline.<br>
+ *     The stand-in server takes a millisecond for each round trip, like a server some distance away. The queue
+ *     depths of the pipeline are reported after each invocation to show where emails wait. The rate limits are
+ *     turned off, since they would hold back every way of sending the same
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Dautomailer.smtp.rate=0", "-Dautomailer.smtp.domain.rate=0"})
+public class PipelineBenchmark {
+    /**
+     * The number of emails sent by each invocation, more than the pipeline holds so that it fills up
+     */
+    static final int BULK = 1000;
+
+    private SmtpStandIn server;
+    private EmailManager manager;
+    private final List<String> recipients = List.of("ann@example.com", "bob@example.com", "cy@example.com",
+            "dee@example.com", "eve@example.com");
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        server = new SmtpStandIn(true, 1000);
+        manager = new EmailManager("localhost", server.getPort(), "sender@example.com", "secret", 4);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        manager.close();
+        server.close();
+    }
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Depths {
+        public long render;
+        public long encode;
+        public long transmit;
+
+        @Setup(Level.Iteration)
+        public void clear() {
+            render = 0;
+            encode = 0;
+            transmit = 0;
+        }
+    }
+
+    private Email email(int i) {
+        return new Email("sender@example.com", recipients, "Your order #" + i + " has shipped",
+                "Hello,\n\nOrder #" + i + " is on its way.\n");
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BULK)
+    public long oneAtATime() {
+        for (int i = 0; i < BULK; i++)
+            manager.send(email(i)).join();
+        return manager.getSent();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BULK)
+    public long allAtOnce() {
+        List<CompletableFuture<List<String>>> sends = new ArrayList<>(BULK);
+        for (int i = 0; i < BULK; i++)
+            sends.add(manager.send(email(i)));
+        CompletableFuture.allOf(sends.toArray(new CompletableFuture[0])).join();
+        return manager.getSent();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BULK)
+    public long pipeline(Depths depths) throws InterruptedException {
+        SendPipeline pipeline = manager.getPipeline();
+        List<CompletableFuture<List<String>>> sends = new ArrayList<>(BULK);
+        for (int i = 0; i < BULK; i++) {
+            int n = i;
+            sends.add(pipeline.submit(() -> email(n)));
+            if (n == BULK / 2) {
+                // The deepest the queues were halfway through, when they have filled up
+                List<SendPipeline.StageStats> stats = pipeline.getStats();
+                depths.render = Math.max(depths.render, stats.get(0).queued());
+                depths.encode = Math.max(depths.encode, stats.get(1).queued());
+                depths.transmit = Math.max(depths.transmit, stats.get(2).queued());
+            }
+        }
+        CompletableFuture.allOf(sends.toArray(new CompletableFuture[0])).join();
+        return manager.getSent();
+    }
+}
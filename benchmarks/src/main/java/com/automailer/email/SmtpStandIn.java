@@ -0,0 +1,127 @@
+package com.automailer.email;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A stand-in SMTP server that accepts every message and throws it away, for benchmarking the client.<br>
+ *     Replies are held back until the client has nothing more to say, then sent together after a delay, so each
+ *     round trip costs the delay as it would over a real network. Recipients starting with "reject" are rejected
+ */
+final class SmtpStandIn implements Closeable {
+    private final ServerSocket server;
+    private final boolean pipelining;
+    private final long delayNanos;
+    private final ExecutorService sessions = Executors.newVirtualThreadPerTaskExecutor();
+    private final LongAdder messages = new LongAdder();
+
+    /**
+     * @param pipelining True if the server supports PIPELINING
+     * @param delayMicros The time each round trip takes
+     */
+    SmtpStandIn(boolean pipelining, int delayMicros) throws IOException {
+        this.server = new ServerSocket(0, 128, InetAddress.getLoopbackAddress());
+        this.pipelining = pipelining;
+        this.delayNanos = delayMicros * 1000L;
+        Thread.ofPlatform().name("smtp-stand-in").daemon().start(() -> {
+            while (!server.isClosed()) {
+                try {
+                    Socket socket = server.accept();
+                    sessions.execute(() -> session(socket));
+                } catch (IOException ignored) {
+                }
+            }
+        });
+    }
+
+    int getPort() {
+        return server.getLocalPort();
+    }
+
+    /**
+     * Gets the number of messages the server has accepted
+     */
+    long getMessages() {
+        return messages.sum();
+    }
+
+    private void session(Socket socket) {
+        try (socket) {
+            socket.setTcpNoDelay(true);
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+            reply(in, out, "220 stand-in ESMTP");
+            String line;
+            while ((line = readLine(in)) != null) {
+                String command = line.length() < 4 ? line : line.substring(0, 4).toUpperCase(Locale.ROOT);
+                switch (command) {
+                    case "EHLO" -> reply(in, out, pipelining
+                            ? "250-stand-in\r\n250-PIPELINING\r\n250 AUTH PLAIN LOGIN"
+                            : "250-stand-in\r\n250 AUTH PLAIN LOGIN");
+                    case "HELO", "MAIL", "RSET", "NOOP" -> reply(in, out, "250 OK");
+                    case "AUTH" -> reply(in, out, "235 Authenticated");
+                    case "RCPT" -> reply(in, out, line.substring(9).startsWith("reject") ? "550 No such user" : "250 OK");
+                    case "DATA" -> {
+                        reply(in, out, "354 End data with <CR><LF>.<CR><LF>");
+                        while (!".".equals(line = readLine(in))) {
+                            if (line == null)
+                                return;
+                        }
+                        messages.increment();
+                        reply(in, out, "250 Queued");
+                    }
+                    case "QUIT" -> {
+                        reply(in, out, "221 Bye");
+                        return;
+                    }
+                    default -> reply(in, out, "500 Unknown command");
+                }
+            }
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Adds a reply, sending every held back reply once the client is waiting for them
+     */
+    private void reply(InputStream in, OutputStream out, String reply) throws IOException {
+        out.write((reply + "\r\n").getBytes(StandardCharsets.UTF_8));
+        if (in.available() == 0) {
+            if (delayNanos > 0)
+                LockSupport.parkNanos(delayNanos);
+            out.flush();
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b == -1)
+                return null;
+            if (b != '\r')
+                line.write(b);
+        }
+        return line.toString(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.close();
+        sessions.shutdownNow();
+    }
+}
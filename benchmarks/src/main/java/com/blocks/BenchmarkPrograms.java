@@ -0,0 +1,203 @@
+package com.blocks;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Builds the programs used by the benchmarks out of the blocks in the default palette
+ */
+final class BenchmarkPrograms {
+    static final String ADD = "0.0", MULTIPLY = "0.2", MOD = "0.4", GREATER = "0.5", LESS = "0.6", EQUALS = "0.8";
+    static final String JOIN = "5.0", LENGTH = "5.1", SUBSTRING = "5.4", UPPER_CASE = "5.6";
+    static final String NEW_LIST = "6.0", SIZE = "6.1", GET_ITEM = "6.3", ADD_TO_LIST = "6.5", SORT = "6.9";
+    static final String RENDER_TEMPLATE = "9.2";
+
+    private BenchmarkPrograms() {
+    }
+
+    /**
+     * Builds a program by name, setting up the variables it uses
+     * @param iterations The number of times the main loop of the program runs
+     */
+    static Program build(String name, int iterations) {
+        BlockPalette.loadDefaultPalette();
+        reset();
+        return new Program(new ArrayList<>(switch (name) {
+            case "arithmetic" -> arithmetic(iterations);
+            case "strings" -> strings(iterations);
+            case "lists" -> lists(iterations);
+            case "nested" -> nested(iterations);
+            case "variables" -> variables(iterations);
+            case "invariant" -> invariant(iterations);
+            case "recipients" -> recipients(iterations, false);
+            case "recipients parallel" -> recipients(iterations, true);
+            case "merge join" -> merge(iterations, false);
+            case "merge template" -> merge(iterations, true);
+            default -> throw new IllegalArgumentException("Unknown benchmark program " + name);
+        }));
+    }
+
+    /**
+     * Sets the variables of a program back to their starting values
+     */
+    static void reset() {
+        VariableFrame variables = Program.variables;
+        variables.put("i", 0.0);
+        variables.put("x", 0.0);
+        variables.put("s", "");
+        variables.put("t", "");
+        variables.put("l", new ArrayList<>());
+        for (int k = 0; k < 16; k++)
+            variables.put("v" + k, (double) k);
+    }
+
+    /**
+     * while i &lt; n: i = i + 1, x = (x * 3 + i) mod 1000
+     */
+    private static List<Block> arithmetic(int iterations) {
+        return List.of(loop(iterations,
+                block(BlockBase.SET_VARIABLE, "x", block(MOD, block(ADD, block(MULTIPLY, var("x"), 3.0), var("i")), 1000.0))));
+    }
+
+    /**
+     * while i &lt; n: i = i + 1, s = s + "ab", t = upper case (substring of s from 0 to 2), x = length of t
+     */
+    private static List<Block> strings(int iterations) {
+        return List.of(loop(iterations,
+                block(BlockBase.SET_VARIABLE, "s", block(JOIN, var("s"), "ab")),
+                block(BlockBase.SET_VARIABLE, "t", block(UPPER_CASE, block(SUBSTRING, var("s"), 0, 2))),
+                block(BlockBase.SET_VARIABLE, "x", block(LENGTH, var("t")))));
+    }
+
+    /**
+     * l = new list, while i &lt; n: i = i + 1, add (n - i) to l, then sort l and read its size and middle item
+     */
+    private static List<Block> lists(int iterations) {
+        return List.of(
+                block(BlockBase.SET_VARIABLE, "l", block(NEW_LIST)),
+                loop(iterations,
+                        block(ADD_TO_LIST, block("0.1", (double) iterations, var("i")), var("l"))),
+                block(SORT, var("l")),
+                block(BlockBase.SET_VARIABLE, "x", block(ADD, block(SIZE, var("l")), block(GET_ITEM, iterations / 2, var("l")))));
+    }
+
+    /**
+     * while i &lt; n: i = i + 1, then a chain of if-else blocks eight deep picks where x is changed
+     */
+    private static List<Block> nested(int iterations) {
+        return List.of(loop(iterations, nest(8)));
+    }
+
+    private static Block nest(int depth) {
+        if (depth == 0)
+            return block(BlockBase.CHANGE_VARIABLE, "x", 1.0);
+        ControlBlock ifElse = new ControlBlock(BlockBase.IF_ELSE);
+        ifElse.getInputs()[0] = block(GREATER, block(MOD, var("i"), depth + 1.0), 0.0);
+        ifElse.getHeldBlocks().get(0).add(nest(depth - 1));
+        ifElse.getHeldBlocks().get(1).add(block(BlockBase.CHANGE_VARIABLE, "x", -1.0));
+        return ifElse;
+    }
+
+    /**
+     * while i &lt; n: i = i + 1, then each of sixteen variables is set from two others
+     */
+    private static List<Block> variables(int iterations) {
+        Block[] body = new Block[16];
+        for (int k = 0; k < 16; k++)
+            body[k] = block(BlockBase.SET_VARIABLE, "v" + k,
+                    block(MOD, block(ADD, var("v" + (k + 15) % 16), var("v" + (k + 7) % 16)), 1000.0));
+        return List.of(loop(iterations, body));
+    }
+
+    /**
+     * t = "Your order has shipped", while i &lt; n: i = i + 1, x = x + length of (upper case t) + size of l.
+     *     Neither t nor l change in the loop, so the sum is kept and only worked out again if another program
+     *     changes them
+     */
+    private static List<Block> invariant(int iterations) {
+        return List.of(
+                block(BlockBase.SET_VARIABLE, "t", "Your order has shipped"),
+                loop(iterations, block(BlockBase.CHANGE_VARIABLE, "x",
+                        block(ADD, block(LENGTH, block(UPPER_CASE, var("t"))), block(SIZE, var("l"))))));
+    }
+
+    /**
+     * For each of n addresses in r: add upper case (address + "@example.com") to l, either with a while loop
+     * that counts i through the list or with a parallel for each block
+     */
+    private static List<Block> recipients(int iterations, boolean parallel) {
+        List<Object> recipients = new ArrayList<>();
+        for (int k = 0; k < iterations; k++)
+            recipients.add("user" + k);
+        Program.variables.put("r", recipients);
+        if (parallel) {
+            ControlBlock forEach = new ControlBlock(BlockBase.FOR_EACH);
+            forEach.getInputs()[0] = var("r");
+            forEach.getHeldBlocks().get(0).add(block(ADD_TO_LIST,
+                    block(UPPER_CASE, block(JOIN, block(BlockBase.ITEM), "@example.com")), var("l")));
+            return List.of(forEach);
+        }
+        ControlBlock loop = new ControlBlock(BlockBase.WHILE);
+        loop.getInputs()[0] = block(LESS, var("i"), block(SIZE, var("r")));
+        loop.getHeldBlocks().get(0).add(block(ADD_TO_LIST,
+                block(UPPER_CASE, block(JOIN, block(GET_ITEM, var("i"), var("r")), "@example.com")), var("l")));
+        loop.getHeldBlocks().get(0).add(block(BlockBase.CHANGE_VARIABLE, "i", 1.0));
+        return List.of(loop);
+    }
+
+    /**
+     * For each of n rows of address, name and order number in r: add to l the body of an email to the row, written
+     * either by joining text blocks or with the render template block
+     */
+    private static List<Block> merge(int iterations, boolean template) {
+        List<Object> rows = new ArrayList<>();
+        for (int k = 0; k < iterations; k++)
+            rows.add(new ArrayList<>(List.of("user" + k + "@example.com", "User " + k, "A" + (10000 + k))));
+        Program.variables.put("r", rows);
+        Program.variables.put("shop", "Example Store");
+        Program.variables.put("signature", "The Example Store team");
+        Block body;
+        if (template) {
+            body = block(RENDER_TEMPLATE, "Dear {{1}},\n\nYour order #{{2}} from {{shop}} has shipped to {{0}}.\n\n"
+                    + "Thanks,\n{{signature}}\n", block(GET_ITEM, var("i"), var("r")));
+        } else {
+            Object[] parts = {"Dear ", block(GET_ITEM, 1, block(GET_ITEM, var("i"), var("r"))), ",\n\nYour order #",
+                    block(GET_ITEM, 2, block(GET_ITEM, var("i"), var("r"))), " from ", var("shop"), " has shipped to ",
+                    block(GET_ITEM, 0, block(GET_ITEM, var("i"), var("r"))), ".\n\nThanks,\n", var("signature"), "\n"};
+            Object joined = parts[0];
+            for (int k = 1; k < parts.length; k++)
+                joined = block(JOIN, joined, parts[k]);
+            body = (Block) joined;
+        }
+        ControlBlock loop = new ControlBlock(BlockBase.WHILE);
+        loop.getInputs()[0] = block(LESS, var("i"), block(SIZE, var("r")));
+        loop.getHeldBlocks().get(0).add(block(ADD_TO_LIST, body, var("l")));
+        loop.getHeldBlocks().get(0).add(block(BlockBase.CHANGE_VARIABLE, "i", 1.0));
+        return List.of(loop);
+    }
+
+    /**
+     * Builds a while block that counts i up to the number of iterations, running the body each time
+     */
+    private static Block loop(int iterations, Block... body) {
+        ControlBlock loop = new ControlBlock(BlockBase.WHILE);
+        loop.getInputs()[0] = block(LESS, var("i"), (double) iterations);
+        loop.getHeldBlocks().get(0).add(block(BlockBase.CHANGE_VARIABLE, "i", 1.0));
+        loop.getHeldBlocks().get(0).addAll(List.of(body));
+        return loop;
+    }
+
+    static Block block(String baseCode, Object... inputs) {
+        return block(BlockBase.fromBaseCode(baseCode), inputs);
+    }
+
+    static Block block(BlockBase base, Object... inputs) {
+        Block block = new Block(base);
+        System.arraycopy(inputs, 0, block.getInputs(), 0, inputs.length);
+        return block;
+    }
+
+    static Block var(String name) {
+        return new VariableBlock(name);
+    }
+}
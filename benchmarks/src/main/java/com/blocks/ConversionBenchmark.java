@@ -0,0 +1,46 @@
+package com.blocks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures converting values between the input types of blocks
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConversionBenchmark {
+    public Object number = 12.5;
+    public Object text = "12.5";
+    public Object list = List.of(1, 2, 3);
+
+    @Benchmark
+    public Object textToNumber() {
+        return Block.convert(BlockBase.InputType.DOUBLE, text);
+    }
+
+    @Benchmark
+    public Object numberToText() {
+        return Block.convert(BlockBase.InputType.STRING, number);
+    }
+
+    @Benchmark
+    public Object numberToInteger() {
+        return Block.convert(BlockBase.InputType.INTEGER, number);
+    }
+
+    @Benchmark
+    public Object listToNumber() {
+        return Block.convert(BlockBase.InputType.DOUBLE, list);
+    }
+
+    @Benchmark
+    public Object numberToNumber() {
+        return Block.convert(BlockBase.InputType.DOUBLE, number);
+    }
+}
@@ -0,0 +1,39 @@
+package com.blocks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares going through a list of recipients with a while loop against the parallel for each block, in the
+ * compiled node tree.<br>
+ *     Run with -jvmArgsAppend -Dautomailer.foreach.parallelism=1 to see the cost of the for each block on its own
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ForEachBenchmark {
+    @Param({"recipients", "recipients parallel"})
+    public String program;
+
+    @Param({"1000", "100000"})
+    public int recipients;
+
+    private Node node;
+
+    @Setup
+    public void setup() {
+        node = BenchmarkPrograms.build(program, recipients).getInterpreted();
+    }
+
+    @Benchmark
+    public int run() {
+        BenchmarkPrograms.reset();
+        node.invoke();
+        return ((List<?>) Program.variables.get("l")).size();
+    }
+}
@@ -0,0 +1,55 @@
+package com.blocks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures one run of each benchmark program in each tier of the interpreter:
+ * walking the blocks directly, the compiled node tree, and the generated bytecode
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InterpreterBenchmark {
+    @Param({"arithmetic", "strings", "lists", "nested", "variables", "invariant"})
+    public String program;
+
+    @Param({"blocks", "nodes", "bytecode"})
+    public String tier;
+
+    @Param({"1000"})
+    public int iterations;
+
+    private Program built;
+    private Node node;
+
+    @Setup
+    public void setup() {
+        built = BenchmarkPrograms.build(program, iterations);
+        Node interpreted = built.getInterpreted();
+        node = switch (tier) {
+            case "blocks" -> null;
+            case "nodes" -> interpreted;
+            case "bytecode" -> BytecodeCompiler.compile(interpreted);
+            default -> throw new IllegalArgumentException("Unknown tier " + tier);
+        };
+        if (tier.equals("bytecode") && node == null)
+            throw new IllegalStateException("The program could not be compiled to bytecode");
+    }
+
+    @Benchmark
+    public Object run() {
+        BenchmarkPrograms.reset();
+        if (node == null) {
+            for (Block block : built.getBlocks())
+                block.invoke();
+        } else {
+            node.invoke();
+        }
+        return Program.variables.get("x");
+    }
+}
@@ -0,0 +1,97 @@
+package com.blocks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how fast checkpoints are written to the journal, and how long it takes to read a journal back after
+ * a restart.<br>
+ *     Run with -jvmArgsAppend -Dautomailer.checkpoint.sync=true to measure checkpoints that are synced to disk
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JournalBenchmark {
+    /**
+     * A journal with a run of the nested program in it, stopped inside its loop
+     */
+    @State(Scope.Thread)
+    public static class Writing {
+        Path file;
+        ProgramJournal journal;
+        ProgramJournal.Run run;
+        List<ProgramScheduler.Frame> stack;
+        int slot;
+
+        @Setup(Level.Trial)
+        public void setup() throws IOException {
+            BenchmarkPrograms.reset();
+            file = Files.createTempFile("journal", ".dat");
+            journal = new ProgramJournal(file);
+            Program program = BenchmarkPrograms.build("nested", 10);
+            Node root = program.getInterpreted();
+            run = journal.begin(program, root);
+            List<Node> nodes = ProgramJournal.preorder(root);
+            stack = nodes.stream().filter((n) -> n instanceof Node.Sequence || n instanceof Node.While).limit(3)
+                    .map((n) -> new ProgramScheduler.Frame(n, 1)).toList().reversed();
+            slot = Program.variables.slotOf("i");
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    /**
+     * A journal left behind with a number of checkpoints in it
+     */
+    @State(Scope.Thread)
+    public static class Reading {
+        @Param({"10000", "100000"})
+        public int checkpoints;
+
+        Path file;
+
+        @Setup(Level.Trial)
+        public void setup() throws IOException {
+            Writing writing = new Writing();
+            writing.setup();
+            for (int i = 0; i < checkpoints; i++) {
+                Program.variables.setDouble(writing.slot, i);
+                writing.run.checkpoint(writing.stack, 0);
+            }
+            file = writing.file;
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    /**
+     * Changes a variable and writes a checkpoint, like a program does after each block with external effects
+     */
+    @Benchmark
+    public void checkpoint(Writing writing) {
+        Program.variables.add(writing.slot, 1);
+        writing.run.checkpoint(writing.stack, 0);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 3)
+    @Measurement(iterations = 10)
+    public ProgramJournal.Recovered recover(Reading reading) throws IOException {
+        return ProgramJournal.read(reading.file);
+    }
+}
@@ -0,0 +1,101 @@
+package com.blocks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Starts a growing number of programs that all wait, then stops them again.<br>
+ *     The time covers the whole cycle, the scheduling and stop latencies and the memory held by each waiting
+ *     program are reported as secondary results.
+ *     Run with -jvmArgsAppend -Dautomailer.scheduler.carriers=4 to measure the sliced scheduler instead of
+ *     virtual threads
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class RuntimeBenchmark {
+    @Param({"100", "1000", "10000", "50000"})
+    public int programs;
+
+    private final List<Program> started = new ArrayList<>();
+    private long heapBefore, rssBefore;
+
+    /**
+     * Secondary results, reported next to the time it took to start every program
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Memory {
+        public long heapBytesPerProgram;
+        public long residentBytesPerProgram;
+        public long averageSchedulingLatencyNanos;
+        public long averageStopLatencyNanos;
+    }
+
+    @Setup(Level.Invocation)
+    public void setup() {
+        BlockPalette.loadDefaultPalette();
+        started.clear();
+        for (int i = 0; i < programs; i++) {
+            Program program = new Program(new ArrayList<>(List.of(BenchmarkPrograms.block(BlockBase.WAIT, 60.0))));
+            program.getCompiled();
+            started.add(program);
+        }
+        System.gc();
+        heapBefore = heapUsed();
+        rssBefore = residentSetSize();
+    }
+
+    @Benchmark
+    public void startAll(Memory memory) throws InterruptedException {
+        Program.runtime.startAll(started);
+        long latency = 0;
+        for (Program program : started) {
+            while (Program.runtime.getState(program) != ProgramRuntime.State.RUNNING)
+                Thread.onSpinWait();
+            latency += Math.max(Program.runtime.getSchedulingLatency(program), 0);
+        }
+        memory.averageSchedulingLatencyNanos = latency / programs;
+
+        System.gc();
+        memory.heapBytesPerProgram = (heapUsed() - heapBefore) / programs;
+        memory.residentBytesPerProgram = (residentSetSize() - rssBefore) / programs;
+
+        started.forEach(Program::stop);
+        long stopLatency = 0;
+        for (Program program : started) {
+            while (program.isRunning())
+                Thread.sleep(1);
+            stopLatency += program.getStopLatency();
+        }
+        memory.averageStopLatencyNanos = stopLatency / programs;
+    }
+
+    private static long heapUsed() {
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    /**
+     * Reads the resident memory of the process on Linux, or 0 elsewhere
+     */
+    private static long residentSetSize() {
+        try {
+            for (String line : Files.readAllLines(Path.of("/proc/self/status"))) {
+                if (line.startsWith("VmRSS:"))
+                    return Long.parseLong(line.replaceAll("\\D", "")) * 1024;
+            }
+        } catch (IOException | NumberFormatException ignored) {
+        }
+        return 0;
+    }
+}
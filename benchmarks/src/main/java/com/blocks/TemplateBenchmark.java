@@ -0,0 +1,38 @@
+package com.blocks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares writing the body of an email to every recipient of a list by joining text blocks against the render
+ * template block, in the compiled node tree
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TemplateBenchmark {
+    @Param({"merge join", "merge template"})
+    public String program;
+
+    @Param({"10000"})
+    public int recipients;
+
+    private Node node;
+
+    @Setup
+    public void setup() {
+        node = BenchmarkPrograms.build(program, recipients).getInterpreted();
+    }
+
+    @Benchmark
+    public int run() {
+        BenchmarkPrograms.reset();
+        node.invoke();
+        return ((List<?>) Program.variables.get("l")).size();
+    }
+}
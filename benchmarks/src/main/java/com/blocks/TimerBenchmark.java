@@ -0,0 +1,97 @@
+package com.blocks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Schedules thousands of timers spread over a second and waits for all of them to fire, on the timing wheel
+ * and on the JDK's scheduled executor.<br>
+ *     How late the timers fired and the CPU time the process used are reported as secondary results.
+ *     Run with -jvmArgsAppend -Dautomailer.timer.tick=1 to measure the wheel with a finer tick
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TimerBenchmark {
+    private static final long WINDOW = 1000;
+
+    @Param({"10000", "100000"})
+    public int timers;
+
+    @Param({"wheel", "jdk"})
+    public String scheduler;
+
+    private TimingWheel wheel;
+    private ScheduledThreadPoolExecutor executor;
+    private long[] lateness;
+
+    /**
+     * Secondary results, reported next to the time it took for every timer to fire
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Jitter {
+        public long averageLateNanos;
+        public long p99LateNanos;
+        public long maxLateNanos;
+        public long cpuNanos;
+    }
+
+    @Setup(Level.Trial)
+    public void setup() {
+        if (scheduler.equals("wheel"))
+            wheel = new TimingWheel(TimingWheel.TICK, "benchmark-timer");
+        else
+            executor = new ScheduledThreadPoolExecutor(1);
+        lateness = new long[timers];
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (executor != null)
+            executor.shutdownNow();
+    }
+
+    @Benchmark
+    public void fireAll(Jitter jitter) throws InterruptedException {
+        CountDownLatch fired = new CountDownLatch(timers);
+        long cpu = cpuTime();
+        for (int i = 0; i < timers; i++) {
+            int index = i;
+            long delay = i * WINDOW / timers;
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+            Runnable task = () -> {
+                lateness[index] = System.nanoTime() - deadline;
+                fired.countDown();
+            };
+            if (wheel != null)
+                wheel.schedule(task, delay);
+            else
+                executor.schedule(task, delay, TimeUnit.MILLISECONDS);
+        }
+        fired.await();
+        jitter.cpuNanos = cpuTime() - cpu;
+
+        long[] sorted = lateness.clone();
+        Arrays.sort(sorted);
+        jitter.averageLateNanos = Arrays.stream(sorted).sum() / timers;
+        jitter.p99LateNanos = sorted[(int) (timers * 0.99)];
+        jitter.maxLateNanos = sorted[timers - 1];
+    }
+
+    /**
+     * Gets the CPU time used by every thread of the process
+     */
+    private static long cpuTime() {
+        return ((com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean())
+                .getProcessCpuTime();
+    }
+}
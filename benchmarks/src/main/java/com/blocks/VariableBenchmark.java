@@ -0,0 +1,55 @@
+package com.blocks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures reading and writing variables by name, by slot, and atomically from several threads
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VariableBenchmark {
+    private final VariableFrame frame = new VariableFrame();
+    private int slot;
+    private final VariableBlock block = new VariableBlock("counter");
+
+    @Setup
+    public void setup() {
+        for (int i = 0; i < 64; i++)
+            frame.put("v" + i, (double) i);
+        frame.put("counter", 0.0);
+        slot = frame.slotOf("counter");
+        Program.variables.put("counter", 0.0);
+    }
+
+    @Benchmark
+    public Object getByName() {
+        return frame.get("counter");
+    }
+
+    @Benchmark
+    public double getBySlot() {
+        return frame.getDouble(slot);
+    }
+
+    @Benchmark
+    public void setBySlot() {
+        frame.setDouble(slot, 1.0);
+    }
+
+    @Benchmark
+    public Object variableBlock() {
+        return block.invoke();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public double contendedAdd() {
+        return frame.add(slot, 1.0);
+    }
+}
@@ -8,6 +8,7 @@ import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.math.BigDecimal;
 import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.List;
@@ -64,7 +65,12 @@ public class AppData {
         }
 
         JSONObject variables = json.getJSONObject("variables");
-        variables.keySet().forEach((k) -> Program.variables.put(k, variables.get(k)));
+        variables.keySet().forEach((k) -> {
+            Object value = variables.get(k);
+            if (value instanceof BigDecimal)
+                value = ((BigDecimal) value).doubleValue();
+            Program.variables.put(k, value);
+        });
 
         return new AppData(emailAddress, password, programs);
     }
@@ -76,7 +82,7 @@ public class AppData {
         JSONArray array = new JSONArray();
         programs.forEach((p) -> array.put(p.toJSON()));
         json.put("programs", array);
-        json.put("variables", Program.variables);
+        json.put("variables", Program.variables.toMap());
 
         try {
             file.getParentFile().mkdirs();
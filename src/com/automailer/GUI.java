@@ -1,6 +1,8 @@
 package com.automailer;
 
 import com.blocks.BlockPanel;
+import com.blocks.Program;
+import com.blocks.ProgramRuntime;
 
 import javax.imageio.ImageIO;
 import javax.swing.*;
@@ -45,6 +47,12 @@ public class GUI extends JFrame {
                     panel.setSize(getSize());
                     panel.repaint();
                     delta--;
+
+                    ProgramRuntime.Counts counts = Program.runtime.getCounts();
+                    String title = "Auto Emailer - " + counts.running() + " running, " + counts.queued()
+                            + " queued, " + counts.failed() + " failed";
+                    if (!title.equals(getTitle()))
+                        setTitle(title);
                 }
             }
         }).start();
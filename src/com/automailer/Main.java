@@ -14,10 +14,11 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.HashMap;
 
 public class Main {
     private static final File APPDATA_LOCATION = new File(System.getenv("APPDATA"), "AutoMailer\\data.dat");
+    private static final File JOURNAL_LOCATION = new File(System.getenv("APPDATA"), "AutoMailer\\journal.dat");
+    private static final File QUEUE_LOCATION = new File(System.getenv("APPDATA"), "AutoMailer\\outbox");
 
     public static GUI gui;
     public static AppData data;
@@ -28,6 +29,21 @@ public class Main {
 
         if (!(args.length != 0 && args[0].equals("nogui"))) {
             main.createGui();
+        } else {
+            // Nobody is there to see the problems in the editor, so print them once before starting the programs
+            for (Program program : data.getPrograms())
+                program.getDiagnostics().values().forEach((d) -> System.err.println(program.getName() + ": " + d));
+            // Nobody is there to start the programs by hand, so start every one of them
+            Program.runtime.startAll();
+            if (Profiler.ENABLED) {
+                // Print the hottest blocks when exiting, since there is no editor to show them in
+                int top = Integer.getInteger("automailer.profile.top", 20);
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> Profiler.dump(System.out, top)));
+            }
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                if (em != null && em.hasPipeline())
+                    em.getPipeline().dump(System.out);
+            }));
         }
     }
 
@@ -41,10 +57,19 @@ public class Main {
         if (data.getPrograms().isEmpty())
             data.getPrograms().add(new Program());
 
-        HashMap<String, Object> variables = Program.variables;
+        VariableFrame variables = Program.variables;
         for (int i = 1; i < 10; i++) {
             variables.put("#" + i, i);
         }
+
+        em = new EmailManager(data.getEmailAddress(), data.getPassword());
+        // Send the emails that were still queued when the app last exited
+        em.recover(QUEUE_LOCATION);
+
+        Program.runtime.manage(data.getPrograms());
+
+        // Carry on the programs that were running when the app last exited
+        Program.runtime.recover(JOURNAL_LOCATION, data.getPrograms());
     }
 
     public void createGui() {
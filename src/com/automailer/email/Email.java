@@ -0,0 +1,81 @@
+package com.automailer.email;
+
+import java.nio.charset.StandardCharsets;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Base64;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * A plain text email, with the addresses it is sent from and to
+ */
+public record Email(String from, List<String> to, String subject, String body) {
+    public Email {
+        checkAddress(from);
+        if (to.isEmpty())
+            throw new IllegalArgumentException("An email needs at least one recipient");
+        to = List.copyOf(to);
+        to.forEach(Email::checkAddress);
+    }
+
+    /**
+     * Encodes the email as it is sent after the DATA command, with lines ending in CRLF and the line holding a
+     * single dot that ends the data.<br>
+     *     Bodies that are not plain ASCII are sent in base64, so the server does not need to support 8BITMIME
+     */
+    public byte[] encode() {
+        StringBuilder data = new StringBuilder(body.length() + 256);
+        header(data, "From", from);
+        header(data, "To", String.join(", ", to));
+        header(data, "Subject", encodeWord(subject));
+        header(data, "Date", DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.now()));
+        header(data, "Message-ID", "<" + UUID.randomUUID() + "@" + from.substring(from.indexOf('@') + 1) + ">");
+        header(data, "MIME-Version", "1.0");
+        header(data, "Content-Type", "text/plain; charset=UTF-8");
+        if (isAscii(body)) {
+            header(data, "Content-Transfer-Encoding", "7bit");
+            data.append("\r\n");
+            for (String line : body.split("\r\n|\r|\n", -1)) {
+                // A line starting with a dot would otherwise end the data early
+                if (line.startsWith("."))
+                    data.append('.');
+                data.append(line).append("\r\n");
+            }
+        } else {
+            header(data, "Content-Transfer-Encoding", "base64");
+            data.append("\r\n");
+            data.append(Base64.getMimeEncoder().encodeToString(body.getBytes(StandardCharsets.UTF_8))).append("\r\n");
+        }
+        data.append(".\r\n");
+        return data.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void header(StringBuilder data, String name, String value) {
+        data.append(name).append(": ").append(value).append("\r\n");
+    }
+
+    /**
+     * Encodes a header value as an RFC 2047 encoded word if it is not plain ASCII. Line breaks are replaced, so
+     * the value can not add headers of its own
+     */
+    private static String encodeWord(String value) {
+        value = value.replaceAll("[\r\n]+", " ");
+        if (isAscii(value))
+            return value;
+        return "=?UTF-8?B?" + Base64.getEncoder().encodeToString(value.getBytes(StandardCharsets.UTF_8)) + "?=";
+    }
+
+    private static boolean isAscii(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            if (value.charAt(i) > 127)
+                return false;
+        }
+        return true;
+    }
+
+    private static void checkAddress(String address) {
+        if (address.isBlank() || address.chars().anyMatch((c) -> c == '\r' || c == '\n' || c == '<' || c == '>'))
+            throw new IllegalArgumentException("\"" + address + "\" is not an email address");
+    }
+}
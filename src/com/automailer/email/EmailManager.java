@@ -1,5 +1,382 @@
 package com.automailer.email;
 
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Sends emails from the account of the app through an SMTP server, without blocking the programs that send them.<br>
+ *     Connections are logged in once and kept in a pool of up to automailer.smtp.connections, so sending a message
+ *     does not wait for a new connection. A message that finds every connection busy waits for the next one to
+ *     be free. The server is set with the automailer.smtp.host and automailer.smtp.port system properties.<br>
+ *     How fast emails are sent and how many connections are used at once is kept under what the provider allows
+ *     by a {@link SendLimiter}
+ * @see SmtpConnection
+ */
 public class EmailManager {
+    static final String HOST = System.getProperty("automailer.smtp.host", "localhost");
+    static final int PORT = Integer.getInteger("automailer.smtp.port", 25);
+    static final int CONNECTIONS = Math.max(1, Integer.getInteger("automailer.smtp.connections", 4));
+    /**
+     * The number of seconds a connection may sit unused in the pool before it is closed rather than reused, since
+     * servers drop idle connections. Set with the automailer.smtp.idle system property
+     */
+    static final int IDLE = Integer.getInteger("automailer.smtp.idle", 30);
+    /**
+     * The number of times an email the server puts off with a 4xx reply is sent again before it fails. Set with the
+     * automailer.smtp.retries system property
+     */
+    static final int RETRIES = Integer.getInteger("automailer.smtp.retries", 3);
+
+    private final InetSocketAddress address;
+    private final String emailAddress;
+    private final String password;
+    private final int connections;
+    private final ArrayDeque<SmtpConnection> idle = new ArrayDeque<>();
+    private final ArrayDeque<CompletableFuture<SmtpConnection>> waiting = new ArrayDeque<>();
+    /**
+     * The number of connections that are open or being opened
+     */
+    private int open;
+    /**
+     * The number of batches being sent, or connected for
+     */
+    private int busy;
+    private boolean closed;
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final SendLimiter limiter;
+    private SendPipeline pipeline;
+    private volatile MailQueue queue;
+
+    /**
+     * Sends from an account through the server set by the system properties
+     */
+    public EmailManager(String emailAddress, String password) {
+        this(HOST, PORT, emailAddress, password, CONNECTIONS);
+    }
+
+    /**
+     * @param connections The most connections to the server that may be open at once
+     */
+    public EmailManager(String host, int port, String emailAddress, String password, int connections) {
+        this.address = new InetSocketAddress(host, port);
+        this.emailAddress = emailAddress;
+        this.password = password;
+        this.connections = connections;
+        this.limiter = new SendLimiter(connections);
+    }
+
+    public String getEmailAddress() {
+        return emailAddress;
+    }
+
+    /**
+     * Sends a plain text email from the account to one or more recipients
+     * @return A future completed with the recipients the server rejected
+     */
+    public CompletableFuture<List<String>> send(List<String> to, String subject, String body) {
+        return send(new Email(emailAddress, to, subject, body));
+    }
+
+    /**
+     * Sends an email on the next free connection
+     * @return A future completed with the recipients the server rejected, or failed if the email was not sent
+     */
+    public CompletableFuture<List<String>> send(Email email) {
+        Outgoing message = outgoing(email, new CompletableFuture<>());
+        send(List.of(message));
+        return message.result;
+    }
+
+    /**
+     * Encodes an email to be sent, writing it to the mail queue if there is one
+     */
+    Outgoing outgoing(Email email, CompletableFuture<List<String>> result) {
+        Outgoing message = new Outgoing(email, result);
+        MailQueue queue = this.queue;
+        if (queue != null)
+            queue.enqueue(message);
+        return message;
+    }
+
+    /**
+     * Opens the mail queue in a directory and sends the emails in it that were not sent when the app last exited.
+     * Only does anything if the mail queue is turned on, and only the first time
+     * @see MailQueue
+     */
+    public void recover(File directory) {
+        if (!MailQueue.ENABLED)
+            return;
+        List<Outgoing> unsent;
+        synchronized (this) {
+            if (queue != null)
+                return;
+            try {
+                queue = new MailQueue(directory.toPath());
+            } catch (IOException e) {
+                e.printStackTrace();
+                return;
+            }
+            unsent = queue.getRecovered();
+        }
+        for (Outgoing message : unsent) {
+            message.result.whenComplete((r, e) -> {
+                if (e != null)
+                    e.printStackTrace();
+            });
+        }
+        for (int i = 0; i < unsent.size(); i += SendPipeline.BATCH)
+            send(unsent.subList(i, Math.min(i + SendPipeline.BATCH, unsent.size())));
+    }
+
+    /**
+     * Gets the mail queue, or null if it is not open
+     */
+    public MailQueue getQueue() {
+        return queue;
+    }
+
+    /**
+     * Gets the pipeline that sends emails in bulk from this account, starting it the first time it is needed
+     */
+    public synchronized SendPipeline getPipeline() {
+        if (pipeline == null)
+            pipeline = new SendPipeline(this, connections);
+        return pipeline;
+    }
+
+    /**
+     * Checks whether the pipeline has been started, without starting it
+     */
+    public synchronized boolean hasPipeline() {
+        return pipeline != null;
+    }
+
+    /**
+     * Sends a batch of messages one after the other on the next free connection.<br>
+     *     If the connection stops working, which happens when the server has dropped a connection in the pool, the
+     *     messages whose data was not written yet are sent again on another connection
+     * @return A future completed once every message of the batch has its result
+     */
+    CompletableFuture<Void> send(List<Outgoing> batch) {
+        MailQueue queue = this.queue;
+        batch.forEach((m) -> m.result.whenComplete((r, e) -> {
+            (e == null ? sent : failed).increment();
+            // An email that did not get to the server, or that it only refused for now, stays in the queue to be sent
+            // again after a restart
+            Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+            if (queue != null && (cause == null || cause instanceof SmtpException && !((SmtpException) cause).isTransient()))
+                queue.acknowledge(m);
+        }));
+        return send(batch, true);
+    }
+
+    private CompletableFuture<Void> send(List<Outgoing> batch, boolean retry) {
+        // A batch sent again because its connection broke already has its tokens
+        CompletableFuture<SmtpConnection> acquired = retry
+                ? limiter.admit(batch).thenCompose((v) -> acquire())
+                : acquire();
+        return acquired.thenCompose((connection) -> {
+            long started = System.nanoTime();
+            return connection.send(batch).handle((v, e) -> {
+                if (e == null)
+                    limiter.sent(batch, System.nanoTime() - started);
+                else
+                    limiter.failed(e);
+                release(connection, e == null);
+                if (e == null)
+                    return resend(batch);
+                Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+                List<Outgoing> unsent = new ArrayList<>();
+                for (Outgoing message : batch) {
+                    if (message.result.isDone())
+                        continue;
+                    if (retry && !message.dataWritten)
+                        unsent.add(message);
+                    else
+                        message.result.completeExceptionally(cause);
+                }
+                return unsent.isEmpty() ? CompletableFuture.<Void>completedFuture(null) : send(unsent, false);
+            }).thenCompose((f) -> f);
+        }).whenComplete((v, e) -> {
+            // Messages are failed if no connection could be opened for them
+            if (e != null) {
+                Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+                batch.forEach((m) -> m.result.completeExceptionally(cause));
+            }
+        });
+    }
+
+    /**
+     * Sends the messages of a batch again that the server put off for now, once the limiter lets them through
+     * @see SmtpConnection#send(List)
+     */
+    private CompletableFuture<Void> resend(List<Outgoing> batch) {
+        List<Outgoing> deferred = new ArrayList<>();
+        for (Outgoing message : batch) {
+            if (!message.result.isDone()) {
+                message.deferred = false;
+                message.dataWritten = false;
+                deferred.add(message);
+            }
+        }
+        return deferred.isEmpty() ? CompletableFuture.completedFuture(null) : send(deferred, true);
+    }
+
+    /**
+     * Waits for a connection from the pool. It is handed over straight away if fewer batches than the send window
+     * are being sent, see {@link #dispatch()}
+     */
+    private CompletableFuture<SmtpConnection> acquire() {
+        CompletableFuture<SmtpConnection> waiter = new CompletableFuture<>();
+        synchronized (this) {
+            if (closed)
+                return CompletableFuture.failedFuture(new IOException("The email manager is closed"));
+            waiting.add(waiter);
+        }
+        dispatch();
+        return waiter;
+    }
+
+    /**
+     * Hands connections to the waiting batches while fewer are being sent than the send window of the limiter
+     * allows, taking idle connections from the pool or opening new ones
+     */
+    private void dispatch() {
+        while (true) {
+            CompletableFuture<SmtpConnection> waiter;
+            SmtpConnection connection;
+            synchronized (this) {
+                if (closed || waiting.isEmpty() || busy >= limiter.window())
+                    return;
+                waiter = waiting.poll();
+                busy++;
+                while ((connection = idle.pollFirst()) != null) {
+                    if (connection.isOpen() && connection.getIdleTime() < TimeUnit.SECONDS.toNanos(IDLE))
+                        break;
+                    connection.close();
+                    open--;
+                }
+                // The window is never bigger than the pool, so there is always room to open one
+                if (connection == null)
+                    open++;
+            }
+            if (connection != null)
+                waiter.complete(connection);
+            else
+                connect().whenComplete((c, e) -> complete(waiter, c, e));
+        }
+    }
+
+    /**
+     * Opens a connection for a batch that has already been counted in {@link #open} and {@link #busy}
+     */
+    private CompletableFuture<SmtpConnection> connect() {
+        return SmtpConnection.open(address, emailAddress, password).whenComplete((connection, e) -> {
+            if (e == null)
+                return;
+            limiter.failed(e);
+            // The slot is handed to the next waiting batch, which tries to connect again
+            synchronized (this) {
+                open--;
+                busy--;
+            }
+            dispatch();
+        });
+    }
+
+    /**
+     * Gives a connection back to the pool and hands the next waiting batch a connection
+     * @param reusable False if the connection failed and should be closed
+     */
+    private void release(SmtpConnection connection, boolean reusable) {
+        connection.used();
+        synchronized (this) {
+            busy--;
+            if (reusable && !closed) {
+                idle.push(connection);
+            } else {
+                connection.abort();
+                open--;
+            }
+        }
+        dispatch();
+    }
+
+    private static void complete(CompletableFuture<SmtpConnection> waiter, SmtpConnection connection, Throwable e) {
+        if (e != null)
+            waiter.completeExceptionally(e);
+        else
+            waiter.complete(connection);
+    }
+
+    /**
+     * Gets the number of batches that may be sent at once, which shrinks when the server pushes back
+     */
+    public int getSendWindow() {
+        return limiter.window();
+    }
+
+    /**
+     * Gets the number of emails a minute the account is being sent at, or 0 if it is not limited
+     */
+    public double getRate() {
+        return limiter.getRate();
+    }
+
+    /**
+     * Gets the number of emails sent since the app started
+     */
+    public long getSent() {
+        return sent.sum();
+    }
+
+    /**
+     * Gets the number of emails that could not be sent since the app started
+     */
+    public long getFailed() {
+        return failed.sum();
+    }
+
+    /**
+     * Gets the number of connections to the server that are open or being opened
+     */
+    public synchronized int getOpenConnections() {
+        return open;
+    }
 
-}
\ No newline at end of file
+    /**
+     * Closes every connection in the pool, stops the pipeline and syncs the mail queue. Emails still being sent
+     * finish first, and their connections are closed when they are given back
+     */
+    public void close() {
+        List<SmtpConnection> connections;
+        List<CompletableFuture<SmtpConnection>> waiters;
+        SendPipeline pipeline;
+        MailQueue queue;
+        synchronized (this) {
+            closed = true;
+            pipeline = this.pipeline;
+            queue = this.queue;
+            connections = List.copyOf(idle);
+            waiters = List.copyOf(waiting);
+            open -= idle.size();
+            idle.clear();
+            waiting.clear();
+        }
+        if (pipeline != null)
+            pipeline.close();
+        if (queue != null)
+            queue.close();
+        connections.forEach(SmtpConnection::close);
+        waiters.forEach((w) -> w.completeExceptionally(new IOException("The email manager is closed")));
+    }
+}
@@ -0,0 +1,285 @@
+package com.automailer.email;
+
+import com.blocks.Program;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Text for emails with placeholders filled in from the variables of the programs and from the values of each
+ * recipient.<br>
+ *     A placeholder is a name between double braces. {{name}} is the value of the variable, and {{0}}, {{1}} and so on
+ *     are the items of the recipient's list, or {{0}} is the recipient itself if it is not a list. A default after a
+ *     bar, as in {{name|there}}, is used when the value is missing or empty. Values are written as text the way the
+ *     text blocks write them.<br>
+ *     A template is parsed once into a list of segments, and rendering writes each segment straight into a byte
+ *     buffer that is reused for every render on the same thread, so rendering to thousands of recipients does not
+ *     build up a string a piece at a time like joining text blocks does
+ */
+public final class EmailTemplate {
+    /**
+     * The number of parsed templates kept before they are all dropped
+     */
+    private static final int CACHE = 256;
+    private static final Map<String, EmailTemplate> compiled = new ConcurrentHashMap<>();
+    private static final ThreadLocal<Output> outputs = ThreadLocal.withInitial(Output::new);
+
+    private final Segment[] segments;
+
+    private EmailTemplate(Segment[] segments) {
+        this.segments = segments;
+    }
+
+    /**
+     * Gets the parsed template for some text, parsing it the first time it is used
+     */
+    public static EmailTemplate compile(String text) {
+        EmailTemplate template = compiled.get(text);
+        if (template != null)
+            return template;
+        if (compiled.size() >= CACHE)
+            compiled.clear();
+        return compiled.computeIfAbsent(text, EmailTemplate::parse);
+    }
+
+    /**
+     * Parses a template into literal text and placeholders. Braces that are not closed are kept as text
+     */
+    static EmailTemplate parse(String text) {
+        List<Segment> segments = new ArrayList<>();
+        StringBuilder literal = new StringBuilder();
+        int index = 0;
+        while (index < text.length()) {
+            int open = text.indexOf("{{", index);
+            int close = open == -1 ? -1 : text.indexOf("}}", open + 2);
+            if (close == -1) {
+                literal.append(text, index, text.length());
+                break;
+            }
+            literal.append(text, index, open);
+            if (!literal.isEmpty()) {
+                segments.add(new Literal(literal.toString()));
+                literal.setLength(0);
+            }
+            segments.add(placeholder(text.substring(open + 2, close)));
+            index = close + 2;
+        }
+        if (!literal.isEmpty())
+            segments.add(new Literal(literal.toString()));
+        return new EmailTemplate(segments.toArray(new Segment[0]));
+    }
+
+    private static Segment placeholder(String content) {
+        int bar = content.indexOf('|');
+        String name = (bar == -1 ? content : content.substring(0, bar)).trim();
+        byte[] fallback = bar == -1 ? new byte[0] : content.substring(bar + 1).getBytes(StandardCharsets.UTF_8);
+        if (!name.isEmpty() && name.chars().allMatch(Character::isDigit) && name.length() < 10)
+            return new Item(Integer.parseInt(name), fallback);
+        return new Variable(name, fallback);
+    }
+
+    /**
+     * Renders the template for a recipient
+     * @param recipient The recipient's list of values, or a single value such as an address
+     */
+    public String render(Object recipient) {
+        Output out = outputs.get();
+        out.reset();
+        render(recipient, out);
+        return out.toString();
+    }
+
+    /**
+     * Renders the template for a recipient onto the end of an output
+     */
+    public void render(Object recipient, Output out) {
+        for (Segment segment : segments)
+            segment.write(recipient, out);
+    }
+
+    /**
+     * A growing buffer of UTF-8 bytes that a template is rendered into
+     */
+    public static final class Output {
+        private byte[] bytes = new byte[1024];
+        private int size;
+
+        public void reset() {
+            size = 0;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        /**
+         * Gets the buffer, of which the first {@link #size()} bytes are the output
+         */
+        public byte[] bytes() {
+            return bytes;
+        }
+
+        @Override
+        public String toString() {
+            return new String(bytes, 0, size, StandardCharsets.UTF_8);
+        }
+
+        private void write(byte[] b) {
+            ensure(b.length);
+            System.arraycopy(b, 0, bytes, size, b.length);
+            size += b.length;
+        }
+
+        /**
+         * Writes a value as text, giving the same text as joining it with the text block
+         */
+        private void write(Object value) {
+            if (value instanceof String) {
+                write((String) value);
+            } else if (value instanceof Double) {
+                double number = (double) value;
+                // Whole numbers are written without making a string, as Double.toString would write them
+                if (number == (long) number && Math.abs(number) < 1e7 && (number != 0 || 1 / number > 0)) {
+                    write((long) number);
+                    ensure(2);
+                    bytes[size++] = '.';
+                    bytes[size++] = '0';
+                } else {
+                    write(Double.toString(number));
+                }
+            } else if (value instanceof Integer) {
+                write((long) (int) value);
+            } else {
+                write(String.valueOf(value));
+            }
+        }
+
+        private void write(long number) {
+            if (number < 0) {
+                ensure(1);
+                bytes[size++] = '-';
+                number = -number;
+            }
+            int digits = 1;
+            for (long n = number; n >= 10; n /= 10)
+                digits++;
+            ensure(digits);
+            for (int i = size + digits - 1; i >= size; i--) {
+                bytes[i] = (byte) ('0' + number % 10);
+                number /= 10;
+            }
+            size += digits;
+        }
+
+        /**
+         * Writes text encoded as UTF-8 without making a byte array for it
+         */
+        private void write(String text) {
+            int length = text.length();
+            ensure(length);
+            for (int i = 0; i < length; i++) {
+                char c = text.charAt(i);
+                if (c < 0x80) {
+                    // Most of an email is ASCII, and the buffer already has room for one byte a character
+                    bytes[size++] = (byte) c;
+                    continue;
+                }
+                ensure(4 + length - i);
+                if (c < 0x800) {
+                    bytes[size++] = (byte) (0xC0 | c >> 6);
+                    bytes[size++] = (byte) (0x80 | c & 0x3F);
+                } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))) {
+                    int code = Character.toCodePoint(c, text.charAt(++i));
+                    bytes[size++] = (byte) (0xF0 | code >> 18);
+                    bytes[size++] = (byte) (0x80 | code >> 12 & 0x3F);
+                    bytes[size++] = (byte) (0x80 | code >> 6 & 0x3F);
+                    bytes[size++] = (byte) (0x80 | code & 0x3F);
+                } else if (Character.isSurrogate(c)) {
+                    bytes[size++] = '?';
+                } else {
+                    bytes[size++] = (byte) (0xE0 | c >> 12);
+                    bytes[size++] = (byte) (0x80 | c >> 6 & 0x3F);
+                    bytes[size++] = (byte) (0x80 | c & 0x3F);
+                }
+            }
+        }
+
+        private void ensure(int extra) {
+            if (size + extra > bytes.length)
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + extra));
+        }
+    }
+
+    private abstract static class Segment {
+        abstract void write(Object recipient, Output out);
+    }
+
+    private static final class Literal extends Segment {
+        private final byte[] text;
+
+        private Literal(String text) {
+            this.text = text.getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        void write(Object recipient, Output out) {
+            out.write(text);
+        }
+    }
+
+    /**
+     * A placeholder for a variable, which finds the slot of the variable the first time it exists and then reads it
+     * by slot, since slots never change
+     */
+    private static final class Variable extends Segment {
+        private final String name;
+        private final byte[] fallback;
+        private int slot = -1;
+
+        private Variable(String name, byte[] fallback) {
+            this.name = name;
+            this.fallback = fallback;
+        }
+
+        @Override
+        void write(Object recipient, Output out) {
+            if (slot == -1)
+                slot = Program.variables.slotOf(name);
+            Object value = slot == -1 ? null : Program.variables.get(slot);
+            if (value == null || value instanceof String && ((String) value).isEmpty())
+                out.write(fallback);
+            else
+                out.write(value);
+        }
+    }
+
+    /**
+     * A placeholder for one of the values of the recipient
+     */
+    private static final class Item extends Segment {
+        private final int index;
+        private final byte[] fallback;
+
+        private Item(int index, byte[] fallback) {
+            this.index = index;
+            this.fallback = fallback;
+        }
+
+        @Override
+        void write(Object recipient, Output out) {
+            Object value;
+            if (recipient instanceof List)
+                value = index < ((List<?>) recipient).size() ? ((List<?>) recipient).get(index) : null;
+            else
+                value = index == 0 ? recipient : null;
+            if (value == null || value instanceof String && ((String) value).isEmpty())
+                out.write(fallback);
+            else
+                out.write(value);
+        }
+    }
+}
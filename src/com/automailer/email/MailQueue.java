@@ -0,0 +1,394 @@
+package com.automailer.email;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.CRC32;
+
+/**
+ * A write-ahead log of the emails being sent, so the ones that were not sent when the process died are sent when
+ * the app starts again. Turned on with the automailer.queue system property.<br>
+ *     Every email is written to the queue before it is sent and acknowledged once the server has taken or refused
+ *     it. Both are a record appended to a memory-mapped segment file of automailer.queue.segment bytes, so neither
+ *     does a system call. Records are copied to memory that belongs to the file straight away, so they survive the
+ *     process dying, and the segments are synced to disk every automailer.queue.sync milliseconds, so they survive
+ *     the machine losing power too. With automailer.queue.sync set to 0 every record is synced as it is
+ *     written.<br>
+ *     Once every email of the oldest segment is acknowledged the segment is deleted. If only a few of its emails
+ *     are left, they are copied to the newest segment first, so an email that is never acknowledged does not
+ *     keep old segments around. Every record has a checksum, so a record cut short by a crash is ignored
+ * @see EmailManager#recover
+ */
+public class MailQueue {
+    public static final boolean ENABLED = Boolean.getBoolean("automailer.queue");
+    static final int SEGMENT = Math.max(4096, Integer.getInteger("automailer.queue.segment", 8 << 20));
+    static final int SYNC = Integer.getInteger("automailer.queue.sync", 100);
+
+    private static final byte MESSAGE = 1, ACK = 2;
+    private static final int HEADER = 9;
+
+    private final Path directory;
+    /**
+     * The segments that have not been deleted yet, oldest first. The last one is written to
+     */
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+    private final Map<Long, Location> pending = new HashMap<>();
+    private final List<Outgoing> recovered;
+    private final CRC32 crc = new CRC32();
+    private final Thread syncer;
+    private Segment current;
+    private long nextId;
+    /**
+     * The part of the current segment up to which it has been synced to disk
+     */
+    private int synced;
+    private long records;
+
+    /**
+     * Opens the queue in a directory, reading back the emails that were not acknowledged the last time it was open
+     */
+    MailQueue(Path directory) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+        recovered = read();
+        roll(0);
+        if (SYNC > 0) {
+            syncer = Thread.ofPlatform().name("email-queue").daemon().start(() -> {
+                try {
+                    while (true) {
+                        Thread.sleep(SYNC);
+                        sync();
+                    }
+                } catch (InterruptedException ignored) {
+                }
+            });
+        } else {
+            syncer = null;
+        }
+    }
+
+    /**
+     * Gets the emails that were not acknowledged the last time the queue was open, in the order they were added.
+     * They are still in the queue, so they are only gone once they are acknowledged
+     */
+    List<Outgoing> getRecovered() {
+        return recovered;
+    }
+
+    /**
+     * Writes an email to the queue before it is sent, giving it the id it is acknowledged by
+     */
+    synchronized void enqueue(Outgoing message) {
+        byte[] from = message.from.getBytes(StandardCharsets.UTF_8);
+        byte[][] to = new byte[message.to.size()][];
+        int length = 8 + 2 + from.length + 2 + 4 + message.data.length;
+        for (int i = 0; i < to.length; i++) {
+            to[i] = message.to.get(i).getBytes(StandardCharsets.UTF_8);
+            length += 2 + to[i].length;
+        }
+        try {
+            ByteBuffer buffer = begin(length);
+            long id = nextId++;
+            buffer.putLong(id);
+            buffer.putShort((short) from.length).put(from);
+            buffer.putShort((short) to.length);
+            for (byte[] address : to)
+                buffer.putShort((short) address.length).put(address);
+            buffer.putInt(message.data.length).put(message.data);
+            pending.put(id, new Location(current, end(MESSAGE, length), HEADER + length));
+            current.messages++;
+            current.live++;
+            message.id = id;
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Records that an email is finished with, so it is not sent again
+     */
+    synchronized void acknowledge(Outgoing message) {
+        Location location = pending.remove(message.id);
+        if (location == null)
+            return;
+        location.segment.live--;
+        try {
+            begin(8).putLong(message.id);
+            end(ACK, 8);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        // Without the background sync nothing else reclaims segments
+        if (syncer == null && location.segment == segments.peekFirst())
+            compact();
+    }
+
+    /**
+     * Makes room for a record in the current segment, starting a new one if it does not fit
+     * @return The segment's buffer, positioned at the payload of the record
+     */
+    private ByteBuffer begin(int length) throws IOException {
+        if (current.size + HEADER + length > current.buffer.capacity())
+            roll(HEADER + length);
+        return current.buffer.position(current.size + HEADER);
+    }
+
+    /**
+     * Writes the header of a record whose payload was just written, then syncs it if every record is synced
+     * @return Where the record starts in the segment
+     */
+    private int end(byte type, int length) {
+        MappedByteBuffer buffer = current.buffer;
+        int start = current.size;
+        crc.reset();
+        crc.update(type);
+        crc.update(buffer.slice(start + HEADER, length));
+        buffer.putInt(start, length).putInt(start + 4, (int) crc.getValue()).put(start + 8, type);
+        current.size += HEADER + length;
+        records++;
+        if (SYNC <= 0) {
+            buffer.force(start, HEADER + length);
+            synced = current.size;
+        }
+        return start;
+    }
+
+    /**
+     * Starts a new segment to write to, syncing the one before it in full
+     * @param needed The size of the record that did not fit, for a segment bigger than usual
+     */
+    private void roll(int needed) throws IOException {
+        long number = segments.isEmpty() ? 0 : segments.peekLast().number + 1;
+        if (current != null) {
+            current.buffer.force();
+            current.buffer = null;
+        }
+        Segment segment = new Segment(number, directory.resolve(String.format("%016d.seg", number)));
+        try (FileChannel channel = FileChannel.open(segment.path, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            segment.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(SEGMENT, needed));
+        }
+        segments.add(segment);
+        current = segment;
+        synced = 0;
+    }
+
+    /**
+     * Syncs the records written since the last sync to disk, then reclaims the segments that are finished with
+     */
+    void sync() {
+        MappedByteBuffer buffer;
+        int from;
+        int to;
+        synchronized (this) {
+            buffer = current.buffer;
+            from = synced;
+            to = current.size;
+            synced = to;
+        }
+        // Records are only appended after the synced part, so the sync does not hold up enqueueing
+        if (to > from)
+            buffer.force(from, to - from);
+        synchronized (this) {
+            compact();
+        }
+    }
+
+    /**
+     * Deletes the oldest segments once every email in them is acknowledged, copying the last few emails of the
+     * oldest one to the current segment first. Segments are only deleted oldest first, since the
+     * acknowledgements in a segment may be for emails in the segments before it
+     */
+    private void compact() {
+        while (segments.peekFirst() != current) {
+            Segment oldest = segments.peekFirst();
+            if (oldest.live > 0 && oldest.live * 4 > oldest.messages)
+                return;
+            if (oldest.live > 0) {
+                try {
+                    copyForward(oldest);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    return;
+                }
+                current.buffer.force(synced, current.size - synced);
+                synced = current.size;
+            }
+            try {
+                Files.delete(oldest.path);
+            } catch (IOException e) {
+                // Windows does not delete a file that is still mapped, so it is tried again next time
+                return;
+            }
+            segments.removeFirst();
+        }
+    }
+
+    /**
+     * Copies the records of the emails still in a segment to the current one, checksums and all
+     */
+    private void copyForward(Segment segment) throws IOException {
+        List<Map.Entry<Long, Location>> left = new ArrayList<>();
+        for (Map.Entry<Long, Location> e : pending.entrySet()) {
+            if (e.getValue().segment == segment)
+                left.add(e);
+        }
+        try (FileChannel channel = FileChannel.open(segment.path, StandardOpenOption.READ)) {
+            for (Map.Entry<Long, Location> e : left) {
+                Location location = e.getValue();
+                ByteBuffer record = ByteBuffer.allocate(location.length);
+                while (record.hasRemaining() && channel.read(record, location.offset + record.position()) >= 0) {
+                }
+                record.flip();
+                if (current.size + location.length > current.buffer.capacity())
+                    roll(location.length);
+                int start = current.size;
+                current.buffer.put(start, record, 0, location.length);
+                current.size += location.length;
+                current.messages++;
+                current.live++;
+                records++;
+                e.setValue(new Location(current, start, location.length));
+            }
+        }
+        segment.live = 0;
+    }
+
+    /**
+     * Reads the segments left behind by the last time the queue was open, stopping at the first damaged record of
+     * each one
+     */
+    private List<Outgoing> read() throws IOException {
+        List<Path> paths = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*.seg")) {
+            stream.forEach(paths::add);
+        }
+        paths.sort(null);
+        Map<Long, Outgoing> messages = new LinkedHashMap<>();
+        for (Path path : paths) {
+            Segment segment = new Segment(Long.parseLong(path.getFileName().toString().replace(".seg", "")), path);
+            segments.add(segment);
+            ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(path));
+            while (buffer.remaining() >= HEADER) {
+                int start = buffer.position();
+                int length = buffer.getInt();
+                int checksum = buffer.getInt();
+                byte type = buffer.get();
+                if (length < 8 || length > buffer.remaining())
+                    break;
+                crc.reset();
+                crc.update(type);
+                crc.update(buffer.slice(buffer.position(), length));
+                if ((int) crc.getValue() != checksum)
+                    break;
+                ByteBuffer payload = buffer.slice(buffer.position(), length);
+                buffer.position(buffer.position() + length);
+                long id = payload.getLong();
+                nextId = Math.max(nextId, id + 1);
+                if (type == MESSAGE) {
+                    // An email copied forward by compaction takes the place of the copy before it
+                    Location before = pending.put(id, new Location(segment, start, HEADER + length));
+                    if (before != null)
+                        before.segment.live--;
+                    segment.messages++;
+                    segment.live++;
+                    messages.put(id, message(id, payload));
+                } else if (type == ACK) {
+                    Location location = pending.remove(id);
+                    if (location != null)
+                        location.segment.live--;
+                    messages.remove(id);
+                }
+            }
+        }
+        return new ArrayList<>(messages.values());
+    }
+
+    private static Outgoing message(long id, ByteBuffer payload) {
+        String from = string(payload);
+        List<String> to = new ArrayList<>();
+        for (int i = payload.getShort(); i > 0; i--)
+            to.add(string(payload));
+        byte[] data = new byte[payload.getInt()];
+        payload.get(data);
+        Outgoing message = new Outgoing(from, to, data, new CompletableFuture<>());
+        message.id = id;
+        return message;
+    }
+
+    private static String string(ByteBuffer payload) {
+        byte[] bytes = new byte[payload.getShort()];
+        payload.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Gets the number of emails in the queue that are not acknowledged
+     */
+    public synchronized int getPending() {
+        return pending.size();
+    }
+
+    /**
+     * Gets the number of segment files the queue is made of
+     */
+    public synchronized int getSegments() {
+        return segments.size();
+    }
+
+    /**
+     * Gets the number of records written since the queue was opened
+     */
+    public synchronized long getRecords() {
+        return records;
+    }
+
+    /**
+     * Stops syncing in the background and syncs what is left. Emails can still be acknowledged afterwards, they
+     * are just not synced
+     */
+    void close() {
+        if (syncer != null)
+            syncer.interrupt();
+        sync();
+    }
+
+    /**
+     * A segment file, with the number of emails written to it and the number of those not acknowledged yet
+     */
+    private static final class Segment {
+        private final long number;
+        private final Path path;
+        /**
+         * The mapped file while it is being written to, null after that
+         */
+        private MappedByteBuffer buffer;
+        private int size;
+        private int messages;
+        private int live;
+
+        private Segment(long number, Path path) {
+            this.number = number;
+            this.path = path;
+        }
+    }
+
+    /**
+     * Where the record of an email is
+     */
+    private record Location(Segment segment, int offset, int length) {
+    }
+}
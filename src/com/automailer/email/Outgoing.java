@@ -0,0 +1,45 @@
+package com.automailer.email;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * An encoded message on its way to the server, with the future completed once the server has taken or rejected it
+ */
+final class Outgoing {
+    final String from;
+    final List<String> to;
+    final byte[] data;
+    /**
+     * Completed with the recipients the server rejected, or failed if the message was not sent
+     */
+    final CompletableFuture<List<String>> result;
+    /**
+     * True once its data has started to be written, after which sending it again could send it twice
+     */
+    volatile boolean dataWritten;
+    /**
+     * True if the server put off the message or any of its recipients with a 4xx reply, a sign it wants emails
+     * sent more slowly
+     */
+    volatile boolean deferred;
+    /**
+     * The number of times the server has put off the whole message
+     */
+    int attempts;
+    /**
+     * Its id in the mail queue, or -1 if it is not in the queue
+     */
+    long id = -1;
+
+    Outgoing(Email email, CompletableFuture<List<String>> result) {
+        this(email.from(), email.to(), email.encode(), result);
+    }
+
+    Outgoing(String from, List<String> to, byte[] data, CompletableFuture<List<String>> result) {
+        this.from = from;
+        this.to = to;
+        this.data = data;
+        this.result = result;
+    }
+}
@@ -0,0 +1,269 @@
+package com.automailer.email;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the emails sent from an account under what its provider and the receiving domains allow, so a program
+ * sending in a loop slows down instead of getting the account locked.<br>
+ *     Emails take tokens from a bucket for the account, refilled at automailer.smtp.rate emails a minute and
+ *     holding up to automailer.smtp.burst, and each recipient takes a token from the bucket of its domain, refilled
+ *     at automailer.smtp.domain.rate a minute and holding up to automailer.smtp.domain.burst. A rate of 0 turns the
+ *     bucket off. Emails wait in line for the buckets to be refilled.<br>
+ *     The number of batches sent at once and the account rate adapt to the server, like TCP does to a network: both
+ *     are halved when the server puts emails off with a 4xx reply such as 421 or 451, and the window is cut when
+ *     the time the server takes per email climbs well above the lowest seen. Otherwise they grow back a little with
+ *     every email sent, more slowly near the rate the server last pushed back at, so sending settles just under the
+ *     provider's limit rather than bursting into it over and over
+ */
+final class SendLimiter {
+    static final int RATE = Integer.getInteger("automailer.smtp.rate", 600);
+    static final int BURST = Math.max(1, Integer.getInteger("automailer.smtp.burst", 20));
+    static final int DOMAIN_RATE = Integer.getInteger("automailer.smtp.domain.rate", 300);
+    static final int DOMAIN_BURST = Math.max(1, Integer.getInteger("automailer.smtp.domain.burst", 10));
+    /**
+     * The lowest rate a minute the account is slowed to, so sending never stops altogether
+     */
+    private static final double FLOOR = 1;
+    /**
+     * How many domain buckets are kept before the ones that have filled up again are dropped
+     */
+    private static final int DOMAINS = 1024;
+
+    private final int connections;
+    private final TokenBucket account = RATE > 0 ? new TokenBucket(RATE, BURST) : null;
+    private final Map<String, TokenBucket> domains = new ConcurrentHashMap<>();
+    private final ArrayDeque<Admission> admissions = new ArrayDeque<>();
+    /**
+     * True while the next batch is waiting for the buckets to refill
+     */
+    private boolean pacing;
+    private double window;
+    /**
+     * The account rate when the server last put emails off
+     */
+    private double ceiling = Double.MAX_VALUE;
+    /**
+     * The lowest time per email seen, which creeps up so that it follows a server that has got slower for good
+     */
+    private long baseline = Long.MAX_VALUE;
+    private long smoothed;
+    private long decreased;
+
+    SendLimiter(int connections) {
+        this.connections = connections;
+        this.window = connections;
+    }
+
+    /**
+     * Waits until there are tokens for a batch of messages and takes them. Batches are let through in the order
+     * they came, each as soon as the buckets have refilled enough at their current rate, so slowing down also
+     * holds back the batches that are already waiting
+     */
+    CompletableFuture<Void> admit(List<Outgoing> batch) {
+        Admission admission = new Admission(batch);
+        synchronized (this) {
+            admissions.add(admission);
+        }
+        pace();
+        return admission.admitted;
+    }
+
+    /**
+     * Lets through the waiting batches that have tokens, then waits for the buckets to refill for the next one
+     */
+    private void pace() {
+        List<Admission> admitted = new ArrayList<>();
+        synchronized (this) {
+            Admission next;
+            while ((next = admissions.peek()) != null) {
+                long wait = next.delay(System.nanoTime());
+                if (wait > 0) {
+                    if (!pacing) {
+                        pacing = true;
+                        CompletableFuture.delayedExecutor(wait, TimeUnit.NANOSECONDS).execute(() -> {
+                            synchronized (this) {
+                                pacing = false;
+                            }
+                            pace();
+                        });
+                    }
+                    break;
+                }
+                next.take();
+                admitted.add(admissions.poll());
+            }
+        }
+        admitted.forEach((a) -> a.admitted.complete(null));
+    }
+
+    /**
+     * Gets the number of batches that may be sent at once
+     */
+    synchronized int window() {
+        return (int) window;
+    }
+
+    /**
+     * Adapts to how a batch went
+     * @param elapsed The time in nanoseconds the batch took to send
+     */
+    synchronized void sent(List<Outgoing> batch, long elapsed) {
+        boolean deferred = false;
+        for (Outgoing message : batch)
+            deferred |= message.deferred;
+        if (deferred) {
+            decrease();
+            return;
+        }
+        long latency = elapsed / batch.size();
+        baseline = Math.min(latency, baseline + baseline / 64);
+        smoothed = smoothed == 0 ? latency : smoothed + (latency - smoothed) / 8;
+        if (latency > 2 * baseline && canDecrease()) {
+            // The server is queueing emails up, so send fewer at once before it starts putting them off
+            window = Math.max(1, window * 0.8);
+            decreased = System.nanoTime();
+        } else {
+            window = Math.min(connections, window + batch.size() / window);
+        }
+        if (account != null) {
+            double rate = account.getRate();
+            double step = RATE * (rate < ceiling * 0.9 ? 0.01 : 0.001) * batch.size();
+            account.setRate(Math.min(RATE, rate + step));
+        }
+    }
+
+    /**
+     * Adapts to a batch or connection that failed, slowing down if the server put it off
+     */
+    synchronized void failed(Throwable e) {
+        Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+        if (cause instanceof SmtpException && ((SmtpException) cause).isTransient())
+            decrease();
+    }
+
+    private void decrease() {
+        // Every batch that was out when the server pushed back sees it, but it only counts once
+        if (!canDecrease())
+            return;
+        window = Math.max(1, window / 2);
+        if (account != null) {
+            ceiling = account.getRate();
+            account.setRate(Math.max(FLOOR, ceiling / 2));
+        }
+        decreased = System.nanoTime();
+    }
+
+    private boolean canDecrease() {
+        return System.nanoTime() - decreased > Math.max(smoothed, TimeUnit.MILLISECONDS.toNanos(100));
+    }
+
+    /**
+     * Gets the number of emails a minute the account is being sent at, or 0 if it is not limited
+     */
+    synchronized double getRate() {
+        return account == null ? 0 : account.getRate();
+    }
+
+    /**
+     * A batch waiting for tokens, with the number of recipients it has at each domain
+     */
+    private final class Admission {
+        private final int messages;
+        private final Map<TokenBucket, Integer> recipients = new HashMap<>();
+        private final CompletableFuture<Void> admitted = new CompletableFuture<>();
+
+        private Admission(List<Outgoing> batch) {
+            messages = batch.size();
+            if (DOMAIN_RATE <= 0)
+                return;
+            if (domains.size() > DOMAINS)
+                domains.values().removeIf((b) -> b.isFull(System.nanoTime()));
+            for (Outgoing message : batch) {
+                for (String to : message.to) {
+                    String domain = to.substring(to.lastIndexOf('@') + 1).toLowerCase(Locale.ROOT);
+                    TokenBucket bucket = domains.computeIfAbsent(domain, (d) -> new TokenBucket(DOMAIN_RATE, DOMAIN_BURST));
+                    recipients.merge(bucket, 1, Integer::sum);
+                }
+            }
+        }
+
+        /**
+         * @return The time in nanoseconds until every bucket has the tokens for the batch
+         */
+        private long delay(long now) {
+            long wait = account == null ? 0 : account.delay(messages, now);
+            for (Map.Entry<TokenBucket, Integer> e : recipients.entrySet())
+                wait = Math.max(wait, e.getKey().delay(e.getValue(), now));
+            return wait;
+        }
+
+        private void take() {
+            if (account != null)
+                account.take(messages);
+            recipients.forEach(TokenBucket::take);
+        }
+    }
+
+    /**
+     * A bucket of tokens refilled at a steady rate. A batch bigger than the bucket waits for it to be full, then
+     * takes more tokens than it holds, leaving it in debt
+     */
+    private static final class TokenBucket {
+        private final double burst;
+        /**
+         * Tokens a nanosecond
+         */
+        private double rate;
+        private double tokens;
+        private long updated = System.nanoTime();
+
+        private TokenBucket(double perMinute, double burst) {
+            this.burst = burst;
+            this.tokens = burst;
+            this.rate = perMinute / TimeUnit.MINUTES.toNanos(1);
+        }
+
+        /**
+         * @return The time in nanoseconds until the bucket has the tokens
+         */
+        private synchronized long delay(int count, long now) {
+            refill(now);
+            double missing = Math.min(count, burst) - tokens;
+            return missing <= 0 ? 0 : Math.max(1, (long) (missing / rate));
+        }
+
+        private synchronized void take(int count) {
+            tokens -= count;
+        }
+
+        private synchronized boolean isFull(long now) {
+            refill(now);
+            return tokens >= burst;
+        }
+
+        private void refill(long now) {
+            if (now > updated) {
+                tokens = Math.min(burst, tokens + (now - updated) * rate);
+                updated = now;
+            }
+        }
+
+        private synchronized double getRate() {
+            return rate * TimeUnit.MINUTES.toNanos(1);
+        }
+
+        private synchronized void setRate(double perMinute) {
+            refill(System.nanoTime());
+            rate = perMinute / TimeUnit.MINUTES.toNanos(1);
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package com.automailer.email;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Sends emails in bulk through three stages, each run by its own thread: render builds the email, encode turns it
+ * into the bytes that are sent, and transmit sends the encoded messages in batches of up to automailer.pipeline.batch,
+ * each batch on a single connection.<br>
+ *     The stages are joined by queues of automailer.pipeline.capacity messages. A stage that falls behind fills the
+ *     queue in front of it, which holds up the stage before, until the emails being added wait for room. Programs
+ *     that send in a loop can keep going while earlier emails are still being sent, without building up more than
+ *     a few queues worth of emails
+ * @see EmailManager#getPipeline()
+ */
+public class SendPipeline {
+    static final int CAPACITY = Math.max(1, Integer.getInteger("automailer.pipeline.capacity", 256));
+    static final int BATCH = Math.max(1, Integer.getInteger("automailer.pipeline.batch", 16));
+
+    private final EmailManager manager;
+    private final Stage render = new Stage("render");
+    private final Stage encode = new Stage("encode");
+    private final Stage transmit = new Stage("transmit");
+    private final BlockingQueue<Draft> drafts = new ArrayBlockingQueue<>(CAPACITY);
+    private final BlockingQueue<Draft> rendered = new ArrayBlockingQueue<>(CAPACITY);
+    private final BlockingQueue<Outgoing> encoded = new ArrayBlockingQueue<>(CAPACITY);
+    /**
+     * Limits the batches being sent to the number of connections, so emails wait in the queue rather than for a
+     * connection
+     */
+    private final Semaphore sending;
+    /**
+     * Runs the emails added while the pipeline is full until there is room for them
+     */
+    private final ExecutorService waiting = Executors.newVirtualThreadPerTaskExecutor();
+    private final List<Thread> threads = new ArrayList<>();
+    private long sampled = System.nanoTime();
+
+    SendPipeline(EmailManager manager, int connections) {
+        this.manager = manager;
+        this.sending = new Semaphore(connections);
+        start(render, this::render);
+        start(encode, this::encode);
+        start(transmit, this::transmit);
+    }
+
+    private void start(Stage stage, Step step) {
+        threads.add(Thread.ofPlatform().name("email-" + stage.name).daemon().start(() -> {
+            try {
+                while (true) {
+                    step.run();
+                }
+            } catch (InterruptedException ignored) {
+            }
+        }));
+    }
+
+    /**
+     * Adds an email to be sent, waiting while the pipeline is full
+     * @param email Builds the email, run by the render stage
+     * @return A future completed with the recipients the server rejected, or failed if the email was not sent
+     */
+    public CompletableFuture<List<String>> submit(Supplier<Email> email) throws InterruptedException {
+        Draft draft = new Draft(email);
+        drafts.put(draft);
+        return draft.result;
+    }
+
+    /**
+     * Adds an email to be sent without waiting. Emails that nobody waits for print why they could not be sent
+     * @param email Builds the email, run by the render stage
+     * @return A future completed once the pipeline has taken the email, straight away unless it is full
+     */
+    public CompletableFuture<Void> offer(Supplier<Email> email) {
+        Draft draft = new Draft(email);
+        draft.result.whenComplete((r, e) -> {
+            if (e != null)
+                e.printStackTrace();
+        });
+        if (drafts.offer(draft))
+            return CompletableFuture.completedFuture(null);
+        CompletableFuture<Void> taken = new CompletableFuture<>();
+        waiting.execute(() -> {
+            try {
+                // Cancelling the future gives up on the email, as long as there was no room for it yet
+                while (!taken.isDone()) {
+                    if (drafts.offer(draft, 100, TimeUnit.MILLISECONDS))
+                        taken.complete(null);
+                }
+            } catch (InterruptedException e) {
+                taken.completeExceptionally(e);
+            }
+        });
+        return taken;
+    }
+
+    private void render() throws InterruptedException {
+        Draft draft = drafts.take();
+        try {
+            draft.email = draft.supplier.get();
+        } catch (RuntimeException e) {
+            draft.result.completeExceptionally(e);
+            return;
+        }
+        rendered.put(draft);
+        render.processed.increment();
+    }
+
+    private void encode() throws InterruptedException {
+        Draft draft = rendered.take();
+        Outgoing message;
+        try {
+            message = manager.outgoing(draft.email, draft.result);
+        } catch (RuntimeException e) {
+            draft.result.completeExceptionally(e);
+            return;
+        }
+        encoded.put(message);
+        encode.processed.increment();
+    }
+
+    private void transmit() throws InterruptedException {
+        List<Outgoing> batch = new ArrayList<>(BATCH);
+        batch.add(encoded.take());
+        encoded.drainTo(batch, BATCH - 1);
+        sending.acquire();
+        manager.send(batch).whenComplete((v, e) -> {
+            sending.release();
+            transmit.processed.add(batch.size());
+        });
+    }
+
+    /**
+     * Gets how each stage is doing, with the emails per second it got through since the stats were last read
+     */
+    public List<StageStats> getStats() {
+        long now;
+        long elapsed;
+        synchronized (this) {
+            now = System.nanoTime();
+            elapsed = Math.max(now - sampled, 1);
+            sampled = now;
+        }
+        return List.of(render.stats(drafts, elapsed), encode.stats(rendered, elapsed), transmit.stats(encoded, elapsed));
+    }
+
+    /**
+     * Prints a table of the stats of every stage
+     */
+    public void dump(PrintStream out) {
+        out.printf("%-10s %8s %8s %12s %10s%n", "stage", "queued", "capacity", "processed", "per second");
+        for (StageStats stats : getStats())
+            out.printf("%-10s %8d %8d %12d %10.1f%n", stats.name(), stats.queued(), stats.capacity(),
+                    stats.processed(), stats.perSecond());
+    }
+
+    /**
+     * Stops the stages. Emails still in the pipeline are not sent
+     */
+    void close() {
+        threads.forEach(Thread::interrupt);
+        waiting.shutdownNow();
+        CompletionException closed = new CompletionException(new IllegalStateException("The email manager is closed"));
+        List<Draft> left = new ArrayList<>();
+        drafts.drainTo(left);
+        rendered.drainTo(left);
+        left.forEach((d) -> d.result.completeExceptionally(closed));
+        List<Outgoing> unsent = new ArrayList<>();
+        encoded.drainTo(unsent);
+        unsent.forEach((m) -> m.result.completeExceptionally(closed));
+    }
+
+    /**
+     * How a stage is doing
+     * @param queued The emails waiting for the stage
+     * @param capacity The most emails that may wait for the stage
+     * @param processed The emails the stage has got through since the pipeline started
+     * @param perSecond The emails a second the stage got through since the stats were last read
+     */
+    public record StageStats(String name, int queued, int capacity, long processed, double perSecond) {
+    }
+
+    private static final class Stage {
+        private final String name;
+        private final LongAdder processed = new LongAdder();
+        private long sampled;
+
+        private Stage(String name) {
+            this.name = name;
+        }
+
+        private synchronized StageStats stats(BlockingQueue<?> queue, long elapsed) {
+            long count = processed.sum();
+            double perSecond = (count - sampled) * 1e9 / elapsed;
+            sampled = count;
+            return new StageStats(name, queue.size(), CAPACITY, count, perSecond);
+        }
+    }
+
+    /**
+     * An email on its way through the render stage
+     */
+    private static final class Draft {
+        private final Supplier<Email> supplier;
+        private final CompletableFuture<List<String>> result = new CompletableFuture<>();
+        private Email email;
+
+        private Draft(Supplier<Email> supplier) {
+            this.supplier = supplier;
+        }
+    }
+
+    @FunctionalInterface
+    private interface Step {
+        void run() throws InterruptedException;
+    }
+}
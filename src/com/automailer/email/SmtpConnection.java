@@ -0,0 +1,398 @@
+package com.automailer.email;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A connection to an SMTP server that never blocks a thread, reading and writing through an
+ * {@link AsynchronousSocketChannel}.<br>
+ *     When the server supports PIPELINING (RFC 2920) the envelope of a message, MAIL FROM, every RCPT TO and DATA,
+ *     is written at once, so a message takes two round trips however many recipients it has, or one when it is
+ *     sent in a batch. Only one batch is sent on a connection at a time
+ */
+final class SmtpConnection {
+    /**
+     * The number of seconds to wait for the server before giving up on the connection, set with the
+     * automailer.smtp.timeout system property
+     */
+    static final int TIMEOUT = Integer.getInteger("automailer.smtp.timeout", 60);
+
+    private final AsynchronousSocketChannel channel;
+    /**
+     * The bytes read from the server that have not been parsed yet, kept ready for reading
+     */
+    private final ByteBuffer in = ByteBuffer.allocate(8192).flip();
+    private final Set<String> extensions = new HashSet<>();
+    private final Set<String> logins = new HashSet<>();
+    private long lastUsed = System.nanoTime();
+    /**
+     * True if the envelope of the next message was written along with the data of the last one
+     */
+    private boolean envelopeWritten;
+    private boolean broken;
+
+    private SmtpConnection(AsynchronousSocketChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Connects to a server, greets it and logs in
+     * @param username The username to log in with, or an empty string to send without logging in
+     */
+    static CompletableFuture<SmtpConnection> open(InetSocketAddress address, String username, String password) {
+        AsynchronousSocketChannel channel;
+        try {
+            channel = AsynchronousSocketChannel.open();
+            // Every write is a whole batch of commands or a whole message, so there is nothing to gain from waiting
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        SmtpConnection connection = new SmtpConnection(channel);
+        CompletableFuture<Void> connected = new CompletableFuture<>();
+        channel.connect(address, connected, new Handler<>());
+        return connected
+                .thenCompose((v) -> connection.expect(220))
+                .thenCompose((v) -> connection.hello())
+                .thenCompose((v) -> connection.login(username, password))
+                .thenApply((v) -> connection)
+                .whenComplete((c, e) -> {
+                    if (e != null)
+                        connection.abort();
+                });
+    }
+
+    /**
+     * Sends EHLO to find out which extensions the server supports, falling back to HELO for old servers
+     */
+    private CompletableFuture<Void> hello() {
+        String name;
+        try {
+            InetSocketAddress local = (InetSocketAddress) channel.getLocalAddress();
+            String host = local.getAddress().getHostAddress();
+            name = local.getAddress() instanceof Inet6Address ? "[IPv6:" + host + "]" : "[" + host + "]";
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return write("EHLO " + name + "\r\n").thenCompose((v) -> read()).thenCompose((reply) -> {
+            if (!reply.isPositive())
+                return command("HELO " + name, 250).thenApply((r) -> null);
+            List<String> lines = reply.text().lines().skip(1).toList();
+            for (String line : lines) {
+                String[] words = line.toUpperCase(Locale.ROOT).split(" ");
+                extensions.add(words[0]);
+                if (words[0].equals("AUTH"))
+                    logins.addAll(List.of(words).subList(1, words.length));
+            }
+            return CompletableFuture.completedFuture(null);
+        });
+    }
+
+    /**
+     * Logs in with AUTH PLAIN, or AUTH LOGIN if the server does not support it.<br>
+     *     Servers that do not ask for a login, such as relays on the local network, are sent to without one
+     */
+    private CompletableFuture<Void> login(String username, String password) {
+        if (username.isEmpty() || !extensions.contains("AUTH"))
+            return CompletableFuture.completedFuture(null);
+        if (logins.contains("PLAIN") || !logins.contains("LOGIN"))
+            return command("AUTH PLAIN " + base64("\0" + username + "\0" + password), 235).thenApply((r) -> null);
+        return command("AUTH LOGIN", 334)
+                .thenCompose((r) -> command(base64(username), 334))
+                .thenCompose((r) -> command(base64(password), 235))
+                .thenApply((r) -> null);
+    }
+
+    /**
+     * Sends a batch of messages one after the other, each to every recipient the server accepts.<br>
+     *     With PIPELINING the data of each message is written together with the envelope of the next, so after the
+     *     first message each one only takes a single round trip
+     * @return A future completed once every message of the batch has its result, each message is completed with
+     * the recipients the server rejected or failed with a {@link SmtpException} if the server rejected it. A message
+     * the server only put off with a 4xx reply is left without a result, to be sent again, until it has been put
+     * off automailer.smtp.retries times. Fails if the connection stopped working, leaving the messages that were
+     * not sent without a result
+     */
+    CompletableFuture<Void> send(List<Outgoing> batch) {
+        boolean pipelining = extensions.contains("PIPELINING");
+        CompletableFuture<Void> sent = CompletableFuture.completedFuture(null);
+        for (int i = 0; i < batch.size(); i++) {
+            int index = i;
+            sent = sent.thenCompose((v) -> send(batch, index, pipelining));
+        }
+        return sent;
+    }
+
+    private CompletableFuture<Void> send(List<Outgoing> batch, int index, boolean pipelining) {
+        Outgoing message = batch.get(index);
+        List<String> commands = commands(message);
+        Reply[] replies = new Reply[commands.size()];
+        CompletableFuture<Void> envelope = pipelining && !envelopeWritten
+                ? write(String.join("", commands))
+                : CompletableFuture.completedFuture(null);
+        envelopeWritten = false;
+        for (int i = 0; i < commands.size(); i++) {
+            int command = i;
+            envelope = envelope.thenCompose((v) -> {
+                // Pipelined replies are all read, even after a rejection, so the next reply read is the right one
+                if (pipelining)
+                    return read().thenAccept((r) -> replies[command] = r);
+                // Otherwise nothing more is sent once the sender or every recipient is rejected
+                if (command > 0 && !replies[0].isPositive() || command == commands.size() - 1 && accepted(replies) == 0)
+                    return CompletableFuture.completedFuture(null);
+                return write(commands.get(command)).thenCompose((w) -> read()).thenAccept((r) -> replies[command] = r);
+            });
+        }
+        return envelope.thenCompose((v) -> {
+            List<String> rejected = new ArrayList<>();
+            for (int i = 0; i < message.to.size(); i++) {
+                if (replies[i + 1] == null || !replies[i + 1].isPositive())
+                    rejected.add(message.to.get(i));
+                if (replies[i + 1] != null && replies[i + 1].isTransient())
+                    message.deferred = true;
+            }
+            Reply mail = replies[0];
+            Reply start = replies[replies.length - 1];
+            boolean sendable = mail.isPositive() && rejected.size() < message.to.size();
+            if (start != null && start.code() == 354) {
+                if (sendable) {
+                    Outgoing next = pipelining && index + 1 < batch.size() ? batch.get(index + 1) : null;
+                    ByteBuffer data = ByteBuffer.wrap(message.data);
+                    if (next != null) {
+                        byte[] nextEnvelope = String.join("", commands(next)).getBytes(StandardCharsets.UTF_8);
+                        data = ByteBuffer.allocate(message.data.length + nextEnvelope.length)
+                                .put(message.data).put(nextEnvelope).flip();
+                        envelopeWritten = true;
+                    }
+                    message.dataWritten = true;
+                    return write(data).thenCompose((w) -> read()).thenAccept((reply) -> {
+                        if (reply.code() == 250)
+                            message.result.complete(rejected);
+                        else
+                            fail(message, reply);
+                    });
+                }
+                // The server is waiting for data it should not have asked for, so end it straight away
+                return write(".\r\n").thenCompose((w) -> read()).thenCompose((r) -> reset(message, mail.isPositive()
+                        ? replies[replies.length - 2] : mail));
+            }
+            return reset(message, !mail.isPositive() ? mail : !sendable ? replies[replies.length - 2] : start);
+        });
+    }
+
+    private static List<String> commands(Outgoing message) {
+        List<String> commands = new ArrayList<>(message.to.size() + 2);
+        commands.add("MAIL FROM:<" + message.from + ">\r\n");
+        message.to.forEach((r) -> commands.add("RCPT TO:<" + r + ">\r\n"));
+        commands.add("DATA\r\n");
+        return commands;
+    }
+
+    private static int accepted(Reply[] replies) {
+        int accepted = 0;
+        for (int i = 1; i < replies.length - 1; i++) {
+            if (replies[i] != null && replies[i].isPositive())
+                accepted++;
+        }
+        return accepted;
+    }
+
+    /**
+     * Fails a message the server rejected, unless the server only put it off and it has not been put off too many
+     * times yet, in which case it is left without a result to be sent again
+     */
+    private static void fail(Outgoing message, Reply reply) {
+        if (reply.isTransient()) {
+            message.deferred = true;
+            if (message.attempts++ < EmailManager.RETRIES)
+                return;
+        }
+        message.result.completeExceptionally(new SmtpException(reply.code(), reply.text()));
+    }
+
+    /**
+     * Fails a message the server rejected, and ends it so the connection can be used for the next one
+     */
+    private CompletableFuture<Void> reset(Outgoing message, Reply rejection) {
+        fail(message, rejection);
+        return command("RSET", 250).whenComplete((r, e) -> {
+            if (e != null)
+                broken = true;
+        }).thenApply((r) -> null);
+    }
+
+    /**
+     * Sends a command and waits for its reply
+     * @param expected The reply code the command should get, any other code fails with a {@link SmtpException}
+     */
+    private CompletableFuture<Reply> command(String command, int expected) {
+        return write(command + "\r\n").thenCompose((v) -> expect(expected));
+    }
+
+    private CompletableFuture<Reply> expect(int expected) {
+        return read().thenApply((reply) -> {
+            if (reply.code() != expected)
+                throw new CompletionException(new SmtpException(reply.code(), reply.text()));
+            return reply;
+        });
+    }
+
+    private CompletableFuture<Void> write(String text) {
+        return write(ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private CompletableFuture<Void> write(ByteBuffer buffer) {
+        CompletableFuture<Integer> written = new CompletableFuture<>();
+        channel.write(buffer, TIMEOUT, TimeUnit.SECONDS, written, new Handler<>());
+        return written.thenCompose((n) -> buffer.hasRemaining() ? write(buffer) : CompletableFuture.completedFuture(null));
+    }
+
+    /**
+     * Reads the next reply, which may span several lines
+     */
+    private CompletableFuture<Reply> read() {
+        return read(new ArrayList<>());
+    }
+
+    private CompletableFuture<Reply> read(List<String> lines) {
+        String line;
+        while ((line = nextLine()) != null) {
+            lines.add(line);
+            // The last line of a reply has a space after its code instead of a dash
+            if (line.length() < 4 || line.charAt(3) != '-')
+                return CompletableFuture.completedFuture(Reply.parse(lines));
+        }
+        return fill().thenCompose((v) -> read(lines));
+    }
+
+    private String nextLine() {
+        for (int i = in.position(); i < in.limit(); i++) {
+            if (in.get(i) == '\n') {
+                int end = i > in.position() && in.get(i - 1) == '\r' ? i - 1 : i;
+                String line = new String(in.array(), in.position(), end - in.position(), StandardCharsets.UTF_8);
+                in.position(i + 1);
+                return line;
+            }
+        }
+        return null;
+    }
+
+    private CompletableFuture<Void> fill() {
+        in.compact();
+        if (!in.hasRemaining())
+            return CompletableFuture.failedFuture(new IOException("The server sent a line that is too long"));
+        CompletableFuture<Integer> read = new CompletableFuture<>();
+        channel.read(in, TIMEOUT, TimeUnit.SECONDS, read, new Handler<>());
+        return read.thenApply((n) -> {
+            in.flip();
+            if (n < 0)
+                throw new CompletionException(new EOFException("The server closed the connection"));
+            return null;
+        });
+    }
+
+    /**
+     * Returns true if the connection can send another message
+     */
+    boolean isOpen() {
+        return channel.isOpen() && !broken;
+    }
+
+    /**
+     * Gets the time in nanoseconds since the connection last finished sending a message
+     */
+    long getIdleTime() {
+        return System.nanoTime() - lastUsed;
+    }
+
+    void used() {
+        lastUsed = System.nanoTime();
+    }
+
+    /**
+     * Says goodbye to the server and closes the connection once it has replied
+     */
+    void close() {
+        if (!isOpen()) {
+            abort();
+            return;
+        }
+        command("QUIT", 221).whenComplete((r, e) -> abort());
+    }
+
+    /**
+     * Closes the connection straight away
+     */
+    void abort() {
+        broken = true;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static String base64(String text) {
+        return Base64.getEncoder().encodeToString(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * A reply from the server, with the text of every line joined by line breaks
+     */
+    private record Reply(int code, String text) {
+        static Reply parse(List<String> lines) {
+            int code;
+            try {
+                code = Integer.parseInt(lines.get(0).substring(0, 3));
+            } catch (NumberFormatException | IndexOutOfBoundsException e) {
+                throw new CompletionException(new IOException("Not an SMTP reply: " + lines.get(0)));
+            }
+            StringBuilder text = new StringBuilder();
+            for (String line : lines) {
+                if (!text.isEmpty())
+                    text.append('\n');
+                text.append(line.length() > 4 ? line.substring(4) : "");
+            }
+            return new Reply(code, text.toString());
+        }
+
+        boolean isPositive() {
+            return code < 400;
+        }
+
+        boolean isTransient() {
+            return code / 100 == 4;
+        }
+    }
+
+    /**
+     * Completes a future with the result of a channel operation
+     */
+    private static final class Handler<V> implements CompletionHandler<V, CompletableFuture<V>> {
+        @Override
+        public void completed(V result, CompletableFuture<V> future) {
+            future.complete(result);
+        }
+
+        @Override
+        public void failed(Throwable e, CompletableFuture<V> future) {
+            future.completeExceptionally(e);
+        }
+    }
+}
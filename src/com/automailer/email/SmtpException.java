@@ -0,0 +1,28 @@
+package com.automailer.email;
+
+import java.io.IOException;
+
+/**
+ * Thrown when the SMTP server rejects a command, with the reply code it gave
+ */
+public class SmtpException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final int code;
+
+    public SmtpException(int code, String message) {
+        super(code + " " + message);
+        this.code = code;
+    }
+
+    public int getCode() {
+        return code;
+    }
+
+    /**
+     * Returns true if the server only rejected the command for now, so sending again later may work
+     */
+    public boolean isTransient() {
+        return code / 100 == 4;
+    }
+}
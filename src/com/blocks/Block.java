@@ -9,6 +9,7 @@ import java.math.BigDecimal;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.function.Function;
 
 import static com.blocks.BlockBase.InputType.DOUBLE;
 import static com.blocks.BlockPanel.FONT_METRICS;
@@ -229,7 +230,8 @@ public class Block {
         } else if (obj instanceof List) {
             List<Object> list = (List<Object>) obj;
             return switch (type) {
-                case DOUBLE, INTEGER -> list.size();
+                case DOUBLE -> (double) list.size();
+                case INTEGER -> list.size();
                 case STRING -> list.toString();
                 case BOOLEAN -> !list.isEmpty();
                 case LIST, ANY -> list;
@@ -237,4 +239,41 @@ public class Block {
         }
         throw new IllegalArgumentException("Unexpected input type " + obj.getClass().getName());
     }
+
+    /**
+     * Gets a function that converts values that are known to be of one type to another type,
+     * giving the same result as {@link #convert(BlockBase.InputType, Object)} without checking the value's type
+     */
+    static Function<Object, Object> converter(BlockBase.InputType from, BlockBase.InputType to) {
+        if (from == to || to == BlockBase.InputType.ANY)
+            return (obj) -> obj;
+        return switch (from) {
+            case DOUBLE -> switch (to) {
+                case INTEGER -> (obj) -> (int) (double) obj;
+                case STRING -> (obj) -> "" + obj;
+                case BOOLEAN -> (obj) -> (double) obj > 0;
+                default -> (obj) -> List.of(obj);
+            };
+            case INTEGER -> switch (to) {
+                case DOUBLE -> (obj) -> (double) (int) obj;
+                case STRING -> (obj) -> "" + obj;
+                case BOOLEAN -> (obj) -> (int) obj > 0;
+                default -> (obj) -> List.of(obj);
+            };
+            case BOOLEAN -> switch (to) {
+                case DOUBLE -> (obj) -> (boolean) obj ? 1.0 : 0.0;
+                case INTEGER -> (obj) -> (boolean) obj ? 1 : 0;
+                case STRING -> (obj) -> "" + obj;
+                default -> (obj) -> List.of(obj);
+            };
+            case LIST -> switch (to) {
+                case DOUBLE -> (obj) -> (double) ((List<?>) obj).size();
+                case INTEGER -> (obj) -> ((List<?>) obj).size();
+                case STRING -> (obj) -> obj.toString();
+                default -> (obj) -> !((List<?>) obj).isEmpty();
+            };
+            // Strings may not parse and values of unknown types need their type checked
+            default -> (obj) -> convert(to, obj);
+        };
+    }
 }
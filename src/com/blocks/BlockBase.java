@@ -1,11 +1,22 @@
 package com.blocks;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
 import java.util.function.Consumer;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.DoubleToIntFunction;
 import java.util.function.Function;
 
 import static com.blocks.BlockBase.BlockType.FIELD;
+import static com.blocks.BlockBase.InputType.BOOLEAN;
+import static com.blocks.BlockBase.InputType.DOUBLE;
+import static com.blocks.BlockBase.InputType.INTEGER;
 
 /**
  * A BlockBase is a constant that holds information about a block type, including it's internal code,
@@ -18,11 +29,47 @@ public class BlockBase {
     private List<String> labels;
     private Consumer<Object[]> normalCode;
     private Function<Object[], Object> fieldCode;
+    private Object primitiveCode;
+    private TriggerFunction triggerCode;
+    private AsyncCode asyncCode;
+    private InputType outputType = InputType.ANY;
+    private Set<Effect> effects = Collections.unmodifiableSet(EnumSet.allOf(Effect.class));
+    private Cache cache = Cache.NONE;
 
     public static final BlockBase IF = new BlockBase(BlockType.IF);
     public static final BlockBase IF_ELSE = new BlockBase(BlockType.IF_ELSE);
     public static final BlockBase WHILE = new BlockBase(BlockType.WHILE);
+    public static final BlockBase FOR_EACH = new BlockBase(BlockType.FOR_EACH);
+    /**
+     * Outputs the item the innermost for each block around it is running for
+     */
+    public static final BlockBase ITEM = new BlockBase(List.of(), List.of("item"), InputType.ANY,
+            (i) -> Node.ForEach.item()).effects(Effect.NONDETERMINISTIC);
     public static final BlockBase VARIABLE = new BlockBase(BlockType.VARIABLE);
+    public static final BlockBase SET_VARIABLE = new BlockBase(List.of(InputType.STRING, InputType.ANY),
+            List.of("set variable", "to", ""), (Consumer<Object[]>) (i) -> Program.variables.replace((String) i[0], i[1]))
+            .effects(Effect.WRITES_VARIABLES);
+    public static final BlockBase CHANGE_VARIABLE = new BlockBase(List.of(InputType.STRING, InputType.DOUBLE),
+            List.of("change variable", "by", ""), (Consumer<Object[]>) (i) -> {
+                int slot = Program.variables.slotOf((String) i[0]);
+                if (slot != -1)
+                    Program.variables.add(slot, (double) i[1]);
+            }).effects(Effect.READS_VARIABLES, Effect.WRITES_VARIABLES);
+    public static final BlockBase WAIT = new BlockBase(List.of(InputType.DOUBLE), List.of("wait", "seconds"),
+            (Consumer<Object[]>) (i) -> {
+                try {
+                    Program.runtime.sleep((long) ((double) i[0] * 1000));
+                } catch (InterruptedException e) {
+                    throw new ProgramCancelledException();
+                }
+            }).effects(Effect.EXTERNAL);
+    public static final BlockBase ADD_TO_LIST = new BlockBase(List.of(InputType.ANY, InputType.LIST),
+            List.of("add", "to list", ""), (Consumer<Object[]>) (i) -> {
+                @SuppressWarnings("unchecked")
+                List<Object> list = (List<Object>) i[1];
+                list.add(i[0]);
+                Program.variables.changed(list);
+            }).effects(Effect.WRITES_LISTS);
     static final BlockBase SHADOW = new BlockBase(BlockType.SHADOW);
     static final BlockBase VAR_CREATE = new BlockBase(BlockType.VAR_CREATE);
 
@@ -38,7 +85,16 @@ public class BlockBase {
                 labels = List.of("while", "");
                 inputs = List.of(InputType.BOOLEAN);
             }
-            case VARIABLE, SHADOW -> {
+            case FOR_EACH -> {
+                labels = List.of("for each item in", "in parallel");
+                inputs = List.of(InputType.LIST);
+            }
+            case VARIABLE -> {
+                labels = new ArrayList<>();
+                inputs = new ArrayList<>();
+                effects(Effect.READS_VARIABLES);
+            }
+            case SHADOW -> {
                 labels = new ArrayList<>();
                 inputs = new ArrayList<>();
             }
@@ -69,10 +125,68 @@ public class BlockBase {
      *     Field blocks take input to run code with and also act as input for other blocks.
      */
     public BlockBase(List<InputType> inputs, List<String> labels, Function<Object[], Object> fieldCode) {
+        this(inputs, labels, InputType.ANY, fieldCode);
+    }
+
+    /**
+     * Constructs a field block that always outputs the given type
+     */
+    public BlockBase(List<InputType> inputs, List<String> labels, InputType outputType, Function<Object[], Object> fieldCode) {
         this(inputs, labels, FIELD);
+        this.outputType = outputType;
         this.fieldCode = fieldCode;
     }
 
+    /**
+     * Constructs a field block that takes two doubles and outputs a double
+     */
+    public BlockBase(List<String> labels, DoubleBinaryOperator code) {
+        this(List.of(DOUBLE, DOUBLE), labels, DOUBLE, (i) -> code.applyAsDouble((double) i[0], (double) i[1]));
+        this.primitiveCode = code;
+    }
+
+    /**
+     * Constructs a field block that compares two doubles
+     */
+    public BlockBase(List<String> labels, DoubleComparator code) {
+        this(List.of(DOUBLE, DOUBLE), labels, BOOLEAN, (i) -> code.compare((double) i[0], (double) i[1]));
+        this.primitiveCode = code;
+    }
+
+    /**
+     * Constructs a field block that takes a double and outputs an integer
+     */
+    public BlockBase(List<String> labels, DoubleToIntFunction code) {
+        this(List.of(DOUBLE), labels, INTEGER, (i) -> code.applyAsInt((double) i[0]));
+        this.primitiveCode = code;
+    }
+
+    /**
+     * Constructs a field block that takes two booleans and outputs a boolean
+     */
+    public BlockBase(List<String> labels, BooleanOperator code) {
+        this(List.of(BOOLEAN, BOOLEAN), labels, BOOLEAN, (i) -> code.apply((boolean) i[0], (boolean) i[1]));
+        this.primitiveCode = code;
+    }
+
+    /**
+     * Constructs a field block that takes a boolean and outputs a boolean
+     */
+    public BlockBase(List<String> labels, BooleanFunction code) {
+        this(List.of(BOOLEAN), labels, BOOLEAN, (i) -> code.apply((boolean) i[0]));
+        this.primitiveCode = code;
+    }
+
+    /**
+     * Constructs a trigger block.<br>
+     *     Trigger blocks hold blocks that run whenever the schedule made from their inputs fires
+     * @see TriggerService
+     */
+    public BlockBase(List<InputType> inputs, List<String> labels, TriggerFunction triggerCode) {
+        this(inputs, labels, BlockType.TRIGGER);
+        this.triggerCode = triggerCode;
+    }
+
     /**
      * Gets the block base from the given code.<br>
      *     Format: Group-Id.Block-Id<br>
@@ -130,9 +244,121 @@ public class BlockBase {
         return fieldCode;
     }
 
+    public TriggerFunction getTriggerCode() {
+        return triggerCode;
+    }
+
+    /**
+     * Gets the code of a block that finishes its work later, or null if the block finishes when its code returns
+     * @see #async(AsyncCode)
+     */
+    public AsyncCode getAsyncCode() {
+        return asyncCode;
+    }
+
+    /**
+     * Gets the code of a field block that works on primitive values, or null if the block only has boxed code.<br>
+     *     The code is one of {@link DoubleBinaryOperator}, {@link DoubleComparator}, {@link DoubleToIntFunction},
+     *     {@link BooleanOperator} or {@link BooleanFunction}
+     */
+    public Object getPrimitiveCode() {
+        return primitiveCode;
+    }
+
+    /**
+     * Gets the type that a field block always outputs, or ANY if it can output any type
+     */
+    public InputType getOutputType() {
+        return outputType;
+    }
+
+    /**
+     * Declares the effects the block has when it runs, replacing the default of every effect
+     * @return This block base
+     */
+    public BlockBase effects(Effect... effects) {
+        EnumSet<Effect> set = EnumSet.noneOf(Effect.class);
+        Collections.addAll(set, effects);
+        this.effects = Collections.unmodifiableSet(set);
+        return this;
+    }
+
+    /**
+     * Declares that the block has no effects and its output only depends on its inputs
+     * @return This block base
+     */
+    public BlockBase pure() {
+        return effects();
+    }
+
+    /**
+     * Gets the effects the block has when it runs.<br>
+     *     Blocks that have not declared their effects are assumed to have every effect
+     */
+    public Set<Effect> getEffects() {
+        return effects;
+    }
+
+    /**
+     * Returns true if the block has no effects, so it can be run ahead of time when its inputs are known
+     */
+    public boolean isPure() {
+        return effects.isEmpty();
+    }
+
+    /**
+     * Caches the outputs of a field block with the given policy, so running it again with the same inputs reuses
+     * the output it gave before. Should only be set once, after the block's effects
+     * @return This block base
+     * @see BlockCache
+     */
+    public BlockBase cache(Cache cache) {
+        this.cache = cache;
+        fieldCode = BlockCache.memoize(this, fieldCode, cache);
+        return this;
+    }
+
+    public Cache getCache() {
+        return cache;
+    }
+
+    /**
+     * Gives a normal or field block code that starts its work and returns straight away, such as sending an email.<br>
+     *     Programs stepped by the scheduler leave their carrier thread until the work is done, programs run on their
+     *     own thread wait for it without holding a worker
+     * @return This block base
+     * @see ProgramScheduler
+     */
+    public BlockBase async(AsyncCode code) {
+        this.asyncCode = code;
+        if (type == FIELD)
+            fieldCode = (i) -> await(code.apply(i));
+        else
+            normalCode = (i) -> await(code.apply(i));
+        return this;
+    }
+
+    /**
+     * Waits for the work of an async block to finish, ending the program if it is stopped while waiting
+     * @return The output of the work
+     */
+    static Object await(CompletionStage<?> stage) {
+        CompletableFuture<?> future = stage.toCompletableFuture();
+        try {
+            return Program.runtime.await(future);
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            throw new ProgramCancelledException();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
     public boolean isControlBlock() {
         return switch (type) {
-            case IF, IF_ELSE, WHILE -> true;
+            case IF, IF_ELSE, WHILE, FOR_EACH, TRIGGER -> true;
             default -> false;
         };
     }
@@ -141,6 +367,81 @@ public class BlockBase {
         return type == BlockType.FIELD || type == BlockType.VARIABLE;
     }
 
+    @FunctionalInterface
+    public interface DoubleComparator {
+        boolean compare(double a, double b);
+    }
+
+    @FunctionalInterface
+    public interface BooleanOperator {
+        boolean apply(boolean a, boolean b);
+    }
+
+    @FunctionalInterface
+    public interface BooleanFunction {
+        boolean apply(boolean value);
+    }
+
+    @FunctionalInterface
+    public interface AsyncCode {
+        /**
+         * Starts the work of the block with its inputs
+         * @return A stage completed with the output of the block once the work is done
+         */
+        CompletionStage<?> apply(Object[] inputs);
+    }
+
+    @FunctionalInterface
+    public interface TriggerFunction {
+        /**
+         * Makes the schedule of a trigger block from its inputs
+         */
+        Schedule apply(Object[] inputs);
+    }
+
+    /**
+     * Something a block does or depends on besides its inputs
+     */
+    public enum Effect {
+        /**
+         * Depends on the contents of lists, which other blocks can change
+         */
+        READS_LISTS,
+        /**
+         * Changes the contents of lists
+         */
+        WRITES_LISTS,
+        READS_VARIABLES,
+        WRITES_VARIABLES,
+        READS_FILES,
+        WRITES_FILES,
+        /**
+         * Outputs a different value every time it runs, such as the time, random numbers or new lists
+         */
+        NONDETERMINISTIC,
+        /**
+         * Affects something outside of the program, such as showing notifications or stopping the program
+         */
+        EXTERNAL
+    }
+
+    /**
+     * How the outputs of a field block are cached
+     */
+    public enum Cache {
+        NONE,
+        /**
+         * Outputs are reused whenever the inputs are equal, for pure blocks that are slow to run.
+         * The output must not be changed by whatever uses it, and the inputs must not be lists
+         */
+        INPUTS,
+        /**
+         * Outputs are reused while the file at the first input has the same modification time and size,
+         * for blocks that read a file
+         */
+        FILE
+    }
+
     public enum InputType {
         DOUBLE,
         INTEGER,
@@ -156,6 +457,8 @@ public class BlockBase {
         IF,
         IF_ELSE,
         WHILE,
+        FOR_EACH,
+        TRIGGER,
         VARIABLE,
         SHADOW,
         VAR_CREATE
@@ -0,0 +1,168 @@
+package com.blocks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Remembers the outputs of field blocks that are slow to run, so running one again with the same inputs is just
+ * a lookup.<br>
+ *     Every cached block shares a single cache of up to automailer.cache.size outputs, which forgets the least
+ *     recently used output first. Setting the size to 0 turns caching off
+ * @see BlockBase.Cache
+ */
+public class BlockCache {
+    static final int SIZE = Integer.getInteger("automailer.cache.size", 1024);
+
+    private static final Map<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+            return size() > SIZE;
+        }
+    };
+    private static final Map<BlockBase, Stats> stats = new ConcurrentHashMap<>();
+
+    /**
+     * Wraps the field code of a block so its outputs are cached with the given policy
+     */
+    static Function<Object[], Object> memoize(BlockBase base, Function<Object[], Object> code, BlockBase.Cache policy) {
+        if (SIZE <= 0)
+            return code;
+        return switch (policy) {
+            case NONE -> code;
+            case INPUTS -> (i) -> byInputs(base, code, i);
+            case FILE -> (i) -> byFile(base, code, i);
+        };
+    }
+
+    private static Object byInputs(BlockBase base, Function<Object[], Object> code, Object[] inputs) {
+        Key key = new Key(base, Arrays.asList(inputs.clone()));
+        Entry entry = get(key);
+        Stats stats = getStats(base);
+        if (entry != null) {
+            stats.hits.increment();
+            return entry.value;
+        }
+        stats.misses.increment();
+        Object value = code.apply(inputs);
+        put(key, new Entry(value, null, 0));
+        return value;
+    }
+
+    /**
+     * Runs a block that reads the file at its first input, reusing the last output unless the file's modification
+     * time or size has changed since. Lists are copied, since the program may change the list it is given
+     */
+    private static Object byFile(BlockBase base, Function<Object[], Object> code, Object[] inputs) {
+        Stats stats = getStats(base);
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(Path.of((String) inputs[0]), BasicFileAttributes.class);
+        } catch (IOException | InvalidPathException e) {
+            // Missing files are not cached, the block decides what reading one gives
+            stats.misses.increment();
+            return code.apply(inputs);
+        }
+        Key key = new Key(base, Arrays.asList(inputs.clone()));
+        Entry entry = get(key);
+        if (entry != null && attributes.lastModifiedTime().equals(entry.modified) && attributes.size() == entry.size) {
+            stats.hits.increment();
+            return copy(entry.value);
+        }
+        stats.misses.increment();
+        Object value = code.apply(inputs);
+        // Cached with the attributes from before reading, so a change made while reading is seen next time
+        put(key, new Entry(copy(value), attributes.lastModifiedTime(), attributes.size()));
+        return value;
+    }
+
+    private static Object copy(Object value) {
+        return value instanceof List ? new ArrayList<>((List<?>) value) : value;
+    }
+
+    private static Entry get(Key key) {
+        synchronized (entries) {
+            return entries.get(key);
+        }
+    }
+
+    private static void put(Key key, Entry entry) {
+        synchronized (entries) {
+            entries.put(key, entry);
+        }
+    }
+
+    /**
+     * Gets the cache hits and misses of a block, counted since the app started
+     */
+    public static Stats getStats(BlockBase base) {
+        return stats.computeIfAbsent(base, (b) -> new Stats());
+    }
+
+    /**
+     * Gets the cache hits and misses of every block that has been run with a cache
+     */
+    public static Map<BlockBase, Stats> getAllStats() {
+        return Map.copyOf(stats);
+    }
+
+    /**
+     * Gets the number of outputs in the cache
+     */
+    public static int getSize() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * Forgets every cached output
+     */
+    public static void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    private record Key(BlockBase base, List<Object> inputs) {
+    }
+
+    private record Entry(Object value, FileTime modified, long size) {
+    }
+
+    /**
+     * Counts how often a cached block found its output in the cache
+     */
+    public static final class Stats {
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+
+        public long getHits() {
+            return hits.sum();
+        }
+
+        public long getMisses() {
+            return misses.sum();
+        }
+
+        /**
+         * Gets the fraction of runs that found their output in the cache, or 0 if the block has not run
+         */
+        public double getHitRate() {
+            long hits = getHits();
+            long total = hits + getMisses();
+            return total == 0 ? 0 : (double) hits / total;
+        }
+    }
+}
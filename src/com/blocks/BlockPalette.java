@@ -1,13 +1,20 @@
 package com.blocks;
 
 import com.automailer.GUI;
+import com.automailer.Main;
+import com.automailer.email.Email;
+import com.automailer.email.EmailTemplate;
 
 import java.awt.*;
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileWriter;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.channels.ClosedByInterruptException;
 import java.nio.file.Files;
+import java.time.Duration;
 import java.time.LocalDate;
 import java.time.LocalTime;
 import java.time.format.TextStyle;
@@ -15,9 +22,13 @@ import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
 import java.util.function.Consumer;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.DoubleToIntFunction;
 import java.util.function.Function;
 
+import static com.blocks.BlockBase.Effect.*;
 import static com.blocks.BlockBase.InputType.*;
 
 /**
@@ -28,44 +39,39 @@ public class BlockPalette {
     public static List<Group> loadDefaultPalette() {
         return l(
                 new Group("Operations", new Color(104, 157, 242), l(
-                        b(l(DOUBLE, DOUBLE), l("", "+", ""), (i) -> (double) i[0] + (double) i[1]),
-                        b(l(DOUBLE, DOUBLE), l("", "-", ""), (i) -> (double) i[0] - (double) i[1]),
-                        b(l(DOUBLE, DOUBLE), l("", "*", ""), (i) -> (double) i[0] * (double) i[1]),
-                        b(l(DOUBLE, DOUBLE), l("", "/", ""), (i) -> (double) i[0] / (double) i[1]),
-                        b(l(DOUBLE, DOUBLE), l("", "mod", ""), (i) -> (double) i[0] % (double) i[1]),
-                        b(l(DOUBLE, DOUBLE), l("", ">", ""), (i) -> (double) i[0] > (double) i[1]),
-                        b(l(DOUBLE, DOUBLE), l("", "<", ""), (i) -> (double) i[0] < (double) i[1]),
-                        b(l(DOUBLE), l("round", ""), (i) -> (int) (Math.round((double) i[0]))),
-                        b(l(ANY, ANY), l("", "=", ""), (i) -> (i[0].equals(i[1]))),
-                        b(l(BOOLEAN, BOOLEAN), l("", "and", ""), (i) -> (boolean) i[0] && (boolean) i[1]),
-                        b(l(BOOLEAN, BOOLEAN), l("", "or", ""), (i) -> (boolean) i[0] || (boolean) i[1]),
-                        b(l(BOOLEAN), l("not", ""), (i) -> !(boolean) i[0]),
-                        b(l(DOUBLE, DOUBLE), l("random from", "to", ""), (i) -> (Math.random() * ((double) i[1] - (double) i[0])) + (double) i[0])
+                        d(l("", "+", ""), (a, b) -> a + b).pure(),
+                        d(l("", "-", ""), (a, b) -> a - b).pure(),
+                        d(l("", "*", ""), (a, b) -> a * b).pure(),
+                        d(l("", "/", ""), (a, b) -> a / b).pure(),
+                        d(l("", "mod", ""), (a, b) -> a % b).pure(),
+                        c(l("", ">", ""), (a, b) -> a > b).pure(),
+                        c(l("", "<", ""), (a, b) -> a < b).pure(),
+                        r(l("round", ""), (a) -> (int) Math.round(a)).pure(),
+                        b(l(ANY, ANY), l("", "=", ""), BOOLEAN, (i) -> (i[0].equals(i[1]))).pure(),
+                        o(l("", "and", ""), (a, b) -> a && b).pure(),
+                        o(l("", "or", ""), (a, b) -> a || b).pure(),
+                        n(l("not", ""), (a) -> !a).pure(),
+                        d(l("random from", "to", ""), (a, b) -> (Math.random() * (b - a)) + a).effects(NONDETERMINISTIC)
                 )),
                 new Group("Control", new Color(252, 186, 3), l(
                         BlockBase.IF, BlockBase.IF_ELSE, BlockBase.WHILE,
-                        b(l(), l("stop"), (i) -> {Thread.currentThread().stop();}),
-                        b(l(DOUBLE), l("wait", "seconds"), (i) -> {
-                            try {
-                                Thread.sleep((long) ((double) i[0] * 1000));
-                            } catch (InterruptedException ignored) {
-                            }
-                        })
+                        b(l(), l("stop"), (i) -> {throw new ProgramCancelledException();}).effects(EXTERNAL),
+                        BlockBase.WAIT, BlockBase.FOR_EACH, BlockBase.ITEM
                 )),
                 new Group("Time", new Color(56, 232, 223), l(
-                        b(l(), l("date"), (i) -> (LocalDate.now().toString())),
-                        b(l(), l("time"), (i) -> (LocalTime.now().toString())),
-                        b(l(), l("year"), (i) -> (LocalDate.now().getYear())),
-                        b(l(), l("month"), (i) -> (LocalDate.now().getMonthValue())),
-                        b(l(), l("current month"), (i) -> (LocalDate.now().getMonth().getDisplayName(TextStyle.FULL, Locale.getDefault()))),
-                        b(l(), l("day"), (i) -> (LocalDate.now().getDayOfMonth())),
-                        b(l(), l("current day"), (i) -> (LocalDate.now().getDayOfWeek().getDisplayName(TextStyle.FULL, Locale.getDefault()))),
-                        b(l(), l("hour"), (i) -> (LocalTime.now().getHour())),
-                        b(l(), l("minutes"), (i) -> (LocalTime.now().getMinute())),
-                        b(l(), l("seconds"), (i) -> (LocalTime.now().getSecond()))
+                        b(l(), l("date"), STRING, (i) -> (LocalDate.now().toString())).effects(NONDETERMINISTIC),
+                        b(l(), l("time"), STRING, (i) -> (LocalTime.now().toString())).effects(NONDETERMINISTIC),
+                        b(l(), l("year"), INTEGER, (i) -> (LocalDate.now().getYear())).effects(NONDETERMINISTIC),
+                        b(l(), l("month"), INTEGER, (i) -> (LocalDate.now().getMonthValue())).effects(NONDETERMINISTIC),
+                        b(l(), l("current month"), STRING, (i) -> (LocalDate.now().getMonth().getDisplayName(TextStyle.FULL, Locale.getDefault()))).effects(NONDETERMINISTIC),
+                        b(l(), l("day"), INTEGER, (i) -> (LocalDate.now().getDayOfMonth())).effects(NONDETERMINISTIC),
+                        b(l(), l("current day"), STRING, (i) -> (LocalDate.now().getDayOfWeek().getDisplayName(TextStyle.FULL, Locale.getDefault()))).effects(NONDETERMINISTIC),
+                        b(l(), l("hour"), INTEGER, (i) -> (LocalTime.now().getHour())).effects(NONDETERMINISTIC),
+                        b(l(), l("minutes"), INTEGER, (i) -> (LocalTime.now().getMinute())).effects(NONDETERMINISTIC),
+                        b(l(), l("seconds"), INTEGER, (i) -> (LocalTime.now().getSecond())).effects(NONDETERMINISTIC)
                 )),
                 new Group("System", new Color(208, 214, 209), l(
-                        b(l(), l("beep"), (i) -> {Toolkit.getDefaultToolkit().beep();}),
+                        b(l(), l("beep"), (i) -> {Toolkit.getDefaultToolkit().beep();}).effects(EXTERNAL),
                         b(l(STRING), l("notify", ""), (i) -> {
                             SystemTray tray = SystemTray.getSystemTray();
                             TrayIcon icon = new TrayIcon(GUI.icon, "AutoEmailer");
@@ -75,86 +81,161 @@ public class BlockPalette {
                             } catch (AWTException ignored) {
                             }
                             icon.displayMessage("AutoEmailer", (String) i[0], TrayIcon.MessageType.NONE);
-                        }),
+                        }).effects(EXTERNAL),
                         b(l(STRING), l("open file", ""), (i) -> {
                             try {
                                 Desktop.getDesktop().open(new File((String) i[0]));
                             } catch (IOException ignored) {
                             }
-                        }),
+                        }).effects(EXTERNAL),
                         b(l(STRING), l("open url", ""), (i) -> {
                             try {
                                 Desktop.getDesktop().browse(new URI((String) i[0]));
                             } catch (URISyntaxException | IOException ignored) {
                             }
-                        })
+                        }).effects(EXTERNAL)
                 )),
                 new Group("Files", new Color(158, 122, 109), l(
-                        b(l(STRING), l("read file", ""), (i) -> {
+                        b(l(STRING), l("read file", ""), LIST, (i) -> {
                             try {
                                 return Files.readAllLines(new File((String) i[0]).toPath());
-                            } catch (IOException ignored) {
+                            } catch (IOException e) {
+                                cancelIfInterrupted(e);
                             }
                             return l();
-                        }),
+                        }).effects(READS_FILES).cache(BlockBase.Cache.FILE),
                         b(l(STRING), l("create file", ""), (i) -> {
                             try {
                                 new File((String) i[0]).createNewFile();
                             } catch (IOException ignored) {
                             }
-                        }),
+                        }).effects(WRITES_FILES),
                         b(l(STRING), l("create folder", ""), (i) -> {
                             new File((String) i[0]).mkdirs();
-                        }),
-                        b(l(STRING), l("file", "exists"), (i) -> (new File((String) i[0]).exists())),
+                        }).effects(WRITES_FILES),
+                        b(l(STRING), l("file", "exists"), BOOLEAN, (i) -> (new File((String) i[0]).exists())).effects(READS_FILES),
                         b(l(INTEGER, INTEGER, STRING), l("remove lines", "to", "in file", ""), (i) -> {
                             try {
                                 File file = new File((String) i[2]);
                                 List<String> lines = Files.readAllLines(file.toPath());
                                 lines.subList((int) i[0], (int) i[1]).clear();
-                                Files.write(file.toPath(), lines);
-                            } catch (IOException ignored) {
+                                Node.checkCancelled();
+                                writeLines(file, lines);
+                            } catch (IOException e) {
+                                cancelIfInterrupted(e);
                             }
-                        }),
+                        }).effects(READS_FILES, WRITES_FILES),
                         b(l(LIST, INTEGER, STRING), l("add lines", "at", "in file", ""), (i) -> {
                             try {
                                 File file = new File((String) i[2]);
                                 List<String> lines = Files.readAllLines(file.toPath());
                                 ((List) i[0]).forEach((l) -> lines.add((int) i[1], l.toString()));
-                                Files.write(file.toPath(), lines);
-                            } catch (IOException ignored) {
+                                Node.checkCancelled();
+                                writeLines(file, lines);
+                            } catch (IOException e) {
+                                cancelIfInterrupted(e);
                             }
-                        })
+                        }).effects(READS_LISTS, READS_FILES, WRITES_FILES)
                 )),
                 new Group("Text", new Color(198, 30, 123), l(
-                        b(l(STRING, STRING), l("", "+", ""), (i) -> i[0] + (String) i[1]),
-                        b(l(STRING), l("length of", ""), (i) -> (((String) i[0]).length())),
-                        b(l(STRING), l("is", "blank"), (i) -> (((String) i[0]).isEmpty())),
-                        b(l(STRING, STRING), l("", "contains", ""), (i) -> (((String) i[0]).contains((String) i[1]))),
-                        b(l(STRING, INTEGER, INTEGER), l("substring", "from", "to", ""), (i) -> (((String) i[0]).substring((int) i[1], (int) i[2]))),
-                        b(l(STRING, STRING), l("split", "with", ""), (i) -> (List.of(((String) i[0]).split((String) i[1])))),
-                        b(l(STRING), l("upper case", ""), (i) -> (((String) i[0]).toUpperCase())),
-                        b(l(STRING), l("lower case", ""), (i) -> (((String) i[0]).toLowerCase()))
+                        b(l(STRING, STRING), l("", "+", ""), STRING, (i) -> i[0] + (String) i[1]).pure(),
+                        b(l(STRING), l("length of", ""), INTEGER, (i) -> (((String) i[0]).length())).pure(),
+                        b(l(STRING), l("is", "blank"), BOOLEAN, (i) -> (((String) i[0]).isEmpty())).pure(),
+                        b(l(STRING, STRING), l("", "contains", ""), BOOLEAN, (i) -> (((String) i[0]).contains((String) i[1]))).pure(),
+                        b(l(STRING, INTEGER, INTEGER), l("substring", "from", "to", ""), STRING, (i) -> (((String) i[0]).substring((int) i[1], (int) i[2]))).pure(),
+                        b(l(STRING, STRING), l("split", "with", ""), LIST, (i) -> (List.of(((String) i[0]).split((String) i[1])))).pure()
+                                .cache(BlockBase.Cache.INPUTS),
+                        b(l(STRING), l("upper case", ""), STRING, (i) -> (((String) i[0]).toUpperCase())).pure(),
+                        b(l(STRING), l("lower case", ""), STRING, (i) -> (((String) i[0]).toLowerCase())).pure()
                 )),
                 new Group("Lists", new Color(223, 92, 242), l(
-                        b(l(), l("new list"), (i) -> {return l();}),
-                        b(l(LIST), l("size of", ""), (i) -> (((List) i[0]).size())),
-                        b(l(LIST), l("is", "empty"), (i) -> (((List) i[0]).isEmpty())),
-                        b(l(INTEGER, LIST), l("get item", "of", ""), (i) -> (((List) i[1]).get((int) i[0]))),
-                        b(l(LIST, ANY), l("list", "contains", ""), (i) -> (((List) i[0]).contains(i[1]))),
-                        b(l(ANY, LIST), l("add", "to list", ""), (i) -> {((List) i[1]).add(i[0]);}),
-                        b(l(ANY, INTEGER, LIST), l("insert", "at", "in", ""), (i) -> {((List) i[2]).add((int) i[1], i[0]);}),
-                        b(l(INTEGER, LIST), l("delete item", "of", ""), (i) -> {((List) i[1]).remove((int) i[0]);}),
-                        b(l(LIST, LIST), l("combine lists", "and", ""), (i) -> {((List) i[0]).addAll(((List) i[1]));}),
-                        b(l(LIST), l("sort list", ""), (i) -> {((List) i[0]).sort(Comparator.naturalOrder());})
+                        b(l(), l("new list"), LIST, (i) -> {return l();}).effects(NONDETERMINISTIC),
+                        b(l(LIST), l("size of", ""), INTEGER, (i) -> (((List) i[0]).size())).effects(READS_LISTS),
+                        b(l(LIST), l("is", "empty"), BOOLEAN, (i) -> (((List) i[0]).isEmpty())).effects(READS_LISTS),
+                        b(l(INTEGER, LIST), l("get item", "of", ""), ANY, (i) -> (((List) i[1]).get((int) i[0]))).effects(READS_LISTS),
+                        b(l(LIST, ANY), l("list", "contains", ""), BOOLEAN, (i) -> (((List) i[0]).contains(i[1]))).effects(READS_LISTS),
+                        BlockBase.ADD_TO_LIST,
+                        b(l(ANY, INTEGER, LIST), l("insert", "at", "in", ""), (i) -> {((List) i[2]).add((int) i[1], i[0]); Program.variables.changed((List<?>) i[2]);}).effects(WRITES_LISTS),
+                        b(l(INTEGER, LIST), l("delete item", "of", ""), (i) -> {((List) i[1]).remove((int) i[0]); Program.variables.changed((List<?>) i[1]);}).effects(WRITES_LISTS),
+                        b(l(LIST, LIST), l("combine lists", "and", ""), (i) -> {((List) i[0]).addAll(((List) i[1])); Program.variables.changed((List<?>) i[0]);}).effects(READS_LISTS, WRITES_LISTS),
+                        b(l(LIST), l("sort list", ""), (i) -> {((List) i[0]).sort(Comparator.naturalOrder()); Program.variables.changed((List<?>) i[0]);}).effects(READS_LISTS, WRITES_LISTS)
                 )),
                 new Group("Variables", new Color(125, 214, 15), l(
-                        b(l(STRING, ANY), l("set variable", "to", ""), (i) -> {Program.variables.replace((String) i[0], i[1]);}),
-                        BlockBase.VARIABLE
+                        BlockBase.SET_VARIABLE,
+                        BlockBase.VARIABLE,
+                        BlockBase.CHANGE_VARIABLE,
+                        b(l(STRING, ANY, ANY), l("set variable", "to", "if it is", ""), BOOLEAN, (i) -> {
+                            int slot = Program.variables.slotOf((String) i[0]);
+                            return slot != -1 && Program.variables.compareAndSet(slot, i[2], i[1]);
+                        }).effects(READS_VARIABLES, WRITES_VARIABLES),
+                        b(l(STRING, ANY), l("get and set variable", "to", ""), ANY, (i) -> {
+                            int slot = Program.variables.slotOf((String) i[0]);
+                            return slot == -1 ? null : Program.variables.getAndSet(slot, i[1]);
+                        }).effects(READS_VARIABLES, WRITES_VARIABLES)
+                )),
+                new Group("Triggers", new Color(242, 112, 56), l(
+                        t(l(STRING), l("every day at", ""), (i) -> Schedule.daily(LocalTime.parse((String) i[0]))),
+                        t(l(DOUBLE), l("every", "minutes"), (i) -> Schedule.every(Duration.ofMillis((long) ((double) i[0] * 60000)))),
+                        t(l(STRING), l("on schedule", ""), (i) -> CronSchedule.parse((String) i[0]))
+                )),
+                new Group("Email", new Color(66, 135, 96), l(
+                        b(l(ANY, STRING, STRING), l("send email to", "subject", "body", ""), (i) -> {}).effects(EXTERNAL)
+                                .async((i) -> {
+                                    if (Main.em == null)
+                                        return CompletableFuture.failedFuture(new IllegalStateException("No email account is set up"));
+                                    return Main.em.send(recipients(i[0]), (String) i[1], (String) i[2]);
+                                }),
+                        // Only waits while the pipeline is full, so a loop can queue thousands of emails
+                        b(l(ANY, STRING, STRING), l("queue email to", "subject", "body", ""), (i) -> {}).effects(EXTERNAL)
+                                .async((i) -> {
+                                    if (Main.em == null)
+                                        return CompletableFuture.failedFuture(new IllegalStateException("No email account is set up"));
+                                    List<String> to = recipients(i[0]);
+                                    return Main.em.getPipeline().offer(() -> new Email(Main.em.getEmailAddress(), to, (String) i[1], (String) i[2]));
+                                }),
+                        b(l(STRING, ANY), l("render template", "for", ""), STRING, (i) -> EmailTemplate.compile((String) i[0]).render(i[1]))
+                                .effects(READS_VARIABLES, READS_LISTS)
                 ))
         );
     }
 
+    /**
+     * Ends the program if the file operation failed because the program was stopped
+     */
+    private static void cancelIfInterrupted(IOException e) {
+        if (e instanceof ClosedByInterruptException)
+            throw new ProgramCancelledException();
+    }
+
+    /**
+     * Gets the addresses to send an email to from a list of addresses, or from text with addresses separated by
+     * commas or semicolons
+     */
+    private static List<String> recipients(Object to) {
+        List<String> recipients = new ArrayList<>();
+        if (to instanceof List) {
+            ((List<?>) to).forEach((r) -> recipients.add(r.toString().trim()));
+        } else {
+            for (String address : String.valueOf(to).split("[,;]")) {
+                if (!address.isBlank())
+                    recipients.add(address.trim());
+            }
+        }
+        return recipients;
+    }
+
+    /**
+     * Writes lines to a file with a stream that ignores interrupts, so a stopped program never leaves it half written
+     */
+    private static void writeLines(File file, List<String> lines) throws IOException {
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(file))) {
+            for (String line : lines) {
+                writer.write(line);
+                writer.newLine();
+            }
+        }
+    }
+
     private static <T> List<T> l(T... elements) {
         return List.of(elements);
     }
@@ -167,7 +248,32 @@ public class BlockPalette {
         return new BlockBase(inputs, labels, normalCode);
     }
 
-    private static BlockBase b(List<BlockBase.InputType> inputs, List<String> labels, Function<Object[], Object> fieldCode) {
-        return new BlockBase(inputs, labels, fieldCode);
+    private static BlockBase b(List<BlockBase.InputType> inputs, List<String> labels, BlockBase.InputType outputType,
+                               Function<Object[], Object> fieldCode) {
+        return new BlockBase(inputs, labels, outputType, fieldCode);
+    }
+
+    private static BlockBase t(List<BlockBase.InputType> inputs, List<String> labels, BlockBase.TriggerFunction triggerCode) {
+        return new BlockBase(inputs, labels, triggerCode).effects(EXTERNAL);
+    }
+
+    private static BlockBase d(List<String> labels, DoubleBinaryOperator code) {
+        return new BlockBase(labels, code);
+    }
+
+    private static BlockBase c(List<String> labels, BlockBase.DoubleComparator code) {
+        return new BlockBase(labels, code);
+    }
+
+    private static BlockBase r(List<String> labels, DoubleToIntFunction code) {
+        return new BlockBase(labels, code);
+    }
+
+    private static BlockBase o(List<String> labels, BlockBase.BooleanOperator code) {
+        return new BlockBase(labels, code);
+    }
+
+    private static BlockBase n(List<String> labels, BlockBase.BooleanFunction code) {
+        return new BlockBase(labels, code);
     }
 }
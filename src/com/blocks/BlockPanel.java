@@ -8,6 +8,7 @@ import java.awt.event.*;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 import static com.blocks.BlockBase.BlockType.VARIABLE;
 
@@ -37,6 +38,9 @@ public class BlockPanel extends JPanel implements MouseListener, MouseMotionList
 
     Rectangle groupSelectionBounds = new Rectangle(), blockSelectionBounds = new Rectangle();
 
+    Map<Block, Diagnostic> diagnostics = Map.of();
+    Map<Block, Float> heat = Map.of();
+
     double scale = 1.25;
     int transX = 0, transY = 0, selectionY = 0, selectionHeight;
 
@@ -102,6 +106,9 @@ public class BlockPanel extends JPanel implements MouseListener, MouseMotionList
             transX -= 5 * scale;
 
 
+        diagnostics = program.getDiagnostics();
+        if (Profiler.ENABLED)
+            heat = Profiler.getHeat();
         int y = 25;
         for (Block block : program.getBlocks()) {
             renderer.drawBlock(g2d, block, 0, y, 255);
@@ -259,6 +266,26 @@ public class BlockPanel extends JPanel implements MouseListener, MouseMotionList
         return null;
     }
 
+    /**
+     * Shows the type problem of the block under the mouse as a tooltip
+     */
+    private void updateToolTip() {
+        String text = null;
+        if (cursor.isEmpty()) {
+            for (int i = 0; i < program.getBlocks().size(); i++) {
+                BlockPointer pointer = getBlockAt(program.getBlocks().get(i), i, mouse);
+                if (pointer != null) {
+                    Object target = pointer.get();
+                    Diagnostic diagnostic = diagnostics.get(target instanceof Block ? (Block) target : pointer.block);
+                    if (diagnostic != null)
+                        text = diagnostic.message();
+                    break;
+                }
+            }
+        }
+        setToolTipText(text);
+    }
+
     private void removeShadow() {
         if (shadow != null) {
             if (shadow.isInput()) {
@@ -370,7 +397,7 @@ public class BlockPanel extends JPanel implements MouseListener, MouseMotionList
                         BlockBase base = block.getBase();
                         cursor.add(switch (base.getType()) {
                             case NORMAL, FIELD, VAR_CREATE -> new Block(base);
-                            case IF, IF_ELSE, WHILE -> new ControlBlock(base);
+                            case IF, IF_ELSE, WHILE, FOR_EACH, TRIGGER -> new ControlBlock(base);
                             case VARIABLE -> new VariableBlock(((VariableBlock) block).getVariable());
                             case SHADOW -> new ShadowBlock(block);
                         });
@@ -395,8 +422,8 @@ public class BlockPanel extends JPanel implements MouseListener, MouseMotionList
                 Object input = pointer.get();
                 boolean rightClick = e.getButton() == MouseEvent.BUTTON3;
 
-                if (program.isRunning()) {
-                    program.getThread().stop();
+                if (program.isRunning() || Program.triggers.isArmed(program)) {
+                    program.stop();
                 }
 
                 if (pointer.underMain) {
@@ -423,6 +450,7 @@ public class BlockPanel extends JPanel implements MouseListener, MouseMotionList
                     }
                 }
 
+                program.invalidate();
                 computeBlockSizes();
             }
         }
@@ -489,6 +517,7 @@ public class BlockPanel extends JPanel implements MouseListener, MouseMotionList
     @Override
     public void mouseMoved(MouseEvent e) {
         mouse = e.getPoint();
+        updateToolTip();
         if (groupSelectionBounds.contains(mouse) || blockSelectionBounds.contains(mouse)) {
             removeShadow();
             return;
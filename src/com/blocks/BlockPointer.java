@@ -40,6 +40,7 @@ public class BlockPointer {
     public void setInput(Object object) {
         if (isInput()) {
             block.getInputs()[index] = object;
+            program.invalidate();
         }
     }
 
@@ -54,6 +55,7 @@ public class BlockPointer {
             held = ((ControlBlock) block).getHeldBlocks().get(body);
         if (index <= held.size())
             held.addAll(index, blocks);
+        program.invalidate();
     }
 
     /**
@@ -68,6 +70,7 @@ public class BlockPointer {
             if (index < held.size())
                 held.remove(index);
         }
+        program.invalidate();
     }
 
     /**
@@ -62,7 +62,19 @@ public class BlockRenderer {
             lineColor = blockColor;
         } else {
             blockColor = base.getGroup().color();
-            blockColor = new Color(blockColor.getRed(), blockColor.getGreen(), blockColor.getBlue(), opacity);
+            // Tint blocks towards red by how much time the profiler found them using
+            float heat = panel.heat.getOrDefault(block, 0f);
+            blockColor = new Color(blend(blockColor.getRed(), 230, heat), blend(blockColor.getGreen(), 30, heat),
+                    blend(blockColor.getBlue(), 30, heat), opacity);
+        }
+
+        // Outline blocks with type problems
+        Diagnostic diagnostic = shadow ? null : panel.diagnostics.get(block);
+        Stroke stroke = g.getStroke();
+        if (diagnostic != null) {
+            lineColor = diagnostic.severity() == Diagnostic.Severity.ERROR ? new Color(214, 39, 40, opacity)
+                    : new Color(242, 142, 0, opacity);
+            g.setStroke(new BasicStroke(2));
         }
 
         // Transform block bounds to match rendering
@@ -88,7 +100,7 @@ public class BlockRenderer {
                 g.draw(polygon);
                 block.bounds = transform.createTransformedShape(polygon);
             }
-            case IF, IF_ELSE, WHILE -> {
+            case IF, IF_ELSE, WHILE, FOR_EACH, TRIGGER -> {
                 List<Integer> polyX = new ArrayList<>(java.util.List.of(x, x + 10, x + 10, x + 20, x + 20, x + controlBlock.width, x + controlBlock.width, x + 30, x + 30, x + 20, x + 20, x + 10));
                 List<Integer> polyY = new ArrayList<>(java.util.List.of(y, y, y + 5, y + 5, y, y, y + controlBlock.inputHeight, y + controlBlock.inputHeight, y + controlBlock.inputHeight + 5, y + controlBlock.inputHeight + 5, y + controlBlock.inputHeight, y + controlBlock.inputHeight));
 
@@ -128,6 +140,8 @@ public class BlockRenderer {
             }
         }
 
+        g.setStroke(stroke);
+
         // Stop here if the block is a shadow
         if (shadow)
             return;
@@ -258,4 +272,8 @@ public class BlockRenderer {
         transform.scale(gTransform.getScaleX() / 1.25, gTransform.getScaleY() / 1.25);
         return transform;
     }
+
+    private static int blend(int from, int to, float amount) {
+        return Math.round(from + (to - from) * amount);
+    }
 }
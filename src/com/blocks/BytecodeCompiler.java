@@ -0,0 +1,625 @@
+package com.blocks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compiles a node tree into a JVM class, defined as a hidden class in this package.<br>
+ *     Loops become real loops and block code is called directly from the generated method,
+ *     so every call site only ever sees one block and can be inlined by the JIT.<br>
+ *     Nodes the generator does not know are called through their own {@link Node#invoke()}
+ */
+class BytecodeCompiler {
+    /**
+     * The number of runs and loop iterations after which a program is promoted to bytecode,
+     * or a negative number to never promote programs
+     */
+    static final long THRESHOLD = Long.getLong("automailer.jit.threshold", 10000);
+
+    // Class file version 49 needs no stack map frames, which keeps the generator simple
+    private static final int VERSION = 49;
+    private static final int MAX_CODE_LENGTH = 65535;
+
+    private static final String NODE = "com/blocks/Node";
+    private static final String INVARIANT = "com/blocks/Node$Invariant";
+    private static final String OBJECT = "java/lang/Object";
+    private static final String FRAME = "com/blocks/VariableFrame";
+    private static final String CONSTANTS = "[Ljava/lang/Object;";
+
+    private final ConstantPool pool = new ConstantPool();
+    private final List<Object> constants = new ArrayList<>();
+    private final Code code = new Code();
+    private final int thisClass, constantsField;
+    /**
+     * The local variables holding the outputs of the invariant nodes of the loops generated so far
+     */
+    private final Map<Node.Invariant, Integer> locals = new HashMap<>();
+    private int maxLocals = 1;
+
+    private BytecodeCompiler() {
+        thisClass = pool.classRef("com/blocks/CompiledProgram");
+        constantsField = pool.memberRef(9, "com/blocks/CompiledProgram", "k", CONSTANTS);
+    }
+
+    static boolean shouldPromote(long count) {
+        return THRESHOLD >= 0 && count >= THRESHOLD;
+    }
+
+    /**
+     * Compiles the node tree into a new node backed by a hidden class
+     * @return The compiled node, or null if the program is too large for a class file or could not be compiled
+     */
+    static Node compile(Node node) {
+        try {
+            BytecodeCompiler compiler = new BytecodeCompiler();
+            byte[] bytes = compiler.generate(node);
+            MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(bytes, true);
+            return (Node) lookup.lookupClass().getDeclaredConstructor(Object[].class)
+                    .newInstance((Object) compiler.constants.toArray());
+        } catch (TooLargeException e) {
+            // Large programs are expected to stay in the interpreter
+            return null;
+        } catch (ReflectiveOperationException | LinkageError e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private byte[] generate(Node node) {
+        statement(node);
+        code.op(0x01, 1); // aconst_null
+        code.op(0xb0, -1); // areturn
+        if (code.length() > MAX_CODE_LENGTH)
+            throw new TooLargeException();
+
+        Code init = new Code();
+        init.op(0x2a, 1); // aload_0
+        init.op(0xb7, -1); // invokespecial Node.<init>
+        init.u2(pool.memberRef(10, NODE, "<init>", "()V"));
+        init.op(0x2a, 1); // aload_0
+        init.op(0x2b, 1); // aload_1
+        init.op(0xb5, -2); // putfield k
+        init.u2(constantsField);
+        init.op(0xb1, 0); // return
+
+        int codeName = pool.utf8("Code");
+        int initName = pool.utf8("<init>"), initType = pool.utf8("(" + CONSTANTS + ")V");
+        int invokeName = pool.utf8("invoke"), invokeType = pool.utf8("()L" + OBJECT + ";");
+        int fieldName = pool.utf8("k"), fieldType = pool.utf8(CONSTANTS);
+        int superClass = pool.classRef(NODE);
+
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(VERSION);
+            pool.write(out);
+            out.writeShort(0x0030); // final super
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(0); // interfaces
+
+            out.writeShort(1);
+            out.writeShort(0x0012); // private final
+            out.writeShort(fieldName);
+            out.writeShort(fieldType);
+            out.writeShort(0);
+
+            out.writeShort(2);
+            writeMethod(out, 0x0001, initName, initType, codeName, init, 2);
+            writeMethod(out, 0x0000, invokeName, invokeType, codeName, code, maxLocals);
+            out.writeShort(0); // attributes
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void writeMethod(DataOutputStream out, int access, int name, int type, int codeName,
+                                    Code code, int maxLocals) throws IOException {
+        out.writeShort(access);
+        out.writeShort(name);
+        out.writeShort(type);
+        out.writeShort(1);
+        out.writeShort(codeName);
+        out.writeInt(12 + code.length());
+        out.writeShort(code.maxStack);
+        out.writeShort(maxLocals);
+        out.writeInt(code.length());
+        code.bytes.writeTo(out);
+        out.writeShort(0); // exception table
+        out.writeShort(0); // attributes
+    }
+
+    /**
+     * Generates a node whose output is not used
+     */
+    private void statement(Node node) {
+        if (node instanceof Node.Sequence) {
+            for (Node statement : ((Node.Sequence) node).statements) {
+                checkCancelled();
+                statement(statement);
+            }
+        } else if (node instanceof Node.Normal) {
+            Node.Normal normal = (Node.Normal) node;
+            constant(normal.code, "java/util/function/Consumer");
+            inputs(normal.inputs);
+            code.op(0xb9, -2); // invokeinterface Consumer.accept
+            code.u2(pool.memberRef(11, "java/util/function/Consumer", "accept", "(L" + OBJECT + ";)V"));
+            code.u1(2);
+            code.u1(0);
+        } else if (node instanceof Node.SetVariable && ((Node.SetVariable) node).slot != -1
+                && ((Node.SetVariable) node).value.type() == BlockBase.InputType.DOUBLE) {
+            Node.SetVariable set = (Node.SetVariable) node;
+            variables(set.slot);
+            doubleExpression(set.value);
+            code.op(0xb6, -4); // invokevirtual VariableFrame.setDouble
+            code.u2(pool.memberRef(10, FRAME, "setDouble", "(ID)V"));
+        } else if (node instanceof Node.ChangeVariable && ((Node.ChangeVariable) node).slot != -1) {
+            Node.ChangeVariable change = (Node.ChangeVariable) node;
+            variables(change.slot);
+            doubleExpression(change.delta);
+            code.op(0xb6, -2); // invokevirtual VariableFrame.add
+            code.u2(pool.memberRef(10, FRAME, "add", "(ID)D"));
+            code.op(0x58, -2); // pop2
+        } else if (node instanceof Node.If) {
+            Node.If ifNode = (Node.If) node;
+            condition(ifNode.condition);
+            int end = code.jump(0x99, -1); // ifeq
+            statement(ifNode.body);
+            code.patch(end);
+        } else if (node instanceof Node.IfElse) {
+            Node.IfElse ifElse = (Node.IfElse) node;
+            condition(ifElse.condition);
+            int otherwise = code.jump(0x99, -1); // ifeq
+            statement(ifElse.body);
+            int end = code.jump(0xa7, 0); // goto
+            code.patch(otherwise);
+            statement(ifElse.elseBody);
+            code.patch(end);
+        } else if (node instanceof Node.While) {
+            Node.While whileNode = (Node.While) node;
+            // Each run of the loop starts without the outputs of its invariant nodes
+            for (Node.Invariant invariant : whileNode.invariants) {
+                if (maxLocals > 255)
+                    throw new TooLargeException();
+                locals.put(invariant, maxLocals);
+                code.op(0x01, 1); // aconst_null
+                code.op(0x3a, -1); // astore
+                code.u1(maxLocals++);
+            }
+            int start = code.length();
+            condition(whileNode.condition);
+            int end = code.jump(0x99, -1); // ifeq
+            statement(whileNode.body);
+            checkCancelled();
+            code.jumpTo(0xa7, start); // goto
+            code.patch(end);
+        } else {
+            expression(node);
+            code.op(0x57, -1); // pop
+        }
+    }
+
+    /**
+     * Generates a node that leaves its output on the stack
+     */
+    private void expression(Node node) {
+        if (node instanceof Node.Literal && !((Node.Literal) node).mutable) {
+            constant(((Node.Literal) node).value, null);
+        } else if (node instanceof Node.Convert) {
+            Node.Convert convert = (Node.Convert) node;
+            constant(convert.converter, "java/util/function/Function");
+            expression(convert.input);
+            apply();
+        } else if (node instanceof Node.Field) {
+            Node.Field field = (Node.Field) node;
+            constant(field.code, "java/util/function/Function");
+            inputs(field.inputs);
+            apply();
+        } else if (node instanceof Node.DoubleBinary) {
+            doubleExpression(node);
+            code.op(0xb8, -1); // invokestatic Double.valueOf
+            code.u2(pool.memberRef(10, "java/lang/Double", "valueOf", "(D)Ljava/lang/Double;"));
+        } else if (node instanceof Node.DoubleToInt) {
+            intExpression(node);
+            code.op(0xb8, 0); // invokestatic Integer.valueOf
+            code.u2(pool.memberRef(10, "java/lang/Integer", "valueOf", "(I)Ljava/lang/Integer;"));
+        } else if (node instanceof Node.DoubleCompare || node instanceof Node.BooleanBinary
+                || node instanceof Node.BooleanUnary) {
+            condition(node);
+            code.op(0xb8, 0); // invokestatic Boolean.valueOf
+            code.u2(pool.memberRef(10, "java/lang/Boolean", "valueOf", "(Z)Ljava/lang/Boolean;"));
+        } else if (locals.containsKey(node)) {
+            // Run the invariant node only if its local is empty or out of date, like Node.Invariant does
+            int local = locals.get(node);
+            constant(node, INVARIANT);
+            code.op(0x19, 1); // aload
+            code.u1(local);
+            code.op(0xb6, -1); // invokevirtual Invariant.reuse
+            code.u2(pool.memberRef(10, INVARIANT, "reuse", "(L" + OBJECT + ";)L" + OBJECT + ";"));
+            code.op(0x59, 1); // dup
+            int kept = code.jump(0xc7, -1); // ifnonnull
+            code.op(0x57, -1); // pop
+            constant(node, INVARIANT);
+            code.op(0xb6, 1); // invokevirtual Invariant.version
+            code.u2(pool.memberRef(10, INVARIANT, "version", "()J"));
+            expression(((Node.Invariant) node).expression);
+            code.op(0x5b, 1); // dup_x2
+            code.op(0xb8, -2); // invokestatic Invariant.keep
+            code.u2(pool.memberRef(10, INVARIANT, "keep", "(JL" + OBJECT + ";)L" + INVARIANT + "$Kept;"));
+            code.op(0x3a, -1); // astore
+            code.u1(local);
+            code.patch(kept);
+        } else {
+            constant(node, NODE);
+            code.op(0xb6, 0); // invokevirtual Node.invoke
+            code.u2(pool.memberRef(10, NODE, "invoke", "()L" + OBJECT + ";"));
+        }
+    }
+
+    /**
+     * Calls the function below its argument on the stack
+     */
+    private void apply() {
+        code.op(0xb9, -1); // invokeinterface Function.apply
+        code.u2(pool.memberRef(11, "java/util/function/Function", "apply", "(L" + OBJECT + ";)L" + OBJECT + ";"));
+        code.u1(2);
+        code.u1(0);
+    }
+
+    /**
+     * Generates a node that leaves a primitive double on the stack
+     */
+    private void doubleExpression(Node node) {
+        if (node instanceof Node.DoubleBinary) {
+            Node.DoubleBinary binary = (Node.DoubleBinary) node;
+            constant(binary.code, "java/util/function/DoubleBinaryOperator");
+            doubleExpression(binary.a);
+            doubleExpression(binary.b);
+            code.op(0xb9, -3); // invokeinterface DoubleBinaryOperator.applyAsDouble
+            code.u2(pool.memberRef(11, "java/util/function/DoubleBinaryOperator", "applyAsDouble", "(DD)D"));
+            code.u1(5);
+            code.u1(0);
+        } else if (node instanceof Node.Literal && ((Node.Literal) node).value instanceof Double) {
+            code.op(0x14, 2); // ldc2_w
+            code.u2(pool.doubleValue((Double) ((Node.Literal) node).value));
+        } else if (node instanceof Node.Variable && ((Node.Variable) node).slot != -1) {
+            variables(((Node.Variable) node).slot);
+            code.op(0xb6, 0); // invokevirtual VariableFrame.getDouble
+            code.u2(pool.memberRef(10, FRAME, "getDouble", "(I)D"));
+        } else if (locals.containsKey(node)) {
+            expression(node);
+            unbox("java/lang/Double", "doubleValue", "()D", 1);
+        } else {
+            constant(node, NODE);
+            code.op(0xb6, 1); // invokevirtual Node.invokeDouble
+            code.u2(pool.memberRef(10, NODE, "invokeDouble", "()D"));
+        }
+    }
+
+    /**
+     * Generates a node that leaves a primitive int on the stack
+     */
+    private void intExpression(Node node) {
+        if (node instanceof Node.DoubleToInt) {
+            Node.DoubleToInt toInt = (Node.DoubleToInt) node;
+            constant(toInt.code, "java/util/function/DoubleToIntFunction");
+            doubleExpression(toInt.a);
+            code.op(0xb9, -2); // invokeinterface DoubleToIntFunction.applyAsInt
+            code.u2(pool.memberRef(11, "java/util/function/DoubleToIntFunction", "applyAsInt", "(D)I"));
+            code.u1(3);
+            code.u1(0);
+        } else if (locals.containsKey(node)) {
+            expression(node);
+            unbox("java/lang/Integer", "intValue", "()I", 0);
+        } else {
+            constant(node, NODE);
+            code.op(0xb6, 0); // invokevirtual Node.invokeInt
+            code.u2(pool.memberRef(10, NODE, "invokeInt", "()I"));
+        }
+    }
+
+    /**
+     * Generates a condition that leaves a primitive boolean on the stack
+     */
+    private void condition(Node node) {
+        if (node instanceof Node.DoubleCompare) {
+            Node.DoubleCompare compare = (Node.DoubleCompare) node;
+            String type = "com/blocks/BlockBase$DoubleComparator";
+            constant(compare.code, type);
+            doubleExpression(compare.a);
+            doubleExpression(compare.b);
+            code.op(0xb9, -4); // invokeinterface DoubleComparator.compare
+            code.u2(pool.memberRef(11, type, "compare", "(DD)Z"));
+            code.u1(5);
+            code.u1(0);
+        } else if (node instanceof Node.BooleanBinary) {
+            Node.BooleanBinary binary = (Node.BooleanBinary) node;
+            String type = "com/blocks/BlockBase$BooleanOperator";
+            constant(binary.code, type);
+            condition(binary.a);
+            condition(binary.b);
+            code.op(0xb9, -2); // invokeinterface BooleanOperator.apply
+            code.u2(pool.memberRef(11, type, "apply", "(ZZ)Z"));
+            code.u1(3);
+            code.u1(0);
+        } else if (node instanceof Node.BooleanUnary) {
+            Node.BooleanUnary unary = (Node.BooleanUnary) node;
+            String type = "com/blocks/BlockBase$BooleanFunction";
+            constant(unary.code, type);
+            condition(unary.a);
+            code.op(0xb9, -1); // invokeinterface BooleanFunction.apply
+            code.u2(pool.memberRef(11, type, "apply", "(Z)Z"));
+            code.u1(2);
+            code.u1(0);
+        } else if (node instanceof Node.Literal && ((Node.Literal) node).value instanceof Boolean) {
+            code.integer((Boolean) ((Node.Literal) node).value ? 1 : 0, pool);
+        } else if (locals.containsKey(node)) {
+            expression(node);
+            unbox("java/lang/Boolean", "booleanValue", "()Z", 0);
+        } else {
+            constant(node, NODE);
+            code.op(0xb6, 0); // invokevirtual Node.invokeBoolean
+            code.u2(pool.memberRef(10, NODE, "invokeBoolean", "()Z"));
+        }
+    }
+
+    /**
+     * Casts the object on the stack to a box class and unboxes it, failing the same way a cast in a node does
+     * @param stackChange The change in stack size of the unboxing call, 1 for a double
+     */
+    private void unbox(String type, String name, String descriptor, int stackChange) {
+        code.op(0xc0, 0); // checkcast
+        code.u2(pool.classRef(type));
+        code.op(0xb6, stackChange); // invokevirtual
+        code.u2(pool.memberRef(10, type, name, descriptor));
+    }
+
+    /**
+     * Ends the program here if it has been stopped
+     * @see Node#checkCancelled()
+     */
+    private void checkCancelled() {
+        code.op(0xb8, 0); // invokestatic Node.checkCancelled
+        code.u2(pool.memberRef(10, NODE, "checkCancelled", "()V"));
+    }
+
+    /**
+     * Pushes the global variable frame and a slot in it
+     */
+    private void variables(int slot) {
+        code.op(0xb2, 1); // getstatic Program.variables
+        code.u2(pool.memberRef(9, "com/blocks/Program", "variables", "L" + FRAME + ";"));
+        code.integer(slot, pool);
+    }
+
+    /**
+     * Generates a new array holding the outputs of the input nodes
+     */
+    private void inputs(Node[] inputs) {
+        code.integer(inputs.length, pool);
+        code.op(0xbd, 0); // anewarray Object
+        code.u2(pool.classRef(OBJECT));
+        for (int i = 0; i < inputs.length; i++) {
+            code.op(0x59, 1); // dup
+            code.integer(i, pool);
+            expression(inputs[i]);
+            code.op(0x53, -3); // aastore
+        }
+    }
+
+    /**
+     * Loads a value from the constants array of the generated class
+     * @param type The internal name of the class to cast the value to, or null to leave it uncast
+     */
+    private void constant(Object value, String type) {
+        int index = constants.size();
+        constants.add(value);
+        code.op(0x2a, 1); // aload_0
+        code.op(0xb4, 0); // getfield k
+        code.u2(constantsField);
+        code.integer(index, pool);
+        code.op(0x32, -1); // aaload
+        if (type != null) {
+            code.op(0xc0, 0); // checkcast
+            code.u2(pool.classRef(type));
+        }
+    }
+
+    /**
+     * Thrown while generating a program whose method or jumps do not fit in a class file
+     */
+    private static final class TooLargeException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        TooLargeException() {
+            super("Program is too large to compile", null, false, false);
+        }
+    }
+
+    /**
+     * The bytecode of a method, keeping track of its maximum stack size
+     */
+    private static class Code {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        int stack, maxStack;
+
+        int length() {
+            return bytes.size();
+        }
+
+        void op(int opcode, int stackChange) {
+            bytes.write(opcode);
+            stack += stackChange;
+            if (stack > maxStack) maxStack = stack;
+        }
+
+        void u1(int value) {
+            bytes.write(value);
+        }
+
+        void u2(int value) {
+            bytes.write(value >> 8);
+            bytes.write(value);
+        }
+
+        void integer(int value, ConstantPool pool) {
+            if (value >= -1 && value <= 5) {
+                op(0x03 + value, 1); // iconst
+            } else if (value <= Byte.MAX_VALUE) {
+                op(0x10, 1); // bipush
+                u1(value);
+            } else if (value <= Short.MAX_VALUE) {
+                op(0x11, 1); // sipush
+                u2(value);
+            } else {
+                op(0x13, 1); // ldc_w
+                u2(pool.integer(value));
+            }
+        }
+
+        /**
+         * Writes a jump with an offset to be patched later
+         * @return The position of the jump to patch
+         */
+        int jump(int opcode, int stackChange) {
+            int position = length();
+            op(opcode, stackChange);
+            u2(0);
+            return position;
+        }
+
+        void jumpTo(int opcode, int target) {
+            int position = length();
+            op(opcode, 0);
+            u2(offset(position, target));
+        }
+
+        /**
+         * Points a jump written by {@link #jump(int, int)} to the current position
+         */
+        void patch(int position) {
+            byte[] code = bytes.toByteArray();
+            int offset = offset(position, code.length);
+            code[position + 1] = (byte) (offset >> 8);
+            code[position + 2] = (byte) offset;
+            bytes.reset();
+            bytes.write(code, 0, code.length);
+        }
+
+        private static int offset(int from, int to) {
+            int offset = to - from;
+            if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE)
+                throw new TooLargeException();
+            return offset;
+        }
+    }
+
+    /**
+     * The constant pool of the generated class, reusing equal entries
+     */
+    private static class ConstantPool {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(bytes);
+        private final Map<String, Integer> entries = new HashMap<>();
+        private int count = 1;
+
+        int utf8(String value) {
+            Integer index = entries.get("U" + value);
+            if (index != null)
+                return index;
+            try {
+                out.writeByte(1);
+                out.writeUTF(value);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            return add("U" + value);
+        }
+
+        int integer(int value) {
+            Integer index = entries.get("I" + value);
+            if (index != null)
+                return index;
+            write(3, value >> 16, value & 0xFFFF);
+            return add("I" + value);
+        }
+
+        int doubleValue(double value) {
+            Integer index = entries.get("D" + value);
+            if (index != null)
+                return index;
+            long bits = Double.doubleToRawLongBits(value);
+            try {
+                out.writeByte(6);
+                out.writeLong(bits);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            int added = add("D" + value);
+            count++; // Doubles take up two entries
+            return added;
+        }
+
+        int classRef(String name) {
+            Integer index = entries.get("C" + name);
+            if (index != null)
+                return index;
+            int nameIndex = utf8(name);
+            write(7, nameIndex, -1);
+            return add("C" + name);
+        }
+
+        /**
+         * Adds a field (9), method (10) or interface method (11) reference
+         */
+        int memberRef(int tag, String owner, String name, String type) {
+            String key = tag + owner + "." + name + type;
+            Integer index = entries.get(key);
+            if (index != null)
+                return index;
+            int ownerIndex = classRef(owner);
+            int nameAndType = nameAndType(name, type);
+            write(tag, ownerIndex, nameAndType);
+            return add(key);
+        }
+
+        private int nameAndType(String name, String type) {
+            Integer index = entries.get("N" + name + type);
+            if (index != null)
+                return index;
+            int nameIndex = utf8(name), typeIndex = utf8(type);
+            write(12, nameIndex, typeIndex);
+            return add("N" + name + type);
+        }
+
+        private void write(int tag, int first, int second) {
+            try {
+                out.writeByte(tag);
+                out.writeShort(first);
+                if (second != -1)
+                    out.writeShort(second);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private int add(String key) {
+            entries.put(key, count);
+            return count++;
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeShort(count);
+            bytes.writeTo(out);
+        }
+    }
+}
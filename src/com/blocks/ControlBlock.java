@@ -70,6 +70,12 @@ public class ControlBlock extends Block {
                         block.invoke();
                 }
                 break;
+            case FOR_EACH:
+                Node.ForEach.each((List<?>) invokeInputs()[0], () -> {
+                    for (Block block : heldBlocks.get(0))
+                        block.invoke();
+                });
+                break;
         }
         return null;
     }
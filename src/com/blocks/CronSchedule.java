@@ -0,0 +1,122 @@
+package com.blocks;
+
+import java.time.LocalTime;
+import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A schedule written as a five field cron expression: minute, hour, day of month, month and day of week.<br>
+ *     Fields can be *, a number, a range like 1-5, a list like 1,15 and a step like *&#47;10 or 8-18/2.
+ *     Months and days of the week can also be written as names like JAN or MON, and Sunday is both 0 and 7
+ */
+public class CronSchedule implements Schedule {
+    private static final List<String> MONTHS = List.of("JAN", "FEB", "MAR", "APR", "MAY", "JUN", "JUL", "AUG", "SEP",
+            "OCT", "NOV", "DEC");
+    private static final List<String> DAYS = List.of("SUN", "MON", "TUE", "WED", "THU", "FRI", "SAT");
+
+    private final BitSet minutes, hours, daysOfMonth, months, daysOfWeek;
+    private final boolean anyDayOfMonth, anyDayOfWeek;
+
+    private CronSchedule(String[] fields) {
+        minutes = parseField(fields[0], 0, 59, null);
+        hours = parseField(fields[1], 0, 23, null);
+        daysOfMonth = parseField(fields[2], 1, 31, null);
+        months = parseField(fields[3], 1, 12, MONTHS);
+        daysOfWeek = parseField(fields[4], 0, 7, DAYS);
+        if (daysOfWeek.get(7))
+            daysOfWeek.set(0);
+        anyDayOfMonth = fields[2].equals("*");
+        anyDayOfWeek = fields[4].equals("*");
+    }
+
+    /**
+     * Parses a cron expression
+     * @throws IllegalArgumentException If the expression is not valid
+     */
+    public static CronSchedule parse(String expression) {
+        String[] fields = expression.trim().split("\\s+");
+        if (fields.length != 5)
+            throw new IllegalArgumentException("A schedule needs 5 fields: minute, hour, day, month and day of week");
+        return new CronSchedule(fields);
+    }
+
+    @Override
+    public ZonedDateTime next(ZonedDateTime after) {
+        ZonedDateTime time = after.truncatedTo(ChronoUnit.MINUTES).plusMinutes(1);
+        // Every valid expression fires within a few years, even on the 29th of February
+        ZonedDateTime limit = time.plusYears(5);
+        while (time.isBefore(limit)) {
+            if (!months.get(time.getMonthValue())) {
+                time = time.plusMonths(1).withDayOfMonth(1).with(LocalTime.MIDNIGHT);
+            } else if (!matchesDay(time)) {
+                time = time.plusDays(1).with(LocalTime.MIDNIGHT);
+            } else if (!hours.get(time.getHour())) {
+                time = time.plusHours(1).truncatedTo(ChronoUnit.HOURS);
+            } else if (!minutes.get(time.getMinute())) {
+                time = time.plusMinutes(1);
+            } else {
+                return time;
+            }
+        }
+        throw new IllegalStateException("The schedule never fires");
+    }
+
+    /**
+     * Like cron, when both day fields are restricted a day matching either of them matches
+     */
+    private boolean matchesDay(ZonedDateTime time) {
+        boolean dayOfMonth = daysOfMonth.get(time.getDayOfMonth());
+        boolean dayOfWeek = daysOfWeek.get(time.getDayOfWeek().getValue() % 7);
+        if (anyDayOfMonth || anyDayOfWeek)
+            return dayOfMonth && dayOfWeek;
+        return dayOfMonth || dayOfWeek;
+    }
+
+    private static BitSet parseField(String field, int min, int max, List<String> names) {
+        BitSet values = new BitSet(max + 1);
+        for (String part : field.split(",")) {
+            int step = 1;
+            int slash = part.indexOf('/');
+            if (slash != -1) {
+                step = parseValue(part.substring(slash + 1), 1, max, null);
+                part = part.substring(0, slash);
+            }
+
+            int start, end;
+            if (part.equals("*")) {
+                start = min;
+                end = max;
+            } else if (part.indexOf('-') > 0) {
+                int dash = part.indexOf('-');
+                start = parseValue(part.substring(0, dash), min, max, names);
+                end = parseValue(part.substring(dash + 1), min, max, names);
+            } else {
+                start = parseValue(part, min, max, names);
+                end = slash == -1 ? start : max;
+            }
+            if (start > end)
+                throw new IllegalArgumentException("\"" + part + "\" goes backwards");
+            for (int i = start; i <= end; i += step)
+                values.set(i);
+        }
+        return values;
+    }
+
+    private static int parseValue(String value, int min, int max, List<String> names) {
+        if (names != null) {
+            int index = names.indexOf(value.toUpperCase(Locale.ROOT));
+            if (index != -1)
+                return names == MONTHS ? index + 1 : index;
+        }
+        try {
+            int number = Integer.parseInt(value);
+            if (number >= min && number <= max)
+                return number;
+        } catch (NumberFormatException ignored) {
+        }
+        throw new IllegalArgumentException("\"" + value + "\" is not a value from " + min + " to " + max);
+    }
+}
@@ -0,0 +1,19 @@
+package com.blocks;
+
+/**
+ * A problem with the types of a block, found when its program is compiled
+ * @param block The block with the problem
+ * @param severity Errors stop the program from running, warnings only mark the block in the editor
+ * @param message A description of the problem to show to the user
+ */
+public record Diagnostic(Block block, Severity severity, String message) {
+    public enum Severity {
+        WARNING,
+        ERROR
+    }
+
+    @Override
+    public String toString() {
+        return severity + " in " + block.getBase().getBaseCode() + ": " + message;
+    }
+}
@@ -0,0 +1,1458 @@
+package com.blocks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.DoubleToIntFunction;
+import java.util.function.Function;
+
+/**
+ * An executable node compiled from a block.<br>
+ *     Nodes are separate from the editor model, their inputs and conversions are resolved once
+ *     when the program is compiled
+ * @see ProgramCompiler
+ */
+abstract class Node {
+    private static final Node[] NO_CHILDREN = new Node[0];
+
+    /**
+     * The block this node was compiled from, or null if it was added by the compiler
+     */
+    Block block;
+    /**
+     * The height of the node's operands if the scheduler can run it with {@link #invoke()}, -1 if the scheduler
+     * has to step through it, or 0 if that has not been worked out yet
+     * @see ProgramScheduler
+     */
+    int directHeight;
+
+    /**
+     * Runs the node, returning its output if it is a field node
+     */
+    abstract Object invoke();
+
+    /**
+     * Gets the nodes this node runs, in the order they are run
+     */
+    Node[] children() {
+        return NO_CHILDREN;
+    }
+
+    /**
+     * Replaces one of the nodes this node runs, used by optimizers before the node is first run
+     * @param index The index of the node in {@link #children()}
+     */
+    void setChild(int index, Node child) {
+        throw new IndexOutOfBoundsException(index);
+    }
+
+    /**
+     * Gets the nodes whose outputs {@link #apply(Object[])} is given, in the order they are run.<br>
+     *     Control nodes choose which of their children run, so the scheduler steps through them itself
+     */
+    Node[] operands() {
+        return children();
+    }
+
+    /**
+     * Runs the node with the outputs of its operands already worked out, so the scheduler can run a tree of any
+     * depth without recursion. Nodes without operands just run
+     */
+    Object apply(Object[] operands) {
+        return invoke();
+    }
+
+    /**
+     * Gets the type this node always outputs, or ANY if it is not known
+     */
+    BlockBase.InputType type() {
+        return BlockBase.InputType.ANY;
+    }
+
+    /**
+     * Runs a node that outputs a double without boxing the output where possible
+     */
+    double invokeDouble() {
+        return (double) invoke();
+    }
+
+    /**
+     * Runs a node that outputs an integer without boxing the output where possible
+     */
+    int invokeInt() {
+        return (int) invoke();
+    }
+
+    /**
+     * Runs a node that outputs a boolean without boxing the output where possible
+     */
+    boolean invokeBoolean() {
+        return (boolean) invoke();
+    }
+
+    /**
+     * A constant input value, already converted to the type of the input it fills.<br>
+     *     Lists that blocks can change, such as an empty list input, are copied every time the node runs,
+     *     so items added to them do not carry over to the next iteration or run
+     */
+    static final class Literal extends Node {
+        final Object value;
+        final boolean mutable;
+
+        Literal(Object value) {
+            this.value = value;
+            this.mutable = value instanceof ArrayList;
+        }
+
+        @Override
+        Object invoke() {
+            return mutable ? new ArrayList<>((List<?>) value) : value;
+        }
+
+        @Override
+        BlockBase.InputType type() {
+            return typeOf(value);
+        }
+    }
+
+    /**
+     * Converts the output of a field node to the type of the input it fills.<br>
+     *     Only inserted where the types differ, with the conversion chosen from the type the node outputs
+     * @see Block#converter(BlockBase.InputType, BlockBase.InputType)
+     */
+    static final class Convert extends Node {
+        final BlockBase.InputType type, from;
+        final Function<Object, Object> converter;
+        Node input;
+
+        Convert(BlockBase.InputType type, Node input) {
+            this.type = type;
+            this.input = input;
+            this.from = input.type();
+            this.converter = Block.converter(from, type);
+        }
+
+        @Override
+        Node[] children() {
+            return new Node[]{input};
+        }
+
+        @Override
+        void setChild(int index, Node child) {
+            if (index != 0) throw new IndexOutOfBoundsException(index);
+            input = child;
+        }
+
+        @Override
+        Object invoke() {
+            return converter.apply(input.invoke());
+        }
+
+        @Override
+        Object apply(Object[] operands) {
+            return converter.apply(operands[0]);
+        }
+
+        @Override
+        BlockBase.InputType type() {
+            return type;
+        }
+
+        @Override
+        double invokeDouble() {
+            return switch (from) {
+                case DOUBLE -> input.invokeDouble();
+                case INTEGER -> input.invokeInt();
+                case BOOLEAN -> input.invokeBoolean() ? 1.0 : 0.0;
+                default -> (double) invoke();
+            };
+        }
+
+        @Override
+        int invokeInt() {
+            return switch (from) {
+                case DOUBLE -> (int) input.invokeDouble();
+                case BOOLEAN -> input.invokeBoolean() ? 1 : 0;
+                default -> (int) invoke();
+            };
+        }
+
+        @Override
+        boolean invokeBoolean() {
+            return switch (from) {
+                case DOUBLE -> input.invokeDouble() > 0;
+                case INTEGER -> input.invokeInt() > 0;
+                default -> (boolean) invoke();
+            };
+        }
+    }
+
+    /**
+     * Runs a field block that takes two doubles and outputs a double
+     */
+    static final class DoubleBinary extends Node {
+        final DoubleBinaryOperator code;
+        Node a, b;
+
+        DoubleBinary(DoubleBinaryOperator code, Node a, Node b) {
+            this.code = code;
+            this.a = a;
+            this.b = b;
+        }
+
+        @Override
+        Node[] children() {
+            return new Node[]{a, b};
+        }
+
+        @Override
+        void setChild(int index, Node child) {
+            switch (index) {
+                case 0 -> a = child;
+                case 1 -> b = child;
+                default -> throw new IndexOutOfBoundsException(index);
+            }
+        }
+
+        @Override
+        Object invoke() {
+            return invokeDouble();
+        }
+
+        @Override
+        Object apply(Object[] operands) {
+            return code.applyAsDouble((double) operands[0], (double) operands[1]);
+        }
+
+        @Override
+        BlockBase.InputType type() {
+            return BlockBase.InputType.DOUBLE;
+        }
+
+        @Override
+        double invokeDouble() {
+            return code.applyAsDouble(a.invokeDouble(), b.invokeDouble());
+        }
+    }
+
+    /**
+     * Runs a field block that compares two doubles
+     */
+    static final class DoubleCompare extends Node {
+        final BlockBase.DoubleComparator code;
+        Node a, b;
+
+        DoubleCompare(BlockBase.DoubleComparator code, Node a, Node b) {
+            this.code = code;
+            this.a = a;
+            this.b = b;
+        }
+
+        @Override
+        Node[] children() {
+            return new Node[]{a, b};
+        }
+
+        @Override
+        void setChild(int index, Node child) {
+            switch (index) {
+                case 0 -> a = child;
+                case 1 -> b = child;
+                default -> throw new IndexOutOfBoundsException(index);
+            }
+        }
+
+        @Override
+        Object invoke() {
+            return invokeBoolean();
+        }
+
+        @Override
+        Object apply(Object[] operands) {
+            return code.compare((double) operands[0], (double) operands[1]);
+        }
+
+        @Override
+        BlockBase.InputType type() {
+            return BlockBase.InputType.BOOLEAN;
+        }
+
+        @Override
+        boolean invokeBoolean() {
+            return code.compare(a.invokeDouble(), b.invokeDouble());
+        }
+    }
+
+    /**
+     * Runs a field block that takes a double and outputs an integer
+     */
+    static final class DoubleToInt extends Node {
+        final DoubleToIntFunction code;
+        Node a;
+
+        DoubleToInt(DoubleToIntFunction code, Node a) {
+            this.code = code;
+            this.a = a;
+        }
+
+        @Override
+        Node[] children() {
+            return new Node[]{a};
+        }
+
+        @Override
+        void setChild(int index, Node child) {
+            if (index != 0) throw new IndexOutOfBoundsException(index);
+            a = child;
+        }
+
+        @Override
+        Object invoke() {
+            return invokeInt();
+        }
+
+        @Override
+        Object apply(Object[] operands) {
+            return code.applyAsInt((double) operands[0]);
+        }
+
+        @Override
+        BlockBase.InputType type() {
+            return BlockBase.InputType.INTEGER;
+        }
+
+        @Override
+        int invokeInt() {
+            return code.applyAsInt(a.invokeDouble());
+        }
+    }
+
+    /**
+     * Runs a field block that takes two booleans and outputs a boolean
+     */
+    static final class BooleanBinary extends Node {
+        final BlockBase.BooleanOperator code;
+        Node a, b;
+
+        BooleanBinary(BlockBase.BooleanOperator code, Node a, Node b) {
+            this.code = code;
+            this.a = a;
+            this.b = b;
+        }
+
+        @Override
+        Node[] children() {
+            return new Node[]{a, b};
+        }
+
+        @Override
+        void setChild(int index, Node child) {
+            switch (index) {
+                case 0 -> a = child;
+                case 1 -> b = child;
+                default -> throw new IndexOutOfBoundsException(index);
+            }
+        }
+
+        @Override
+        Object invoke() {
+            return invokeBoolean();
+        }
+
+        @Override
+        Object apply(Object[] operands) {
+            return code.apply((boolean) operands[0], (boolean) operands[1]);
+        }
+
+        @Override
+        BlockBase.InputType type() {
+            return BlockBase.InputType.BOOLEAN;
+        }
+
+        @Override
+        boolean invokeBoolean() {
+            // Both inputs are always run, the same as for boxed blocks
+            boolean a = this.a.invokeBoolean();
+            return code.apply(a, b.invokeBoolean());
+        }
+    }
+
+    /**
+     * Runs a field block that takes a boolean and outputs a boolean
+     */
+    static final class BooleanUnary extends Node {
+        final BlockBase.BooleanFunction code;
+        Node a;
+
+        BooleanUnary(BlockBase.BooleanFunction code, Node a) {
+            this.code = code;
+            this.a = a;
+        }
+
+        @Override
+        Node[] children() {
+            return new Node[]{a};
+        }
+
+        @Override
+        void setChild(int index, Node child) {
+            if (index != 0) throw new IndexOutOfBoundsException(index);
+            a = child;
+        }
+
+        @Override
+        Object invoke() {
+            return invokeBoolean();
+        }
+
+        @Override
+        Object apply(Object[] operands) {
+            return code.apply((boolean) operands[0]);
+        }
+
+        @Override
+        BlockBase.InputType type() {
+            return BlockBase.InputType.BOOLEAN;
+        }
+
+        @Override
+        boolean invokeBoolean() {
+            return code.apply(a.invokeBoolean());
+        }
+    }
+
+    /**
+     * Runs the code of a field block and returns its output
+     */
+    static final class Field extends Node {
+        final Function<Object[], Object> code;
+        final Node[] inputs;
+        final BlockBase.InputType outputType;
+
+        Field(Function<Object[], Object> code, Node[] inputs, BlockBase.InputType outputType) {
+            this.code = code;
+            this.inputs = inputs;
+            this.outputType = outputType;
+        }
+
+        @Override
+        Node[] children() {
+            return inputs;
+        }
+
+        @Override
+        void setChild(int index, Node child) {
+            inputs[index] = child;
+        }
+
+        @Override
+        Object invoke() {
+            return code.apply(invokeAll(inputs));
+        }
+
+        @Override
+        Object apply(Object[] operands) {
+            return code.apply(operands);
+        }
+
+        @Override
+        BlockBase.InputType type() {
+            return outputType;
+        }
+    }
+
+    /**
+     * Runs the code of a normal block
+     */
+    static final class Normal extends Node {
+        final Consumer<Object[]> code;
+        final Node[] inputs;
+
+        Normal(Consumer<Object[]> code, Node[] inputs) {
+            this.code = code;
+            this.inputs = inputs;
+        }
+
+        @Override
+        Node[] children() {
+            return inputs;
+        }
+
+        @Override
+        void setChild(int index, Node child) {
+            inputs[index] = child;
+        }
+
+        @Override
+        Object invoke() {
+            code.accept(invokeAll(inputs));
+            return null;
+        }
+
+        @Override
+        Object apply(Object[] operands) {
+            code.accept(operands);
+            return null;
+        }
+    }
+
+    /**
+     * Reads a global variable from its slot, converting it to the type of the input it fills
+     */
+    static final class Variable extends Node {
+        final int slot;
+        final BlockBase.InputType type;
+
+        /**
+         * @param slot The slot of the variable, or -1 if it does not exist
+         */
+        Variable(int slot, BlockBase.InputType type) {
+            this.slot = slot;
+            this.type = type;
+        }
+
+        /**
+         * Gets a node that reads the same variable and converts it to the given type
+         */
+        Variable as(BlockBase.InputType type) {
+            Variable variable = new Variable(slot, type);
+            variable.block = block;
+            return variable;
+        }
+
+        @Override
+        Object invoke() {
+            Object value = slot == -1 ? null : Program.variables.get(slot);
+            return type == BlockBase.InputType.ANY ? value : Block.convert(type, value);
+        }
+
+        @Override
+        BlockBase.InputType type() {
+            return type;
+        }
+
+        @Override
+        double invokeDouble() {
+            if (slot == -1)
+                return (double) invoke();
+            return Program.variables.getDouble(slot);
+        }
+
+        @Override
+        int invokeInt() {
+            if (slot == -1)
+                return (int) invoke();
+            return (int) Program.variables.getDouble(slot);
+        }
+    }
+
+    /**
+     * Sets a global variable in its slot, storing numbers without boxing them
+     */
+    static final class SetVariable extends Node {
+        final int slot;
+        Node value;
+
+        /**
+         * @param slot The slot of the variable, or -1 if it does not exist
+         */
+        SetVariable(int slot, Node value) {
+            this.slot = slot;
+            this.value = value;
+        }
+
+        @Override
+        Node[] children() {
+            return new Node[]{value};
+        }
+
+        @Override
+        void setChild(int index, Node child) {
+            if (index != 0) throw new IndexOutOfBoundsException(index);
+            value = child;
+        }
+
+        @Override
+        Object invoke() {
+            if (value.type() == BlockBase.InputType.DOUBLE) {
+                double number = value.invokeDouble();
+                if (slot != -1)
+                    Program.variables.setDouble(slot, number);
+            } else {
+                Object object = value.invoke();
+                if (slot != -1)
+                    Program.variables.set(slot, object);
+            }
+            return null;
+        }
+
+        @Override
+        Object apply(Object[] operands) {
+            if (slot != -1) {
+                if (value.type() == BlockBase.InputType.DOUBLE)
+                    Program.variables.setDouble(slot, (double) operands[0]);
+                else
+                    Program.variables.set(slot, operands[0]);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Atomically adds to a global variable in its slot
+     */
+    static final class ChangeVariable extends Node {
+        final int slot;
+        Node delta;
+
+        /**
+         * @param slot The slot of the variable, or -1 if it does not exist
+         */
+        ChangeVariable(int slot, Node delta) {
+            this.slot = slot;
+            this.delta = delta;
+        }
+
+        @Override
+        Node[] children() {
+            return new Node[]{delta};
+        }
+
+        @Override
+        void setChild(int index, Node child) {
+            if (index != 0) throw new IndexOutOfBoundsException(index);
+            delta = child;
+        }
+
+        @Override
+        Object invoke() {
+            double value = delta.invokeDouble();
+            if (slot != -1)
+                Program.variables.add(slot, value);
+            return null;
+        }
+
+        @Override
+        Object apply(Object[] operands) {
+            if (slot != -1)
+                Program.variables.add(slot, (double) operands[0]);
+            return null;
+        }
+    }
+
+    /**
+     * Times the node it wraps for the profiler
+     * @see Profiler
+     */
+    static final class Profiled extends Node {
+        Node node;
+        final Profiler.Entry entry;
+
+        Profiled(Node node, Profiler.Entry entry) {
+            this.node = node;
+            this.entry = entry;
+        }
+
+        @Override
+        Node[] children() {
+            return new Node[]{node};
+        }
+
+        @Override
+        void setChild(int index, Node child) {
+            if (index != 0) throw new IndexOutOfBoundsException(index);
+            node = child;
+        }
+
+        @Override
+        BlockBase.InputType type() {
+            return node.type();
+        }
+
+        @Override
+        Object invoke() {
+            long outer = Profiler.enter();
+            long start = System.nanoTime();
+            try {
+                return node.invoke();
+            } finally {
+                entry.exit(start, outer);
+            }
+        }
+
+        @Override
+        Object apply(Object[] operands) {
+            // Only nodes run directly are timed, the blocks inside a stepped node are timed by their own nodes
+            return operands[0];
+        }
+
+        @Override
+        double invokeDouble() {
+            long outer = Profiler.enter();
+            long start = System.nanoTime();
+            try {
+                return node.invokeDouble();
+            } finally {
+                entry.exit(start, outer);
+            }
+        }
+
+        @Override
+        int invokeInt() {
+            long outer = Profiler.enter();
+            long start = System.nanoTime();
+            try {
+                return node.invokeInt();
+            } finally {
+                entry.exit(start, outer);
+            }
+        }
+
+        @Override
+        boolean invokeBoolean() {
+            long outer = Profiler.enter();
+            long start = System.nanoTime();
+            try {
+                return node.invokeBoolean();
+            } finally {
+                entry.exit(start, outer);
+            }
+        }
+    }
+
+    /**
+     * Runs a list of statements in order
+     */
+    static final class Sequence extends Node {
+        final Node[] statements;
+
+        Sequence(Node[] statements) {
+            this.statements = statements;
+        }
+
+        @Override
+        Node[] children() {
+            return statements;
+        }
+
+        @Override
+        void setChild(int index, Node child) {
+            statements[index] = child;
+        }
+
+        @Override
+        Object invoke() {
+            for (Node statement : statements) {
+                checkCancelled();
+                statement.invoke();
+            }
+            return null;
+        }
+    }
+
+    static final class If extends Node {
+        Node condition;
+        Node body;
+
+        If(Node condition, Node body) {
+            this.condition = condition;
+            this.body = body;
+        }
+
+        @Override
+        Node[] children() {
+            return new Node[]{condition, body};
+        }
+
+        @Override
+        void setChild(int index, Node child) {
+            switch (index) {
+                case 0 -> condition = child;
+                case 1 -> body = child;
+                default -> throw new IndexOutOfBoundsException(index);
+            }
+        }
+
+        @Override
+        Object invoke() {
+            if (condition.invokeBoolean())
+                body.invoke();
+            return null;
+        }
+    }
+
+    static final class IfElse extends Node {
+        Node condition;
+        Node body, elseBody;
+
+        IfElse(Node condition, Node body, Node elseBody) {
+            this.condition = condition;
+            this.body = body;
+            this.elseBody = elseBody;
+        }
+
+        @Override
+        Node[] children() {
+            return new Node[]{condition, body, elseBody};
+        }
+
+        @Override
+        void setChild(int index, Node child) {
+            switch (index) {
+                case 0 -> condition = child;
+                case 1 -> body = child;
+                case 2 -> elseBody = child;
+                default -> throw new IndexOutOfBoundsException(index);
+            }
+        }
+
+        @Override
+        Object invoke() {
+            if (condition.invokeBoolean())
+                body.invoke();
+            else
+                elseBody.invoke();
+            return null;
+        }
+    }
+
+    static final class While extends Node {
+        private static final Invariant[] NO_INVARIANTS = new Invariant[0];
+
+        Node condition;
+        Node body;
+        final Counter backEdges;
+        /**
+         * The nodes in the condition and body that give the same output while what they read does not change, set
+         * by the optimizer
+         */
+        Invariant[] invariants = NO_INVARIANTS;
+        /**
+         * The outputs of the invariant nodes for the run of the loop on the current thread
+         */
+        final ThreadLocal<Object[]> values = new ThreadLocal<>();
+
+        While(Node condition, Node body, Counter backEdges) {
+            this.condition = condition;
+            this.body = body;
+            this.backEdges = backEdges;
+        }
+
+        @Override
+        Node[] children() {
+            return new Node[]{condition, body};
+        }
+
+        @Override
+        void setChild(int index, Node child) {
+            switch (index) {
+                case 0 -> condition = child;
+                case 1 -> body = child;
+                default -> throw new IndexOutOfBoundsException(index);
+            }
+        }
+
+        @Override
+        Object invoke() {
+            if (invariants.length == 0) {
+                loop();
+                return null;
+            }
+            Object[] outer = values.get();
+            values.set(new Object[invariants.length]);
+            try {
+                loop();
+            } finally {
+                if (outer == null)
+                    values.remove();
+                else
+                    values.set(outer);
+            }
+            return null;
+        }
+
+        private void loop() {
+            while (condition.invokeBoolean()) {
+                body.invoke();
+                backEdges.count++;
+                checkCancelled();
+            }
+        }
+    }
+
+    /**
+     * Runs a node that gives the same output for as long as the variables and lists it reads do not change only the
+     * first time it is needed in each run of a loop, reusing that output for the rest of the run while they stay
+     * the same.<br>
+     *     Other programs, trigger runs and the items of for each blocks can change variables and lists at any time,
+     *     so every reuse first checks the version of what the node reads against the version it was worked out
+     *     from, and runs the node again if it has changed.
+     *     Outputs are kept per thread, so the node runs every time on threads the loop did not start on,
+     *     such as the threads of a for each block. A null output is not kept
+     * @see ProgramOptimizer
+     * @see VariableFrame#version(int[], boolean)
+     */
+    static final class Invariant extends Node {
+        Node expression;
+        final While loop;
+        final int index;
+        /**
+         * The slots of the variables the expression reads
+         */
+        final int[] slots;
+        /**
+         * True if the expression reads the contents of lists
+         */
+        final boolean readsLists;
+
+        Invariant(Node expression, While loop, int index, int[] slots, boolean readsLists) {
+            this.expression = expression;
+            this.loop = loop;
+            this.index = index;
+            this.slots = slots;
+            this.readsLists = readsLists;
+        }
+
+        @Override
+        Node[] children() {
+            return new Node[]{expression};
+        }
+
+        @Override
+        void setChild(int index, Node child) {
+            if (index != 0) throw new IndexOutOfBoundsException(index);
+            expression = child;
+        }
+
+        @Override
+        Object invoke() {
+            Object[] values = loop.values.get();
+            if (values == null)
+                return expression.invoke();
+            Object value = reuse(values[index]);
+            if (value == null) {
+                long version = version();
+                value = expression.invoke();
+                values[index] = keep(version, value);
+            }
+            return value;
+        }
+
+        /**
+         * Gets the output kept for the run of the loop on the current thread, or null if there is none yet or what
+         * it was worked out from has changed since
+         */
+        Object kept() {
+            Object[] values = loop.values.get();
+            return values == null ? null : reuse(values[index]);
+        }
+
+        /**
+         * Gets the version of the variables and lists the expression reads, taken before running it
+         */
+        long version() {
+            return Program.variables.version(slots, readsLists);
+        }
+
+        /**
+         * Gets the output from a value kept for the loop, or null if there is none or it is out of date
+         */
+        Object reuse(Object kept) {
+            return kept != null && ((Kept) kept).version == version() ? ((Kept) kept).value : null;
+        }
+
+        /**
+         * Wraps an output to be kept for the loop, or gives null if the output is null
+         * @param version The version of what the expression reads, taken before running it
+         */
+        static Kept keep(long version, Object value) {
+            return value == null ? null : new Kept(value, version);
+        }
+
+        /**
+         * Keeps an output the scheduler worked out by stepping through the expression
+         * @param version The version of what the expression reads, taken before the first step
+         */
+        Object save(long version, Object value) {
+            Object[] values = loop.values.get();
+            if (values != null)
+                values[index] = keep(version, value);
+            return value;
+        }
+
+        @Override
+        Object apply(Object[] operands) {
+            return operands[0];
+        }
+
+        @Override
+        BlockBase.InputType type() {
+            return expression.type();
+        }
+
+        /**
+         * An output kept for the run of a loop, with the version of what it was worked out from
+         */
+        record Kept(Object value, long version) {
+        }
+    }
+
+    /**
+     * Runs its body once for every item of a list, splitting the items between the threads of a fork/join pool.<br>
+     *     Each thread binds the item it is running privately, read with the item block. Items added to lists in the
+     *     body are collected by each thread and added once every item is done, in the order of the items they were
+     *     added for, so the lists end up the same as if the items had run one after another. Other changes to
+     *     variables and lists run one at a time, see {@link Serialized}.
+     *     Stopping the program interrupts every thread running an item of the loop
+     * @see #PARALLELISM
+     */
+    static final class ForEach extends Node {
+        /**
+         * The number of threads items are run on, can be set with the automailer.foreach.parallelism system property
+         */
+        static final int PARALLELISM = Integer.getInteger("automailer.foreach.parallelism",
+                Runtime.getRuntime().availableProcessors());
+        private static final ForkJoinPool POOL = new ForkJoinPool(PARALLELISM);
+        private static final ThreadLocal<Binding> BINDING = new ThreadLocal<>();
+
+        Node list;
+        Node body;
+
+        ForEach(Node list, Node body) {
+            this.list = list;
+            this.body = body;
+        }
+
+        @Override
+        Node[] children() {
+            return new Node[]{list, body};
+        }
+
+        @Override
+        void setChild(int index, Node child) {
+            switch (index) {
+                case 0 -> list = child;
+                case 1 -> body = child;
+                default -> throw new IndexOutOfBoundsException(index);
+            }
+        }
+
+        @Override
+        Node[] operands() {
+            return new Node[]{list};
+        }
+
+        @Override
+        Object invoke() {
+            return apply(new Object[]{list.invoke()});
+        }
+
+        @Override
+        Object apply(Object[] operands) {
+            Object[] items = ((List<?>) operands[0]).toArray();
+            if (items.length == 0)
+                return null;
+            Binding outer = BINDING.get();
+            // Nested loops share the cancellation of the outermost loop
+            Cancellation cancellation = outer != null ? outer.cancellation : new Cancellation();
+            Part part = new Part(body, items, 0, items.length,
+                    Math.max(1, items.length / (PARALLELISM * 4)), cancellation);
+
+            List<Object[]> added;
+            if (ForkJoinTask.getPool() == POOL) {
+                added = part.invoke();
+            } else {
+                ForkJoinTask<List<Object[]>> task = POOL.submit(part);
+                try {
+                    added = task.get();
+                } catch (InterruptedException e) {
+                    cancellation.cancel();
+                    // No item may still be running once the program has stopped
+                    task.quietlyJoin();
+                    throw new ProgramCancelledException();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof RuntimeException)
+                        throw (RuntimeException) e.getCause();
+                    throw new IllegalStateException(e.getCause());
+                }
+            }
+
+            if (outer != null)
+                outer.added.addAll(added);
+            else
+                addAll(added);
+            return null;
+        }
+
+        /**
+         * Starts running the items on the fork/join pool without waiting for them, so the scheduler's carrier thread
+         * is free for other programs while the loop runs. Cancelling the future stops the items, it only completes
+         * once none of them is running any more
+         */
+        CompletableFuture<Object> start(Object[] operands) {
+            Object[] items = ((List<?>) operands[0]).toArray();
+            Running running = new Running(new Cancellation());
+            if (items.length == 0) {
+                running.complete(null);
+                return running;
+            }
+            Part part = new Part(body, items, 0, items.length,
+                    Math.max(1, items.length / (PARALLELISM * 4)), running.cancellation);
+            POOL.execute(() -> {
+                try {
+                    addAll(part.invoke());
+                    running.complete(null);
+                } catch (RuntimeException e) {
+                    running.completeExceptionally(e);
+                }
+            });
+            return running;
+        }
+
+        /**
+         * Gets the item the current thread is running, or null if it is not running a for each block
+         */
+        static Object item() {
+            Binding binding = BINDING.get();
+            return binding == null ? null : binding.item;
+        }
+
+        /**
+         * Adds an item to a list, or collects it to be added once the loop ends if it is running in a for each block
+         */
+        @SuppressWarnings("unchecked")
+        static void add(Object item, List<?> list) {
+            Binding binding = BINDING.get();
+            if (binding != null) {
+                binding.added.add(new Object[]{item, list});
+            } else {
+                ((List<Object>) list).add(item);
+                Program.variables.changed(list);
+            }
+        }
+
+        /**
+         * Runs a body for every item of a list in order on the current thread, used by the block interpreter
+         */
+        static void each(List<?> items, Runnable body) {
+            Binding outer = BINDING.get();
+            Binding binding = new Binding(outer != null ? outer.cancellation : new Cancellation());
+            BINDING.set(binding);
+            try {
+                for (Object item : items.toArray()) {
+                    binding.item = item;
+                    body.run();
+                }
+            } finally {
+                BINDING.set(outer);
+            }
+            if (outer != null)
+                outer.added.addAll(binding.added);
+            else
+                addAll(binding.added);
+        }
+
+        @SuppressWarnings("unchecked")
+        private static void addAll(List<Object[]> added) {
+            for (Object[] pair : added) {
+                ((List<Object>) pair[1]).add(pair[0]);
+                Program.variables.changed((List<?>) pair[1]);
+            }
+        }
+
+        /**
+         * A range of the items, split in half until it is small enough to run on one thread
+         */
+        private static final class Part extends RecursiveTask<List<Object[]>> {
+            private static final long serialVersionUID = 1L;
+
+            // Tasks are never serialized, they only live for the run of the loop
+            final transient Node body;
+            final transient Object[] items;
+            final int from, to, grain;
+            final transient Cancellation cancellation;
+
+            Part(Node body, Object[] items, int from, int to, int grain, Cancellation cancellation) {
+                this.body = body;
+                this.items = items;
+                this.from = from;
+                this.to = to;
+                this.grain = grain;
+                this.cancellation = cancellation;
+            }
+
+            @Override
+            protected List<Object[]> compute() {
+                if (to - from > grain) {
+                    int middle = (from + to) >>> 1;
+                    Part first = new Part(body, items, from, middle, grain, cancellation);
+                    first.fork();
+                    List<Object[]> second = new Part(body, items, middle, to, grain, cancellation).compute();
+                    List<Object[]> added = first.join();
+                    added.addAll(second);
+                    return added;
+                }
+
+                Binding outer = BINDING.get();
+                Binding binding = new Binding(cancellation);
+                BINDING.set(binding);
+                cancellation.enter();
+                try {
+                    for (int i = from; i < to; i++) {
+                        if (cancellation.cancelled)
+                            throw new ProgramCancelledException();
+                        binding.item = items[i];
+                        body.invoke();
+                    }
+                } finally {
+                    cancellation.exit();
+                    BINDING.set(outer);
+                }
+                return binding.added;
+            }
+        }
+
+        /**
+         * The item a thread is running and the items it has added to lists
+         */
+        private static final class Binding {
+            final Cancellation cancellation;
+            final List<Object[]> added = new ArrayList<>();
+            Object item;
+
+            Binding(Cancellation cancellation) {
+                this.cancellation = cancellation;
+            }
+        }
+
+        /**
+         * A loop started by the scheduler, which ends with the items once they have seen the cancellation
+         */
+        private static final class Running extends CompletableFuture<Object> {
+            final Cancellation cancellation;
+
+            Running(Cancellation cancellation) {
+                this.cancellation = cancellation;
+            }
+
+            @Override
+            public boolean cancel(boolean mayInterruptIfRunning) {
+                cancellation.cancel();
+                return false;
+            }
+        }
+
+        /**
+         * Tracks the threads running items of a loop, so they can be interrupted when the program is stopped
+         */
+        private static final class Cancellation {
+            private final Map<Thread, Integer> running = new HashMap<>();
+            volatile boolean cancelled;
+
+            synchronized void enter() {
+                running.merge(Thread.currentThread(), 1, Integer::sum);
+            }
+
+            synchronized void exit() {
+                Thread thread = Thread.currentThread();
+                if (running.merge(thread, -1, Integer::sum) == 0) {
+                    running.remove(thread);
+                    // Do not leave the interrupt behind for the next task the pool thread runs
+                    if (cancelled)
+                        Thread.interrupted();
+                }
+            }
+
+            synchronized void cancel() {
+                cancelled = true;
+                running.keySet().forEach(Thread::interrupt);
+            }
+        }
+    }
+
+    /**
+     * Adds an item to a list in the body of a for each block, collecting it until the loop ends
+     * @see ForEach#add(Object, List)
+     */
+    static final class Collect extends Node {
+        Node item, list;
+
+        Collect(Node item, Node list) {
+            this.item = item;
+            this.list = list;
+        }
+
+        @Override
+        Node[] children() {
+            return new Node[]{item, list};
+        }
+
+        @Override
+        void setChild(int index, Node child) {
+            switch (index) {
+                case 0 -> item = child;
+                case 1 -> list = child;
+                default -> throw new IndexOutOfBoundsException(index);
+            }
+        }
+
+        @Override
+        Object invoke() {
+            Object value = item.invoke();
+            ForEach.add(value, (List<?>) list.invoke());
+            return null;
+        }
+
+        @Override
+        Object apply(Object[] operands) {
+            ForEach.add(operands[0], (List<?>) operands[1]);
+            return null;
+        }
+    }
+
+    /**
+     * Runs a node in the body of a for each block that changes variables or lists, or reads lists the body
+     * changes, while no other such node is running. Setting a variable from its own value, or inserting into
+     * or sorting a list, then happens as a whole, so items running in parallel do not lose each other's changes
+     * or see a list half changed. Each outermost for each block has a lock of its own, shared with the loops
+     * nested in it, so loops in other programs do not wait for each other
+     * @see ProgramCompiler
+     */
+    static final class Serialized extends Node {
+        private final ReentrantLock lock;
+        Node node;
+
+        Serialized(Node node, ReentrantLock lock) {
+            this.node = node;
+            this.lock = lock;
+        }
+
+        @Override
+        Node[] children() {
+            return new Node[]{node};
+        }
+
+        @Override
+        void setChild(int index, Node child) {
+            if (index != 0) throw new IndexOutOfBoundsException(index);
+            node = child;
+        }
+
+        @Override
+        Object invoke() {
+            lock.lock();
+            try {
+                return node.invoke();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        BlockBase.InputType type() {
+            return node.type();
+        }
+    }
+
+    /**
+     * Arms a trigger block, so its body runs whenever its schedule fires
+     * @see TriggerService
+     */
+    static final class Trigger extends Node {
+        final BlockBase.TriggerFunction code;
+        final Node[] inputs;
+        Node body;
+        final Program program;
+
+        Trigger(BlockBase.TriggerFunction code, Node[] inputs, Node body, Program program) {
+            this.code = code;
+            this.inputs = inputs;
+            this.body = body;
+            this.program = program;
+        }
+
+        @Override
+        Node[] children() {
+            Node[] children = Arrays.copyOf(inputs, inputs.length + 1);
+            children[inputs.length] = body;
+            return children;
+        }
+
+        @Override
+        void setChild(int index, Node child) {
+            if (index == inputs.length)
+                body = child;
+            else
+                inputs[index] = child;
+        }
+
+        @Override
+        Object invoke() {
+            Program.triggers.arm(program, code.apply(invokeAll(inputs)), body);
+            return null;
+        }
+
+        @Override
+        Node[] operands() {
+            return inputs;
+        }
+
+        @Override
+        Object apply(Object[] operands) {
+            Program.triggers.arm(program, code.apply(operands), body);
+            return null;
+        }
+    }
+
+    /**
+     * Counts how often the nodes of a program have run, used to decide when to promote it to bytecode.<br>
+     *     Updates are not synchronized, so the count is only an estimate when a program runs on several threads
+     * @see BytecodeCompiler
+     */
+    static final class Counter {
+        long count;
+    }
+
+    /**
+     * Ends the program if its thread has been interrupted, called between statements and on every loop iteration
+     * so a stopped program ends within one block. Also lets programs queued for a worker have a turn
+     * @see ProgramRuntime#stop(Program)
+     * @see ProgramRuntime#yieldWorker()
+     */
+    static void checkCancelled() {
+        if (Thread.currentThread().isInterrupted())
+            throw new ProgramCancelledException();
+        Program.runtime.yieldWorker();
+    }
+
+    static BlockBase.InputType typeOf(Object value) {
+        if (value instanceof Double)
+            return BlockBase.InputType.DOUBLE;
+        if (value instanceof Integer)
+            return BlockBase.InputType.INTEGER;
+        if (value instanceof Boolean)
+            return BlockBase.InputType.BOOLEAN;
+        if (value instanceof String)
+            return BlockBase.InputType.STRING;
+        if (value instanceof List)
+            return BlockBase.InputType.LIST;
+        return BlockBase.InputType.ANY;
+    }
+
+    private static Object[] invokeAll(Node[] inputs) {
+        Object[] values = new Object[inputs.length];
+        for (int i = 0; i < inputs.length; i++)
+            values[i] = inputs[i].invoke();
+        return values;
+    }
+}
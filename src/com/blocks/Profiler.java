@@ -0,0 +1,176 @@
+package com.blocks;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Records how often each block runs and how long it takes, turned on with the automailer.profile system property.<br>
+ *     Profiled programs are compiled with a timing node around every block and stay in the interpreter.
+ *     Control blocks are not timed themselves since their time is that of the blocks they hold, and wait
+ *     blocks are left out since waiting does not use the CPU
+ */
+public class Profiler {
+    public static final boolean ENABLED = Boolean.getBoolean("automailer.profile");
+
+    /**
+     * The time spent in profiled blocks called by the current block, so it can be taken out of the block's own time
+     */
+    private static final ThreadLocal<long[]> CHILD_TIME = ThreadLocal.withInitial(() -> new long[1]);
+    private static final Map<Block, Entry> entries = Collections.synchronizedMap(new WeakHashMap<>());
+
+    /**
+     * Wraps every profiled node in the tree with a node that times it
+     * @return The node that replaces the given node
+     */
+    static Node instrument(Node node) {
+        Node[] children = node.children();
+        for (int i = 0; i < children.length; i++)
+            node.setChild(i, instrument(children[i]));
+
+        if (node.block == null || node.block.getBase() == BlockBase.WAIT || node instanceof Node.Literal
+                || node instanceof Node.Sequence || node instanceof Node.If || node instanceof Node.IfElse
+                || node instanceof Node.While || node instanceof Node.ForEach)
+            return node;
+        Node profiled = new Node.Profiled(node, entries.computeIfAbsent(node.block, (b) -> new Entry()));
+        profiled.block = node.block;
+        return profiled;
+    }
+
+    /**
+     * Called before a profiled block runs
+     * @return The time already spent in the blocks called by the outer block, given back to {@link Entry#exit}
+     */
+    static long enter() {
+        long[] time = CHILD_TIME.get();
+        long outer = time[0];
+        time[0] = 0;
+        return outer;
+    }
+
+    /**
+     * Gets the recorded times of a block, or null if it has not been profiled
+     */
+    public static Entry getEntry(Block block) {
+        return entries.get(block);
+    }
+
+    /**
+     * Gets how hot each profiled block is, from 0 to 1 relative to the block with the most time of its own
+     */
+    public static Map<Block, Float> getHeat() {
+        Map<Block, Float> heat = new HashMap<>();
+        synchronized (entries) {
+            long max = entries.values().stream().mapToLong(Entry::getSelfNanos).max().orElse(0);
+            if (max > 0)
+                entries.forEach((block, entry) -> heat.put(block, (float) entry.getSelfNanos() / max));
+        }
+        return heat;
+    }
+
+    /**
+     * Gets the blocks that spent the most time running themselves, hottest first
+     */
+    public static List<Map.Entry<Block, Entry>> getHottest(int count) {
+        List<Map.Entry<Block, Entry>> hottest;
+        synchronized (entries) {
+            hottest = new ArrayList<>(entries.entrySet());
+        }
+        hottest.sort(Comparator.comparingLong((Map.Entry<Block, Entry> e) -> e.getValue().getSelfNanos()).reversed());
+        return hottest.subList(0, Math.min(count, hottest.size()));
+    }
+
+    /**
+     * Prints the hottest blocks with their base codes, invocation counts and times in milliseconds,
+     * followed by the cache hit rates of the blocks that are cached and, when programs run in slices,
+     * the steps, slices and queue waits of each program, by its position and name, added up over all of its runs
+     */
+    public static void dump(PrintStream out, int count) {
+        out.printf("%-8s %12s %12s %12s%n", "block", "invocations", "self ms", "total ms");
+        for (Map.Entry<Block, Entry> e : getHottest(count)) {
+            Entry entry = e.getValue();
+            out.printf("%-8s %12d %12.3f %12.3f%n", e.getKey().getBase().getBaseCode(), entry.getInvocations(),
+                    entry.getSelfNanos() / 1e6, entry.getTotalNanos() / 1e6);
+        }
+        Map<BlockBase, BlockCache.Stats> cached = BlockCache.getAllStats();
+        if (!cached.isEmpty()) {
+            out.printf("%n%-8s %12s %12s %12s%n", "cached", "hits", "misses", "hit rate");
+            cached.forEach((base, stats) -> out.printf("%-8s %12d %12d %11.1f%%%n", base.getBaseCode(),
+                    stats.getHits(), stats.getMisses(), stats.getHitRate() * 100));
+        }
+        ProgramScheduler scheduler = Program.runtime.getScheduler();
+        if (scheduler != null) {
+            out.printf("%n%-32s %12s %12s %12s %12s%n", "program", "steps", "slices", "avg wait ms", "max wait ms");
+            List<Program> programs = Program.runtime.getPrograms();
+            for (int i = 0; i < programs.size(); i++) {
+                ProgramScheduler.Stats stats = scheduler.getStats(programs.get(i));
+                out.printf("%-32.32s %12d %12d %12.3f %12.3f%n", i + " " + programs.get(i).getName(),
+                        stats.getSteps(), stats.getSlices(), stats.getAverageQueueWait() / 1e6,
+                        stats.getMaxQueueWait() / 1e6);
+            }
+        }
+    }
+
+    /**
+     * Clears every recorded time
+     */
+    public static void reset() {
+        synchronized (entries) {
+            entries.values().forEach(Entry::reset);
+        }
+    }
+
+    /**
+     * The recorded times of a single block.<br>
+     *     Counters are striped by thread, so programs running the same block at once do not contend on them
+     */
+    public static final class Entry {
+        private final LongAdder invocations = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final LongAdder selfNanos = new LongAdder();
+
+        /**
+         * Called after a profiled block has run
+         * @param start The time the block started running
+         * @param outer The value returned by {@link Profiler#enter()}
+         */
+        void exit(long start, long outer) {
+            long elapsed = System.nanoTime() - start;
+            long[] time = CHILD_TIME.get();
+            invocations.increment();
+            totalNanos.add(elapsed);
+            selfNanos.add(elapsed - time[0]);
+            time[0] = outer + elapsed;
+        }
+
+        public long getInvocations() {
+            return invocations.sum();
+        }
+
+        /**
+         * Gets the time spent in the block, including the blocks in its inputs
+         */
+        public long getTotalNanos() {
+            return totalNanos.sum();
+        }
+
+        /**
+         * Gets the time spent in the block, not including the blocks in its inputs
+         */
+        public long getSelfNanos() {
+            return selfNanos.sum();
+        }
+
+        private void reset() {
+            invocations.reset();
+            totalNanos.reset();
+            selfNanos.reset();
+        }
+    }
+}
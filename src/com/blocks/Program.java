@@ -4,8 +4,9 @@ import org.json.JSONArray;
 import org.json.JSONObject;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Holds information about a program, including it's held blocks and state
@@ -14,11 +15,29 @@ public class Program {
     /**
      * Stores the values of the global variables used within programs
      */
-    public static HashMap<String, Object> variables = new HashMap<>();
+    public static final VariableFrame variables = new VariableFrame();
+    /**
+     * Wakes programs up after waits and fires their triggers
+     */
+    public static final TimingWheel timer = new TimingWheel(TimingWheel.TICK, "program-timer");
+    /**
+     * Runs programs and tracks which of them are running
+     */
+    public static final ProgramRuntime runtime = new ProgramRuntime();
+    /**
+     * Fires the trigger blocks of programs
+     */
+    public static final TriggerService triggers = new TriggerService();
 
     private final List<Block> blocks;
-    private Thread thread;
-    private volatile boolean running;
+    private final Node.Counter hotness = new Node.Counter();
+    private volatile Node compiled;
+    private volatile Node interpreted;
+    private Map<Block, Diagnostic> diagnostics = new IdentityHashMap<>();
+    private boolean bytecode;
+    private int eliminatedNodes;
+    private int hoistedNodes;
+    volatile long stopLatency = -1;
 
     /**
      * Constructs an empty program
@@ -46,27 +65,162 @@ public class Program {
     }
 
     public Thread getThread() {
-        return thread;
+        return runtime.getThread(this);
+    }
+
+    public boolean isRunning() {return runtime.isRunning(this);}
+
+    /**
+     * Gets the compiled node tree of the program, compiling it if the blocks have changed.<br>
+     *     Once the program has run often enough it is promoted to bytecode
+     * @see BytecodeCompiler#THRESHOLD
+     */
+    synchronized Node getCompiled() {
+        Node node = compiled;
+        if (node == null) {
+            node = getInterpreted();
+            bytecode = false;
+        }
+        // Profiled programs stay in the interpreter so every block is timed
+        if (!bytecode && !Profiler.ENABLED && BytecodeCompiler.shouldPromote(hotness.count)) {
+            // Only try once, if compiling fails the program keeps using the interpreter
+            bytecode = true;
+            Node generated = BytecodeCompiler.compile(node);
+            if (generated != null)
+                node = generated;
+        }
+        compiled = node;
+        return node;
+    }
+
+    /**
+     * Gets the optimized node tree of the program without promoting it to bytecode, compiling it if the blocks
+     * have changed. The scheduler steps through this tree, since bytecode can not pause in the middle of a loop
+     * @see ProgramScheduler
+     */
+    synchronized Node getInterpreted() {
+        Node node = interpreted;
+        if (node == null) {
+            List<Diagnostic> found = new ArrayList<>();
+            node = ProgramCompiler.compile(this, blocks, hotness, found);
+            ProgramOptimizer optimizer = new ProgramOptimizer();
+            node = optimizer.optimize(node);
+            eliminatedNodes = optimizer.getEliminated();
+            hoistedNodes = optimizer.getHoisted();
+            if (Profiler.ENABLED)
+                node = Profiler.instrument(node);
+            diagnostics = new IdentityHashMap<>();
+            found.forEach((d) -> diagnostics.putIfAbsent(d.block(), d));
+            interpreted = node;
+        }
+        return node;
+    }
+
+    /**
+     * Gets the type problems found in the blocks of the program, mapped by the block they were found in
+     */
+    public synchronized Map<Block, Diagnostic> getDiagnostics() {
+        getInterpreted();
+        return diagnostics;
+    }
+
+    /**
+     * Gets the number of nodes the optimizer removed from the compiled program, by running
+     * constant blocks ahead of time and removing branches that can never run
+     */
+    public synchronized int getEliminatedNodes() {
+        getInterpreted();
+        return eliminatedNodes;
+    }
+
+    /**
+     * Gets the number of nodes in loops of the compiled program that are only run once per run of their loop,
+     * since they give the same output on every iteration
+     */
+    public synchronized int getHoistedNodes() {
+        getInterpreted();
+        return hoistedNodes;
+    }
+
+    /**
+     * Returns true if the program has type errors that stop it from running
+     */
+    public boolean hasErrors() {
+        return getDiagnostics().values().stream().anyMatch((d) -> d.severity() == Diagnostic.Severity.ERROR);
     }
 
-    public boolean isRunning() {return running;}
+    /**
+     * Discards the compiled node tree, should be called whenever the blocks of the program are changed
+     */
+    void invalidate() {
+        compiled = null;
+        interpreted = null;
+    }
 
     /**
-     * Runs the program in a new thread
+     * Runs the program on a virtual thread or in the scheduler, unless it is already running or has type errors
+     * @see ProgramRuntime
      */
     public void run() {
-        if (thread == null || !thread.isAlive()) {
-            running = true;
-            thread = new Thread(() -> {
-                for (Block block : blocks) {
-                    block.invoke();
-                }
-                running = false;
-            });
-            thread.start();
+        if (hasErrors())
+            return;
+        if (!isRunning()) {
+            // Running again replaces the triggers armed by the last run
+            triggers.disarm(this);
+            hotness.count++;
+            runtime.start(this);
         }
     }
 
+    /**
+     * Stops the program if it is running, and stops its triggers from firing again
+     * @see ProgramRuntime#stop(Program)
+     */
+    public void stop() {
+        triggers.disarm(this);
+        runtime.stop(this);
+    }
+
+    /**
+     * Gets the time in nanoseconds the last stopped run of the program took to end after being stopped,
+     * or -1 if it has never been stopped
+     */
+    public long getStopLatency() {
+        return stopLatency;
+    }
+
+    /**
+     * Gets a name for the program made from its first block the way the editor shows it, such as
+     * "every 5 minutes", used where programs are listed without the editor
+     */
+    public String getName() {
+        List<Block> blocks = new ArrayList<>(this.blocks);
+        return blocks.isEmpty() ? "empty" : describe(blocks.get(0));
+    }
+
+    private static String describe(Block block) {
+        List<String> labels = block.getBase().getLabels();
+        Object[] inputs = block.getInputs();
+        StringBuilder name = new StringBuilder();
+        for (int i = 0; i < Math.max(labels.size(), inputs.length); i++) {
+            if (i < labels.size() && !labels.get(i).isEmpty())
+                name.append(name.isEmpty() ? "" : " ").append(labels.get(i));
+            if (i < inputs.length && inputs[i] != null)
+                name.append(name.isEmpty() ? "" : " ").append(describeInput(inputs[i]));
+        }
+        return name.toString();
+    }
+
+    private static String describeInput(Object input) {
+        if (input instanceof ShadowBlock)
+            input = ((ShadowBlock) input).getInputValue();
+        if (input instanceof VariableBlock)
+            return ((VariableBlock) input).getVariable();
+        if (input instanceof Block)
+            return "(" + describe((Block) input) + ")";
+        return String.valueOf(input);
+    }
+
     /**
      * Saves the program into a json array
      */
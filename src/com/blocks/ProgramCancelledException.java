@@ -0,0 +1,15 @@
+package com.blocks;
+
+/**
+ * Thrown inside a running program to end it early, either by the stop block or because the program was stopped.<br>
+ *     Unlike stopping the thread, it is only thrown between blocks or from blocks that wait, so variables
+ *     are never left half updated
+ * @see Program#stop()
+ */
+public class ProgramCancelledException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public ProgramCancelledException() {
+        super(null, null, false, false);
+    }
+}
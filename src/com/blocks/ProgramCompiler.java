@@ -0,0 +1,310 @@
+package com.blocks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.DoubleToIntFunction;
+
+/**
+ * Compiles the blocks of a program into a tree of executable nodes
+ * @see Node
+ */
+class ProgramCompiler {
+    private final Program program;
+    private final Node.Counter backEdges;
+    private final List<Diagnostic> diagnostics;
+    /**
+     * The number of for each blocks around the block being compiled
+     */
+    private int parallel;
+    /**
+     * The lock changes in the body of the outermost for each block around the block being compiled run under
+     */
+    private ReentrantLock lock;
+
+    private ProgramCompiler(Program program, Node.Counter backEdges, List<Diagnostic> diagnostics) {
+        this.program = program;
+        this.backEdges = backEdges;
+        this.diagnostics = diagnostics;
+    }
+
+    /**
+     * Compiles a list of blocks into a single node that runs them in order.<br>
+     *     The types of all inputs are inferred while compiling, so conversions are only added where the types differ
+     * @param program The program the blocks belong to, which runs the bodies of its trigger blocks
+     * @param backEdges Counter incremented on every loop iteration of the compiled program
+     * @param diagnostics List to add the type problems found in the blocks to
+     */
+    static Node compile(Program program, List<Block> blocks, Node.Counter backEdges, List<Diagnostic> diagnostics) {
+        return new ProgramCompiler(program, backEdges, diagnostics).compile(blocks);
+    }
+
+    private Node compile(List<Block> blocks) {
+        List<Node> statements = new ArrayList<>();
+        for (Block block : blocks) {
+            Node statement = compileStatement(block);
+            if (statement != null)
+                statements.add(statement);
+        }
+        if (statements.size() == 1)
+            return statements.get(0);
+        return new Node.Sequence(statements.toArray(new Node[0]));
+    }
+
+    /**
+     * Compiles a block placed in a program or control block body.<br>
+     *     Returns null for blocks that do nothing when run
+     */
+    private Node compileStatement(Block block) {
+        BlockBase base = block.getBase();
+        return from(block, switch (base.getType()) {
+            case NORMAL -> base == BlockBase.SET_VARIABLE || base == BlockBase.CHANGE_VARIABLE
+                    ? compileSetVariable(block)
+                    : base == BlockBase.ADD_TO_LIST && parallel > 0
+                    ? new Node.Collect(compileInput(block, 0), compileInput(block, 1))
+                    : new Node.Normal(base.getNormalCode(), compileInputs(block));
+            case IF -> new Node.If(compileInput(block, 0), compileBody(block, 0));
+            case IF_ELSE -> new Node.IfElse(compileInput(block, 0), compileBody(block, 0), compileBody(block, 1));
+            case WHILE -> new Node.While(compileInput(block, 0), compileBody(block, 0), backEdges);
+            case FOR_EACH -> compileForEach(block);
+            case TRIGGER -> compileTrigger(block);
+            default -> null;
+        });
+    }
+
+    private Node compileBody(Block block, int body) {
+        return compile(((ControlBlock) block).getHeldBlocks().get(body));
+    }
+
+    /**
+     * Compiles a block placed in the input of another block
+     */
+    private Node compileExpression(Block block) {
+        BlockBase base = block.getBase();
+        return from(block, switch (base.getType()) {
+            case FIELD -> {
+                if (base == BlockBase.ITEM && parallel == 0)
+                    report(block, Diagnostic.Severity.ERROR, "The item block is only valid inside a for each block");
+                yield base.getPrimitiveCode() != null ? compilePrimitive(block)
+                        : new Node.Field(base.getFieldCode(), compileInputs(block), base.getOutputType());
+            }
+            case VARIABLE -> {
+                String variable = ((VariableBlock) block).getVariable();
+                int slot = Program.variables.slotOf(variable);
+                if (slot == -1)
+                    report(block, Diagnostic.Severity.ERROR, "Variable " + variable + " does not exist");
+                yield new Node.Variable(slot, BlockBase.InputType.ANY);
+            }
+            case SHADOW -> {
+                Object value = ((ShadowBlock) block).getInputValue();
+                yield value instanceof Block ? compileExpression((Block) value) : new Node.Literal(value);
+            }
+            default -> throw new IllegalArgumentException("Unexpected input block " + base.getType());
+        });
+    }
+
+    /**
+     * Compiles a set or change variable block into a node that writes straight to the variable's slot.<br>
+     *     Names that are not known until the program runs are looked up each time instead
+     */
+    private Node compileSetVariable(Block block) {
+        Object name = block.getInputs()[0];
+        if (name instanceof Block)
+            return new Node.Normal(block.getBase().getNormalCode(), compileInputs(block));
+        int slot = Program.variables.slotOf((String) name);
+        if (slot == -1)
+            report(block, Diagnostic.Severity.WARNING, "Variable " + name + " does not exist, nothing is set");
+        if (block.getBase() == BlockBase.CHANGE_VARIABLE)
+            return new Node.ChangeVariable(slot, compileInput(block, 1));
+        return new Node.SetVariable(slot, compileInput(block, 1));
+    }
+
+    /**
+     * Compiles a for each block, adding to lists in its body is collected so items run in parallel can add safely.
+     * Other blocks in the body that change variables or lists are run one at a time, and so are the blocks that
+     * read lists if the body changes lists. Loops nested in the body share its lock
+     */
+    private Node compileForEach(Block block) {
+        Node list = compileInput(block, 0);
+        Node body;
+        if (parallel++ == 0)
+            lock = new ReentrantLock();
+        try {
+            body = compileBody(block, 0);
+        } finally {
+            parallel--;
+        }
+        boolean changesLists = effects(body, EnumSet.noneOf(BlockBase.Effect.class)).contains(BlockBase.Effect.WRITES_LISTS);
+        return new Node.ForEach(list, serialize(body, changesLists, lock));
+    }
+
+    /**
+     * Wraps the statements and conditions in the body of a for each block that change variables or lists, or that
+     * read lists while the body changes them, so they run one at a time
+     * @see Node.Serialized
+     */
+    private static Node serialize(Node node, boolean changesLists, ReentrantLock lock) {
+        // Trigger bodies run on their own later, and an inner for each block has wrapped its own body already
+        if (node instanceof Node.Serialized || node instanceof Node.Trigger)
+            return node;
+        if (node instanceof Node.Sequence || node instanceof Node.If || node instanceof Node.IfElse
+                || node instanceof Node.While || node instanceof Node.ForEach) {
+            Node[] children = node.children();
+            for (int i = 0; i < children.length; i++) {
+                Node child = serialize(children[i], changesLists, lock);
+                if (child != children[i])
+                    node.setChild(i, child);
+            }
+            return node;
+        }
+        Set<BlockBase.Effect> effects = effects(node, EnumSet.noneOf(BlockBase.Effect.class));
+        if (effects.contains(BlockBase.Effect.WRITES_VARIABLES) || effects.contains(BlockBase.Effect.WRITES_LISTS)
+                || changesLists && effects.contains(BlockBase.Effect.READS_LISTS))
+            return new Node.Serialized(node, lock);
+        return node;
+    }
+
+    /**
+     * Adds the effects of the blocks in a node tree, leaving out adding to lists in for each blocks, which is
+     * collected, and the bodies of trigger blocks
+     */
+    private static Set<BlockBase.Effect> effects(Node node, Set<BlockBase.Effect> effects) {
+        if (node instanceof Node.Trigger)
+            return effects;
+        if (!(node instanceof Node.Collect) && node.block != null
+                && (node.block.getBase().getType() == BlockBase.BlockType.NORMAL
+                || node.block.getBase().getType() == BlockBase.BlockType.FIELD))
+            effects.addAll(node.block.getBase().getEffects());
+        for (Node child : node.children())
+            effects(child, effects);
+        return effects;
+    }
+
+    /**
+     * Compiles a trigger block, checking its schedule straight away when its inputs are constant
+     */
+    private Node compileTrigger(Block block) {
+        BlockBase base = block.getBase();
+        Node[] inputs = compileInputs(block);
+        if (Arrays.stream(inputs).allMatch((i) -> i instanceof Node.Literal)) {
+            try {
+                base.getTriggerCode().apply(Arrays.stream(inputs).map(Node::invoke).toArray());
+            } catch (RuntimeException e) {
+                report(block, Diagnostic.Severity.ERROR, "The schedule is not valid: " + e.getMessage());
+            }
+        }
+        // The body runs later on its own, outside of any for each block it is placed in
+        int outer = parallel;
+        parallel = 0;
+        try {
+            return new Node.Trigger(base.getTriggerCode(), inputs, compileBody(block, 0), program);
+        } finally {
+            parallel = outer;
+        }
+    }
+
+    /**
+     * Marks the node as compiled from the block, unless it already belongs to another block
+     */
+    private static Node from(Block block, Node node) {
+        if (node != null && node.block == null)
+            node.block = block;
+        return node;
+    }
+
+    /**
+     * Compiles a field block with primitive code into a node that does not box its inputs or output
+     * @see BlockBase#getPrimitiveCode()
+     */
+    private Node compilePrimitive(Block block) {
+        Object code = block.getBase().getPrimitiveCode();
+        if (code instanceof DoubleBinaryOperator)
+            return new Node.DoubleBinary((DoubleBinaryOperator) code, compileInput(block, 0), compileInput(block, 1));
+        if (code instanceof BlockBase.DoubleComparator)
+            return new Node.DoubleCompare((BlockBase.DoubleComparator) code, compileInput(block, 0), compileInput(block, 1));
+        if (code instanceof DoubleToIntFunction)
+            return new Node.DoubleToInt((DoubleToIntFunction) code, compileInput(block, 0));
+        if (code instanceof BlockBase.BooleanOperator)
+            return new Node.BooleanBinary((BlockBase.BooleanOperator) code, compileInput(block, 0), compileInput(block, 1));
+        if (code instanceof BlockBase.BooleanFunction)
+            return new Node.BooleanUnary((BlockBase.BooleanFunction) code, compileInput(block, 0));
+        throw new IllegalArgumentException("Unexpected primitive code " + code.getClass().getName());
+    }
+
+    private Node[] compileInputs(Block block) {
+        Node[] inputs = new Node[block.getInputs().length];
+        for (int i = 0; i < inputs.length; i++)
+            inputs[i] = compileInput(block, i);
+        return inputs;
+    }
+
+    /**
+     * Compiles an input of a block, binding the conversion to the input's type
+     */
+    private Node compileInput(Block block, int index) {
+        BlockBase.InputType type = block.getBase().getInputs().get(index);
+        Object input = block.getInputs()[index];
+        if (input instanceof Block) {
+            Node node = compileExpression((Block) input);
+            // Converting to the type a node already outputs, or to any type, leaves the value unchanged
+            if (node.type() == type || type == BlockBase.InputType.ANY)
+                return node;
+            // Variables have no known type, so they convert themselves when read
+            if (node instanceof Node.Variable)
+                return ((Node.Variable) node).as(type);
+            checkConversion((Block) input, node.type(), type);
+            return new Node.Convert(type, node);
+        }
+        checkLiteral(block, input, type);
+        return new Node.Literal(Block.convert(type, input));
+    }
+
+    /**
+     * Reports conversions between known types that may lose the value
+     */
+    private void checkConversion(Block block, BlockBase.InputType from, BlockBase.InputType to) {
+        boolean number = to == BlockBase.InputType.DOUBLE || to == BlockBase.InputType.INTEGER;
+        if (from == BlockBase.InputType.STRING && (number || to == BlockBase.InputType.BOOLEAN)) {
+            report(block, Diagnostic.Severity.WARNING, "Text is used as " + describe(to)
+                    + (number ? ", it becomes 0 if it is not a number" : ""));
+        } else if (from == BlockBase.InputType.LIST && number) {
+            report(block, Diagnostic.Severity.WARNING, "A list is used as a number, its size is used instead");
+        }
+    }
+
+    /**
+     * Reports literal inputs that are not valid values of the input's type
+     */
+    private void checkLiteral(Block block, Object input, BlockBase.InputType type) {
+        if (!(input instanceof String) || ((String) input).isEmpty())
+            return;
+        try {
+            switch (type) {
+                case DOUBLE -> Double.parseDouble((String) input);
+                case INTEGER -> Integer.parseInt((String) input);
+            }
+        } catch (NumberFormatException e) {
+            report(block, Diagnostic.Severity.ERROR, "\"" + input + "\" is not " + describe(type));
+        }
+    }
+
+    private void report(Block block, Diagnostic.Severity severity, String message) {
+        if (diagnostics != null)
+            diagnostics.add(new Diagnostic(block, severity, message));
+    }
+
+    private static String describe(BlockBase.InputType type) {
+        return switch (type) {
+            case DOUBLE -> "a number";
+            case INTEGER -> "a whole number";
+            case BOOLEAN -> "true or false";
+            case STRING -> "text";
+            case LIST -> "a list";
+            case ANY -> "a value";
+        };
+    }
+}
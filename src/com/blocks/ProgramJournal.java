@@ -0,0 +1,529 @@
+package com.blocks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only journal of how far running programs have got, so they carry on after the process dies instead
+ * of starting again from the top. Turned on with the automailer.checkpoint system property.<br>
+ *     Journaled programs run in the scheduler, since its explicit stack of nodes is what gets saved. A checkpoint
+ *     is written after every block that writes files or has other external effects, before every wait and
+ *     whenever a program yields at the end of a slice, together with the variables changed since the last
+ *     checkpoint and the lists whose contents changed. A block that was running
+ *     when the process died runs again, nothing before the checkpoint does.<br>
+ *     Records are written to the file without syncing it, so they survive the process dying but not the machine
+ *     losing power, unless automailer.checkpoint.sync is set. Every record has a checksum, so a record cut short
+ *     by a crash is ignored. The journal is rewritten with only the live state when it is opened and whenever it
+ *     grows past automailer.checkpoint.limit bytes
+ * @see ProgramRuntime#recover
+ */
+public class ProgramJournal {
+    public static final boolean ENABLED = Boolean.getBoolean("automailer.checkpoint");
+    static final boolean SYNC = Boolean.getBoolean("automailer.checkpoint.sync");
+    static final long LIMIT = Long.getLong("automailer.checkpoint.limit", 16 << 20);
+
+    private static final byte PROGRAM = 1, BEGIN = 2, CHECKPOINT = 3, END = 4, VARIABLE = 5, ARM = 6, DISARM = 7;
+    private static final byte NULL = 0, DOUBLE = 1, BOOLEAN = 2, TEXT = 3, LIST = 4, INTEGER = 5, LONG = 6;
+    private static final int HEADER = 9;
+
+    private final Path path;
+    private final Map<Node, Tree> trees = new IdentityHashMap<>();
+    private final Map<Integer, Run> runs = new HashMap<>();
+    private FileChannel channel;
+    private long size;
+    private int nextTree, nextRun;
+    private long records;
+
+    /**
+     * Starts a new journal holding the current variables, replacing the one at the path
+     */
+    ProgramJournal(Path path) throws IOException {
+        this.path = path;
+        Files.createDirectories(path.toAbsolutePath().getParent());
+        Program.variables.trackChanges();
+        compact();
+    }
+
+    /**
+     * Starts journaling a run of a program, the node is either the program's tree or a trigger body in it
+     * @return The journaled run, or null if the node is not part of the program's current tree
+     */
+    synchronized Run begin(Program program, Node node) {
+        Tree tree = tree(program);
+        Integer root = tree.ids.get(node);
+        if (root == null)
+            return null;
+        Run run = new Run(nextRun++, tree, root);
+        runs.put(run.id, run);
+        append(BEGIN, run.begin());
+        return run;
+    }
+
+    /**
+     * Records that a trigger of a program was armed, so it is armed again after a restart
+     */
+    synchronized void armed(Program program, Node body) {
+        Tree tree = tree(program);
+        Integer id = tree.ids.get(body);
+        if (id != null && tree.armed.add(id))
+            append(ARM, tree.arm(id));
+    }
+
+    /**
+     * Records that every trigger of a program was disarmed
+     */
+    synchronized void disarmed(Program program) {
+        for (Tree tree : trees.values()) {
+            if (tree.program == program && !tree.armed.isEmpty()) {
+                tree.armed.clear();
+                append(DISARM, tree.disarm());
+            }
+        }
+    }
+
+    /**
+     * Gets the number of records written since the journal was opened
+     */
+    public synchronized long getRecords() {
+        return records;
+    }
+
+    /**
+     * Gets the size of the journal file in bytes
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    private Tree tree(Program program) {
+        Node root = program.getInterpreted();
+        Tree tree = trees.get(root);
+        if (tree == null) {
+            tree = new Tree(nextTree++, program, root);
+            trees.put(root, tree);
+            append(PROGRAM, tree.encode());
+        }
+        return tree;
+    }
+
+    private void append(byte type, byte[] payload) {
+        try {
+            if (size + HEADER + payload.length > LIMIT && type != PROGRAM)
+                compact();
+            write(channel, type, payload);
+            size += HEADER + payload.length;
+            records++;
+            if (SYNC)
+                channel.force(false);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Rewrites the journal with only what is needed to recover: the variables, the programs that are running or
+     * have armed triggers and the last checkpoint of every run. The new journal replaces the old one in one move,
+     * so a crash while compacting leaves one of them whole
+     */
+    private void compact() throws IOException {
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        Set<Tree> live = new HashSet<>();
+        runs.values().forEach((r) -> live.add(r.tree));
+        trees.values().removeIf((t) -> !live.contains(t) && t.armed.isEmpty());
+        Program.variables.drainChanged();
+
+        long written = 0;
+        try (FileChannel out = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (Map.Entry<String, Object> e : Program.variables.toMap().entrySet())
+                written += write(out, VARIABLE, variable(e.getKey(), e.getValue()));
+            for (Tree tree : trees.values()) {
+                written += write(out, PROGRAM, tree.encode());
+                for (int id : tree.armed)
+                    written += write(out, ARM, tree.arm(id));
+            }
+            for (Run run : runs.values()) {
+                written += write(out, BEGIN, run.begin());
+                if (run.checkpoint != null)
+                    written += write(out, CHECKPOINT, run.checkpoint);
+            }
+            out.force(false);
+        }
+        if (channel != null)
+            channel.close();
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        size = written;
+    }
+
+    /**
+     * Writes a record: its length, the checksum of its type and payload, the type and the payload
+     * @return The number of bytes written
+     */
+    private static int write(FileChannel channel, byte type, byte[] payload) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(payload);
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER + payload.length);
+        buffer.putInt(payload.length).putInt((int) crc.getValue()).put(type).put(payload).flip();
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        return HEADER + payload.length;
+    }
+
+    /**
+     * Reads the journal left behind by the last time the app ran, stopping at the first damaged record
+     */
+    static Recovered read(Path path) throws IOException {
+        Recovered recovered = new Recovered();
+        if (!Files.exists(path))
+            return recovered;
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(path));
+        CRC32 crc = new CRC32();
+        while (buffer.remaining() >= HEADER) {
+            int length = buffer.getInt();
+            int checksum = buffer.getInt();
+            byte type = buffer.get();
+            if (length < 0 || length > buffer.remaining())
+                break;
+            byte[] payload = new byte[length];
+            buffer.get(payload);
+            crc.reset();
+            crc.update(type);
+            crc.update(payload);
+            if ((int) crc.getValue() != checksum)
+                break;
+            recovered.apply(type, new DataInputStream(new ByteArrayInputStream(payload)));
+            recovered.records++;
+        }
+        return recovered;
+    }
+
+    private static byte[] variable(String name, Object value) {
+        return encode((out) -> {
+            out.writeUTF(name);
+            writeValue(out, value);
+        });
+    }
+
+    /**
+     * Writes a value with a tag for its type, so whole numbers are read back as whole numbers and the text
+     * blocks write them the same as before the restart
+     */
+    private static void writeValue(DataOutputStream out, Object value) throws IOException {
+        if (value instanceof Integer) {
+            out.writeByte(INTEGER);
+            out.writeInt((Integer) value);
+        } else if (value instanceof Long) {
+            out.writeByte(LONG);
+            out.writeLong((Long) value);
+        } else if (value instanceof Number) {
+            out.writeByte(DOUBLE);
+            out.writeDouble(((Number) value).doubleValue());
+        } else if (value instanceof Boolean) {
+            out.writeByte(BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        } else if (value instanceof List) {
+            // A program may be adding to the list, copying it first keeps the count and the items in step
+            Object[] items = ((List<?>) value).toArray();
+            out.writeByte(LIST);
+            out.writeInt(items.length);
+            for (Object item : items)
+                writeValue(out, item);
+        } else if (value != null) {
+            out.writeByte(TEXT);
+            writeString(out, value.toString());
+        } else {
+            out.writeByte(NULL);
+        }
+    }
+
+    private static Object readValue(DataInputStream in) throws IOException {
+        switch (in.readByte()) {
+            case INTEGER:
+                return in.readInt();
+            case LONG:
+                return in.readLong();
+            case DOUBLE:
+                return in.readDouble();
+            case BOOLEAN:
+                return in.readBoolean();
+            case LIST:
+                int count = in.readInt();
+                List<Object> list = new ArrayList<>();
+                for (int i = 0; i < count; i++)
+                    list.add(readValue(in));
+                return list;
+            case TEXT:
+                return readString(in);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Writes a string of any length, since writeUTF is limited to 64KB
+     */
+    private static void writeString(DataOutputStream out, String string) throws IOException {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] encode(Encoder encoder) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            encoder.encode(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private interface Encoder {
+        void encode(DataOutputStream out) throws IOException;
+    }
+
+    /**
+     * Gets a hash of the shape of a node tree, so a checkpoint is only used with the tree it was taken in
+     */
+    static int fingerprint(Node root) {
+        int hash = 1;
+        for (Node node : preorder(root)) {
+            hash = 31 * hash + node.getClass().getName().hashCode();
+            hash = 31 * hash + node.children().length;
+        }
+        return hash;
+    }
+
+    /**
+     * Lists the nodes of a tree parents first, the position of a node in the list is its id in the journal
+     */
+    static List<Node> preorder(Node root) {
+        List<Node> nodes = new ArrayList<>();
+        List<Node> stack = new ArrayList<>(List.of(root));
+        while (!stack.isEmpty()) {
+            Node node = stack.remove(stack.size() - 1);
+            nodes.add(node);
+            Node[] children = node.children();
+            for (int i = children.length - 1; i >= 0; i--)
+                stack.add(children[i]);
+        }
+        return nodes;
+    }
+
+    /**
+     * A compiled program tree that runs have been journaled in, with an id for every node
+     */
+    private final class Tree {
+        final int id;
+        final Program program;
+        final String json;
+        final int fingerprint;
+        final Map<Node, Integer> ids = new IdentityHashMap<>();
+        final Set<Integer> armed = new HashSet<>();
+
+        Tree(int id, Program program, Node root) {
+            this.id = id;
+            this.program = program;
+            json = program.toJSON().toString();
+            List<Node> nodes = preorder(root);
+            for (int i = 0; i < nodes.size(); i++)
+                ids.put(nodes.get(i), i);
+            fingerprint = fingerprint(root);
+        }
+
+        byte[] encode() {
+            return ProgramJournal.encode((out) -> {
+                out.writeInt(id);
+                out.writeInt(fingerprint);
+                writeString(out, json);
+            });
+        }
+
+        byte[] arm(int node) {
+            return ProgramJournal.encode((out) -> {
+                out.writeInt(id);
+                out.writeInt(node);
+            });
+        }
+
+        byte[] disarm() {
+            return ProgramJournal.encode((out) -> out.writeInt(id));
+        }
+    }
+
+    /**
+     * A journaled run of a program
+     */
+    final class Run {
+        private final int id;
+        private final Tree tree;
+        private final int root;
+        private byte[] checkpoint;
+
+        private Run(int id, Tree tree, int root) {
+            this.id = id;
+            this.tree = tree;
+            this.root = root;
+        }
+
+        /**
+         * Records where the run is up to and the variables changed since the last checkpoint
+         * @param stack The frames of the run, innermost first
+         * @param wake The time in epoch milliseconds the run should carry on, or 0 if it is not waiting
+         */
+        void checkpoint(Iterable<ProgramScheduler.Frame> stack, long wake) {
+            List<ProgramScheduler.Frame> frames = new ArrayList<>();
+            stack.forEach(frames::add);
+            byte[] payload = encode((out) -> {
+                out.writeInt(id);
+                out.writeLong(wake);
+                out.writeInt(frames.size());
+                for (int i = frames.size() - 1; i >= 0; i--) {
+                    ProgramScheduler.Frame frame = frames.get(i);
+                    out.writeInt(tree.ids.getOrDefault(frame.node, -1));
+                    out.writeInt(frame.index);
+                }
+            });
+            synchronized (ProgramJournal.this) {
+                for (Map.Entry<String, Object> e : Program.variables.drainChanged().entrySet())
+                    append(VARIABLE, variable(e.getKey(), e.getValue()));
+                checkpoint = payload;
+                append(CHECKPOINT, payload);
+            }
+        }
+
+        /**
+         * Records that the run ended, so it is not carried on after a restart
+         */
+        void end() {
+            synchronized (ProgramJournal.this) {
+                runs.remove(id);
+                append(END, encode((out) -> out.writeInt(id)));
+            }
+        }
+
+        private byte[] begin() {
+            return encode((out) -> {
+                out.writeInt(id);
+                out.writeInt(tree.id);
+                out.writeInt(root);
+            });
+        }
+    }
+
+    /**
+     * The state read back from a journal
+     */
+    static final class Recovered {
+        final Map<String, Object> variables = new LinkedHashMap<>();
+        final Map<Integer, SavedProgram> programs = new LinkedHashMap<>();
+        final Map<Integer, SavedRun> runs = new LinkedHashMap<>();
+        int records;
+
+        private void apply(byte type, DataInputStream in) throws IOException {
+            try {
+                switch (type) {
+                    case VARIABLE:
+                        variables.put(in.readUTF(), readValue(in));
+                        break;
+                    case PROGRAM:
+                        int id = in.readInt();
+                        int fingerprint = in.readInt();
+                        programs.put(id, new SavedProgram(readString(in), fingerprint));
+                        break;
+                    case ARM:
+                        SavedProgram armed = programs.get(in.readInt());
+                        if (armed != null)
+                            armed.armed.add(in.readInt());
+                        break;
+                    case DISARM:
+                        SavedProgram disarmed = programs.get(in.readInt());
+                        if (disarmed != null)
+                            disarmed.armed.clear();
+                        break;
+                    case BEGIN:
+                        int run = in.readInt();
+                        runs.put(run, new SavedRun(in.readInt(), in.readInt()));
+                        break;
+                    case CHECKPOINT:
+                        SavedRun saved = runs.get(in.readInt());
+                        if (saved == null)
+                            break;
+                        saved.wake = in.readLong();
+                        int count = in.readInt();
+                        saved.nodes = new int[count];
+                        saved.indexes = new int[count];
+                        for (int i = 0; i < count; i++) {
+                            saved.nodes[i] = in.readInt();
+                            saved.indexes[i] = in.readInt();
+                        }
+                        break;
+                    case END:
+                        runs.remove(in.readInt());
+                        break;
+                }
+            } catch (EOFException e) {
+                throw new IOException("Journal record is too short", e);
+            }
+        }
+    }
+
+    /**
+     * A program tree read back from a journal
+     */
+    static final class SavedProgram {
+        final String json;
+        final int fingerprint;
+        final Set<Integer> armed = new HashSet<>();
+
+        SavedProgram(String json, int fingerprint) {
+            this.json = json;
+            this.fingerprint = fingerprint;
+        }
+    }
+
+    /**
+     * A run read back from a journal, with the node and position of every frame outermost first
+     */
+    static final class SavedRun {
+        final int program;
+        final int root;
+        long wake;
+        int[] nodes = new int[0];
+        int[] indexes = new int[0];
+
+        SavedRun(int program, int root) {
+            this.program = program;
+            this.root = root;
+        }
+    }
+}
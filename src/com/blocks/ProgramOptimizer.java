@@ -0,0 +1,275 @@
+package com.blocks;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Optimizes a compiled node tree before it is run.<br>
+ *     Pure blocks whose inputs are all constant are run once and replaced with their output,
+ *     and conditions that are constant remove the branches that can never run.
+ *     Field blocks in a loop that only read variables the loop does not write, and lists if the loop does not
+ *     change lists, are only run again when what they read has changed, which other programs can still do
+ * @see BlockBase#isPure()
+ * @see Node.Invariant
+ */
+class ProgramOptimizer {
+    private int eliminated;
+    private int hoisted;
+
+    /**
+     * Optimizes the node tree, changing the nodes in place where possible
+     * @return The optimized node, which replaces the given node
+     */
+    Node optimize(Node node) {
+        Node[] children = node.children();
+        for (int i = 0; i < children.length; i++) {
+            Node child = optimize(children[i]);
+            if (child != children[i])
+                node.setChild(i, child);
+        }
+
+        if (isFoldable(node)) {
+            Node literal = fold(node);
+            if (literal != null) {
+                eliminated += count(node) - 1;
+                return literal;
+            }
+        }
+
+        if (node instanceof Node.If) {
+            Node.If ifNode = (Node.If) node;
+            if (ifNode.condition instanceof Node.Literal)
+                return eliminate(node, (boolean) ifNode.condition.invoke() ? ifNode.body : null);
+        } else if (node instanceof Node.IfElse) {
+            Node.IfElse ifElse = (Node.IfElse) node;
+            if (ifElse.condition instanceof Node.Literal)
+                return eliminate(node, (boolean) ifElse.condition.invoke() ? ifElse.body : ifElse.elseBody);
+        } else if (node instanceof Node.While) {
+            Node.While whileNode = (Node.While) node;
+            if (whileNode.condition instanceof Node.Literal && !(boolean) whileNode.condition.invoke())
+                return eliminate(node, null);
+            hoist(whileNode);
+        }
+        return node;
+    }
+
+    /**
+     * Gets the number of nodes removed by the optimizations so far
+     */
+    int getEliminated() {
+        return eliminated;
+    }
+
+    /**
+     * Gets the number of nodes that are only run once per run of the loop they are in
+     */
+    int getHoisted() {
+        return hoisted;
+    }
+
+    /**
+     * Wraps the largest parts of the loop's condition and body that give the same output for as long as what they
+     * read does not change, so they only run again once it has. They still first run where they did before, so a
+     * loop that never runs its body never runs them, and an error in one happens at the same place.<br>
+     *     Parts that read a variable the loop writes, or lists while the loop changes lists, would run again on
+     *     every iteration anyway, so they are left as they are.
+     *     Inner loops are optimized first, so an output kept for a run of an inner loop can also be kept for
+     *     a run of the outer loop
+     */
+    private void hoist(Node.While loop) {
+        Writes writes = new Writes();
+        writes.add(loop.condition);
+        writes.add(loop.body);
+        List<Node.Invariant> invariants = new ArrayList<>();
+        loop.condition = hoist(loop.condition, loop, writes, invariants);
+        loop.body = hoist(loop.body, loop, writes, invariants);
+        loop.invariants = invariants.toArray(new Node.Invariant[0]);
+        hoisted += invariants.size();
+    }
+
+    private static Node hoist(Node node, Node.While loop, Writes writes, List<Node.Invariant> invariants) {
+        // Bodies of for each and trigger blocks run on other threads, where the loop keeps no outputs
+        if (node instanceof Node.ForEach || node instanceof Node.Trigger)
+            return node;
+        if (!(node instanceof Node.Literal) && hasField(node) && isInvariant(node)) {
+            Set<Integer> slots = new TreeSet<>();
+            reads(node, slots);
+            // A variable can hold a list, and converting it to text reads what is in it
+            boolean readsLists = !slots.isEmpty() || readsLists(node);
+            if (!writes.changes(slots, readsLists)) {
+                Node.Invariant invariant = new Node.Invariant(node, loop, invariants.size(),
+                        slots.stream().mapToInt(Integer::intValue).toArray(), readsLists);
+                invariants.add(invariant);
+                return invariant;
+            }
+        }
+        Node[] children = node.children();
+        for (int i = 0; i < children.length; i++) {
+            Node child = hoist(children[i], loop, writes, invariants);
+            if (child != children[i])
+                node.setChild(i, child);
+        }
+        return node;
+    }
+
+    /**
+     * Returns true if the node gives the same output for as long as the variables and lists it reads do not
+     * change. That is literals, variables read by their slot and field blocks that at most read lists, whose
+     * inputs are all invariant too
+     */
+    private static boolean isInvariant(Node node) {
+        if (node instanceof Node.Literal)
+            return true;
+        if (node instanceof Node.Variable)
+            return ((Node.Variable) node).slot != -1;
+        if (node instanceof Node.Invariant)
+            return isInvariant(((Node.Invariant) node).expression);
+        if (node instanceof Node.Convert)
+            return isInvariant(((Node.Convert) node).input);
+        if (node.block == null || node.block.getBase().getType() != BlockBase.BlockType.FIELD)
+            return false;
+        for (BlockBase.Effect effect : node.block.getBase().getEffects()) {
+            if (effect != BlockBase.Effect.READS_LISTS)
+                return false;
+        }
+        for (Node child : node.children()) {
+            if (!isInvariant(child))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Adds the slots of the variables a node reads
+     */
+    private static void reads(Node node, Set<Integer> slots) {
+        if (node instanceof Node.Variable)
+            slots.add(((Node.Variable) node).slot);
+        for (Node child : node.children())
+            reads(child, slots);
+    }
+
+    private static boolean readsLists(Node node) {
+        if (effects(node).contains(BlockBase.Effect.READS_LISTS))
+            return true;
+        for (Node child : node.children()) {
+            if (readsLists(child))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Gets the effects of the block a node runs the code of. Control blocks have every effect, since their bodies
+     * can do anything, so they are left out and their bodies are looked at instead
+     */
+    private static Set<BlockBase.Effect> effects(Node node) {
+        if (node.block == null || node.block.getBase().getType() != BlockBase.BlockType.NORMAL
+                && node.block.getBase().getType() != BlockBase.BlockType.FIELD)
+            return Set.of();
+        return node.block.getBase().getEffects();
+    }
+
+    /**
+     * What the condition and body of a loop write themselves
+     */
+    private static final class Writes {
+        final Set<Integer> slots = new HashSet<>();
+        /**
+         * True if the loop writes variables chosen by name while it runs
+         */
+        boolean byName;
+        boolean lists;
+
+        void add(Node node) {
+            // Trigger bodies run on their own, any change they make is caught when the kept output is checked
+            if (node instanceof Node.Trigger)
+                return;
+            if (node instanceof Node.SetVariable)
+                slots.add(((Node.SetVariable) node).slot);
+            else if (node instanceof Node.ChangeVariable)
+                slots.add(((Node.ChangeVariable) node).slot);
+            else if (effects(node).contains(BlockBase.Effect.WRITES_VARIABLES))
+                byName = true;
+            if (node instanceof Node.Collect || effects(node).contains(BlockBase.Effect.WRITES_LISTS))
+                lists = true;
+            for (Node child : node.children())
+                add(child);
+        }
+
+        /**
+         * Returns true if the loop writes one of the variables or, if lists is true, changes lists
+         */
+        boolean changes(Set<Integer> read, boolean readsLists) {
+            if (readsLists && lists || !read.isEmpty() && byName)
+                return true;
+            for (int slot : read) {
+                if (slots.contains(slot))
+                    return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Returns true if the node runs the code of a field block, which is worth keeping the output of.
+     * Plain arithmetic is cheaper to run again than to look up
+     */
+    private static boolean hasField(Node node) {
+        if (node instanceof Node.Field)
+            return true;
+        for (Node child : node.children()) {
+            if (hasField(child))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns true if the node always gives the same output when its inputs are constant
+     */
+    private static boolean isFoldable(Node node) {
+        if (node instanceof Node.Convert)
+            return node.children()[0] instanceof Node.Literal;
+        if (node.block == null || !node.block.getBase().isFieldBlock() || !node.block.getBase().isPure())
+            return false;
+        for (Node child : node.children()) {
+            if (!(child instanceof Node.Literal))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Runs the node ahead of time
+     * @return A literal holding the output, or null if the node failed
+     */
+    private static Node fold(Node node) {
+        try {
+            Node literal = new Node.Literal(node.invoke());
+            literal.block = node.block;
+            return literal;
+        } catch (RuntimeException e) {
+            // Leave the error to happen when the program runs
+            return null;
+        }
+    }
+
+    /**
+     * Replaces a control node with the only body that can run, or nothing
+     */
+    private Node eliminate(Node node, Node kept) {
+        eliminated += count(node) - (kept == null ? 0 : count(kept));
+        return kept != null ? kept : new Node.Sequence(new Node[0]);
+    }
+
+    private static int count(Node node) {
+        int count = 1;
+        for (Node child : node.children())
+            count += count(child);
+        return count;
+    }
+}
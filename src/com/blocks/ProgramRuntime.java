@@ -0,0 +1,504 @@
+package com.blocks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs every program of the app and keeps track of which programs are running.<br>
+ *     Programs run on virtual threads, but only {@link #WORKERS} of them may be running blocks at once, the rest
+ *     are queued until a worker is free. A program that is waiting gives its worker up, so many programs can wait
+ *     at once for the memory of a small heap-allocated stack each. A program that keeps running blocks gives its
+ *     worker up too every {@link ProgramScheduler#SLICE} steps while others are queued, so it can not starve them.
+ *     Programs can instead be run in slices on a fixed pool of threads, see {@link #CARRIERS}. They always are when
+ *     checkpoints are turned on, see {@link ProgramJournal}
+ */
+public class ProgramRuntime {
+    /**
+     * The number of programs that may run blocks at once, set with the automailer.runtime.workers system property.
+     * Defaults to the number of processors
+     */
+    static final int WORKERS = Integer.getInteger("automailer.runtime.workers",
+            Runtime.getRuntime().availableProcessors());
+    /**
+     * The number of runs of the same program that may be going at once, set with the automailer.runtime.limit
+     * system property. A trigger that fires while its program is at the limit is skipped
+     */
+    static final int LIMIT = Math.max(1, Integer.getInteger("automailer.runtime.limit", 1));
+    /**
+     * The run of the program the current thread is running, if it runs on its own virtual thread
+     */
+    private static final ThreadLocal<Run> CURRENT = new ThreadLocal<>();
+
+    /**
+     * The number of carrier threads to run programs in slices on, set with the automailer.scheduler.carriers
+     * system property. Programs run on their own virtual threads when it is 0
+     * @see ProgramScheduler
+     */
+    static final int CARRIERS = Integer.getInteger("automailer.scheduler.carriers", 0);
+
+    private final ExecutorService executor = Executors.newThreadPerTaskExecutor(
+            Thread.ofVirtual().name("program-", 0).factory());
+    private final Map<Program, Set<Run>> runs = new ConcurrentHashMap<>();
+    private final Semaphore workers = new Semaphore(WORKERS, true);
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final LongAdder failed = new LongAdder();
+    private volatile List<Program> programs = List.of();
+    private final ProgramScheduler scheduler = CARRIERS > 0 || ProgramJournal.ENABLED
+            ? new ProgramScheduler(CARRIERS > 0 ? CARRIERS : Runtime.getRuntime().availableProcessors()) : null;
+    private volatile ProgramJournal journal;
+    private volatile long recoveryTime = -1;
+
+    /**
+     * The state of a program in the runtime
+     */
+    public enum State {
+        /**
+         * The program is not running
+         */
+        IDLE,
+        /**
+         * The program has been started but is queued for a worker
+         */
+        STARTING,
+        RUNNING
+    }
+
+    /**
+     * A snapshot of the runs in the runtime
+     * @param running The number of runs that have a worker or are waiting
+     * @param queued The number of runs queued for a worker
+     * @param failed The number of runs that have ended with an error since the app started
+     */
+    public record Counts(int running, int queued, long failed) {
+    }
+
+    /**
+     * Takes charge of the programs of the app, replacing any it had before. Programs that are running keep running,
+     * unless they are not in the new list, then they are removed
+     * @see #remove(Program)
+     */
+    public void manage(List<Program> programs) {
+        List<Program> old = this.programs;
+        this.programs = programs;
+        for (Program program : old) {
+            if (!programs.contains(program))
+                remove(program);
+        }
+    }
+
+    /**
+     * Stops a program that has been deleted and forgets the statistics kept about it
+     */
+    public void remove(Program program) {
+        program.stop();
+        if (scheduler != null)
+            scheduler.remove(program);
+    }
+
+    /**
+     * Gets the programs the runtime is in charge of
+     */
+    public List<Program> getPrograms() {
+        return programs;
+    }
+
+    /**
+     * Starts running a program, unless it is already running as many times as {@link #LIMIT} allows
+     * @return True if the program was started
+     */
+    boolean start(Program program) {
+        return start(program, scheduler != null ? program.getInterpreted() : program.getCompiled());
+    }
+
+    /**
+     * Starts running a node of a program, such as the body of a trigger, unless the program is already running
+     * as many times as {@link #LIMIT} allows
+     * @return True if the node was started
+     */
+    boolean start(Program program, Node node) {
+        Run run = new Run();
+        if (!add(program, run))
+            return false;
+        if (scheduler != null) {
+            scheduler.submit(program, node, run, () -> finish(program, run));
+            return true;
+        }
+        queued.incrementAndGet();
+        executor.execute(() -> {
+            run.thread = Thread.currentThread();
+            CURRENT.set(run);
+            try {
+                // Stopped before it was scheduled
+                if (run.cancelled) {
+                    queued.decrementAndGet();
+                } else {
+                    acquire(run);
+                    run.started = System.nanoTime();
+                    node.invoke();
+                }
+            } catch (ProgramCancelledException | InterruptedException ignored) {
+            } catch (RuntimeException e) {
+                run.failure = e;
+            } finally {
+                release(run);
+                finish(program, run);
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Adds a run to its program, unless the program is already at its limit
+     */
+    private boolean add(Program program, Run run) {
+        boolean[] added = new boolean[1];
+        runs.compute(program, (p, set) -> {
+            if (set == null)
+                set = ConcurrentHashMap.newKeySet();
+            if (set.size() < LIMIT)
+                added[0] = set.add(run);
+            return set;
+        });
+        if (added[0])
+            active.incrementAndGet();
+        return added[0];
+    }
+
+    private void finish(Program program, Run run) {
+        if (run.cancelled)
+            program.stopLatency = System.nanoTime() - run.stopped;
+        if (run.failure != null) {
+            failed.increment();
+            run.failure.printStackTrace();
+        }
+        runs.computeIfPresent(program, (p, set) -> set.remove(run) && set.isEmpty() ? null : set);
+        active.decrementAndGet();
+    }
+
+    /**
+     * Waits for a worker to be free for a run that has been counted as queued
+     */
+    private void acquire(Run run) throws InterruptedException {
+        try {
+            workers.acquire();
+            run.worker = true;
+        } finally {
+            queued.decrementAndGet();
+        }
+    }
+
+    private void release(Run run) {
+        if (run.worker) {
+            run.worker = false;
+            workers.release();
+        }
+    }
+
+    /**
+     * Gives the worker of the current program up to the programs queued for one, once the program has taken
+     * {@link ProgramScheduler#SLICE} steps while they were queued. Called between statements and on every loop
+     * iteration, like {@link Node#checkCancelled()}
+     */
+    void yieldWorker() {
+        if (queued.get() == 0)
+            return;
+        Run run = CURRENT.get();
+        if (run == null || !run.worker || ++run.steps < ProgramScheduler.SLICE)
+            return;
+        run.steps = 0;
+        // The semaphore is fair, so the worker goes to the program that has been queued longest
+        release(run);
+        queued.incrementAndGet();
+        try {
+            acquire(run);
+        } catch (InterruptedException e) {
+            throw new ProgramCancelledException();
+        }
+    }
+
+    /**
+     * Waits for a number of milliseconds, giving the worker of the current program up to another program until
+     * the wait is over
+     * @throws InterruptedException If the program was stopped while waiting
+     */
+    void sleep(long millis) throws InterruptedException {
+        Run run = CURRENT.get();
+        if (run == null || !run.worker) {
+            Program.timer.sleep(millis);
+            return;
+        }
+        release(run);
+        try {
+            Program.timer.sleep(millis);
+        } finally {
+            // A stopped program ends straight away instead of queueing for a worker again
+            if (!run.cancelled) {
+                queued.incrementAndGet();
+                acquire(run);
+            }
+        }
+    }
+
+    /**
+     * Waits for work done outside the program to finish, giving the worker of the current program up like
+     * {@link #sleep(long)}
+     * @throws InterruptedException If the program was stopped while waiting
+     */
+    <T> T await(Future<T> future) throws InterruptedException, ExecutionException {
+        Run run = CURRENT.get();
+        if (run == null || !run.worker)
+            return future.get();
+        release(run);
+        try {
+            return future.get();
+        } finally {
+            if (!run.cancelled) {
+                queued.incrementAndGet();
+                acquire(run);
+            }
+        }
+    }
+
+    /**
+     * Stops every run of a program by interrupting its thread. The program ends at the next block boundary or
+     * loop iteration, or immediately if it is waiting or queued, so it never ends in the middle of changing a variable
+     * @return True if the program was running
+     */
+    public boolean stop(Program program) {
+        Set<Run> set = runs.get(program);
+        if (set == null)
+            return false;
+        for (Run run : set) {
+            run.stopped = System.nanoTime();
+            run.cancelled = true;
+            // Either the thread is seen here, or the thread sees the cancelled flag before running
+            Thread thread = run.thread;
+            if (thread != null)
+                thread.interrupt();
+            ProgramScheduler.Task task = run.task;
+            if (task != null)
+                task.wake();
+        }
+        return true;
+    }
+
+    /**
+     * Opens the checkpoint journal and carries on every program that was running when the app last exited, from
+     * its last checkpoint. Variables are set to their last journaled values and triggers that were armed are armed
+     * again. A program is only carried on if its blocks have not changed since, otherwise it is left stopped.<br>
+     *     Does nothing unless checkpoints are turned on
+     * @return The number of programs that were carried on
+     * @see ProgramJournal
+     */
+    public int recover(File file, List<Program> programs) {
+        if (!ProgramJournal.ENABLED || journal != null)
+            return 0;
+        long begin = System.nanoTime();
+        int resumed = 0;
+        try {
+            ProgramJournal.Recovered recovered = ProgramJournal.read(file.toPath());
+            recovered.variables.forEach(Program.variables::put);
+            journal = new ProgramJournal(file.toPath());
+
+            Map<Integer, Program> matched = new HashMap<>();
+            Set<Program> used = new HashSet<>();
+            recovered.programs.forEach((id, saved) -> {
+                for (Program program : programs) {
+                    if (!used.contains(program) && !program.hasErrors()
+                            && program.toJSON().toString().equals(saved.json)
+                            && ProgramJournal.fingerprint(program.getInterpreted()) == saved.fingerprint) {
+                        used.add(program);
+                        matched.put(id, program);
+                        break;
+                    }
+                }
+            });
+
+            for (Map.Entry<Integer, ProgramJournal.SavedProgram> e : recovered.programs.entrySet()) {
+                Program program = matched.get(e.getKey());
+                if (program == null)
+                    continue;
+                List<Node> nodes = ProgramJournal.preorder(program.getInterpreted());
+                for (Node node : nodes) {
+                    // Arming again goes through the trigger node, so its schedule is worked out the same way
+                    if (node instanceof Node.Trigger
+                            && e.getValue().armed.contains(nodes.indexOf(((Node.Trigger) node).body)))
+                        node.invoke();
+                }
+            }
+
+            for (ProgramJournal.SavedRun saved : recovered.runs.values()) {
+                Program program = matched.get(saved.program);
+                if (program == null)
+                    continue;
+                List<Node> nodes = ProgramJournal.preorder(program.getInterpreted());
+                List<ProgramScheduler.Frame> frames = new ArrayList<>();
+                for (int i = 0; i < saved.nodes.length; i++) {
+                    if (saved.nodes[i] < 0 || saved.nodes[i] >= nodes.size())
+                        break;
+                    frames.add(new ProgramScheduler.Frame(nodes.get(saved.nodes[i]), saved.indexes[i]));
+                }
+                if (frames.size() != saved.nodes.length || saved.root >= nodes.size())
+                    continue;
+                Run run = new Run();
+                if (!add(program, run))
+                    continue;
+                scheduler.resume(program, nodes.get(saved.root), frames, saved.wake, run, () -> finish(program, run));
+                resumed++;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        recoveryTime = System.nanoTime() - begin;
+        return resumed;
+    }
+
+    /**
+     * Gets the checkpoint journal, or null if checkpoints are off or it has not been opened yet
+     */
+    public ProgramJournal getJournal() {
+        return journal;
+    }
+
+    /**
+     * Gets the time in nanoseconds it took to read the journal and carry on the programs in it,
+     * or -1 if nothing has been recovered
+     */
+    public long getRecoveryTime() {
+        return recoveryTime;
+    }
+
+    /**
+     * Starts every program in the collection that is not already running
+     */
+    public void startAll(Collection<Program> programs) {
+        programs.forEach(Program::run);
+    }
+
+    /**
+     * Starts every program the runtime is in charge of that is not already running
+     * @see #manage(List)
+     */
+    public void startAll() {
+        startAll(programs);
+    }
+
+    /**
+     * Stops every program the runtime is in charge of
+     */
+    public void stopAll() {
+        programs.forEach(Program::stop);
+    }
+
+    /**
+     * Gets the state of a program, which is running if any of its runs have got a worker
+     */
+    public State getState(Program program) {
+        Set<Run> set = runs.get(program);
+        if (set == null)
+            return State.IDLE;
+        return set.stream().anyMatch((r) -> r.started != 0) ? State.RUNNING : State.STARTING;
+    }
+
+    public boolean isRunning(Program program) {
+        return runs.containsKey(program);
+    }
+
+    /**
+     * Gets the number of runs of a program that are going at once
+     */
+    public int getRunCount(Program program) {
+        Set<Run> set = runs.get(program);
+        return set == null ? 0 : set.size();
+    }
+
+    /**
+     * Gets the thread running a program, or null if it is not running or is run by the scheduler.
+     * If the program is running more than once, the thread of any one of its runs is returned
+     */
+    public Thread getThread(Program program) {
+        Run run = getRun(program);
+        return run == null ? null : run.thread;
+    }
+
+    /**
+     * Gets the number of programs that are running or waiting to be scheduled
+     */
+    public int getRunningCount() {
+        return runs.size();
+    }
+
+    /**
+     * Gets the number of runs that are going, queued for a worker and that have failed
+     */
+    public Counts getCounts() {
+        int waiting = scheduler != null ? scheduler.getQueued() : queued.get();
+        return new Counts(Math.max(0, active.get() - waiting), waiting, failed.sum());
+    }
+
+    /**
+     * Gets the time in nanoseconds between a program being started and it first getting a worker,
+     * or -1 if the program is not running or has not been scheduled yet
+     */
+    public long getSchedulingLatency(Program program) {
+        Run run = getRun(program);
+        return run == null || run.started == 0 ? -1 : run.started - run.submitted;
+    }
+
+    private Run getRun(Program program) {
+        Set<Run> set = runs.get(program);
+        if (set == null)
+            return null;
+        Iterator<Run> iterator = set.iterator();
+        return iterator.hasNext() ? iterator.next() : null;
+    }
+
+    /**
+     * Gets the scheduler programs are run in, or null if they run on their own virtual threads
+     */
+    public ProgramScheduler getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * The state of a single run of a program
+     */
+    static final class Run {
+        final long submitted = System.nanoTime();
+        volatile long started;
+        volatile Thread thread;
+        volatile ProgramScheduler.Task task;
+        volatile long stopped;
+        volatile boolean cancelled;
+        /**
+         * The error the run ended with, or null if it has not failed
+         */
+        volatile RuntimeException failure;
+        /**
+         * True while the run holds a worker, only touched by the thread of the run
+         */
+        boolean worker;
+        /**
+         * The steps taken while other programs were queued since the run last gave its worker up,
+         * only touched by the thread of the run
+         */
+        int steps;
+    }
+}
@@ -0,0 +1,609 @@
+package com.blocks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs programs in slices on a small fixed pool of carrier threads, so a program stuck in a loop can not starve
+ * the others.<br>
+ *     Programs step through their node tree one statement at a time on a stack of frames kept by the task, so a
+ *     program never recurses deeper than a few nodes on the carrier's stack. Once a program has used its step
+ *     budget it yields at the next loop iteration and goes to the back of the queue. Programs that are waiting,
+ *     for a wait block, the work of an async block or the items of a for each block, leave the pool until their
+ *     wait is over and then carry on from their frames on whichever carrier is free, so no thread is ever dedicated
+ *     to a single program
+ * @see ProgramRuntime
+ */
+public class ProgramScheduler {
+    /**
+     * The number of steps a program may take before it yields at a loop, can be set with the
+     * automailer.scheduler.slice system property
+     */
+    static final int SLICE = Integer.getInteger("automailer.scheduler.slice", 1000);
+    /**
+     * The deepest a node's inputs may go for it to run straight through on the carrier's stack, deeper nodes are
+     * stepped through one input at a time
+     */
+    static final int DEPTH = 64;
+
+    private final ExecutorService carriers;
+    private final Map<Program, Stats> stats = new ConcurrentHashMap<>();
+
+    /**
+     * @param carriers The number of threads programs are run on
+     */
+    ProgramScheduler(int carriers) {
+        this.carriers = Executors.newFixedThreadPool(carriers,
+                Thread.ofPlatform().name("program-carrier-", 0).daemon().factory());
+    }
+
+    /**
+     * Queues a program to be run
+     * @param finish Called on the carrier thread once the program has ended, which reports the error in
+     *               {@link ProgramRuntime.Run#failure} if the program failed
+     */
+    void submit(Program program, Node node, ProgramRuntime.Run run, Runnable finish) {
+        Task task = new Task(node, run, finish, stats.computeIfAbsent(program, (p) -> new Stats()));
+        task.journal(program, node);
+        run.task = task;
+        task.enqueue();
+    }
+
+    /**
+     * Queues a program to carry on from a checkpoint read back from the journal
+     * @param frames The frames of the checkpoint, outermost first
+     * @param wake The time in epoch milliseconds the program was waiting for, or 0 if it was not waiting
+     * @see ProgramJournal
+     */
+    void resume(Program program, Node root, List<Frame> frames, long wake, ProgramRuntime.Run run, Runnable finish) {
+        Task task = new Task(root, run, finish, stats.computeIfAbsent(program, (p) -> new Stats()));
+        if (!frames.isEmpty()) {
+            task.stack.clear();
+            frames.forEach(task.stack::push);
+        }
+        task.journal(program, root);
+        run.task = task;
+        long delay = wake - System.currentTimeMillis();
+        if (wake != 0 && delay > 0) {
+            synchronized (task) {
+                task.wake = Program.timer.schedule(task::resume, delay);
+            }
+        } else {
+            task.enqueue();
+        }
+    }
+
+    /**
+     * Gets the number of programs queued for a carrier thread
+     */
+    int getQueued() {
+        return ((ThreadPoolExecutor) carriers).getQueue().size();
+    }
+
+    /**
+     * Gets the slice statistics of a program, added up over all of its runs
+     */
+    public Stats getStats(Program program) {
+        return stats.getOrDefault(program, new Stats());
+    }
+
+    /**
+     * Forgets the statistics of a program that has been deleted
+     */
+    void remove(Program program) {
+        stats.remove(program);
+    }
+
+    /**
+     * A running program, with the position it reached in its node tree
+     */
+    final class Task implements Runnable {
+        private final ProgramRuntime.Run run;
+        private final Runnable finish;
+        private final Stats stats;
+        private final FrameStack stack = new FrameStack();
+        /**
+         * The output of the node that finished last, read by the frame that pushed it
+         */
+        private Object result;
+        private long queued;
+        private TimingWheel.Timeout wake;
+        /**
+         * The work of the async or for each block the program is waiting for
+         */
+        private CompletableFuture<?> pending;
+        /**
+         * True if the block the program is waiting for affects something outside of the program
+         */
+        private boolean external;
+        private ProgramJournal.Run journal;
+
+        private Task(Node node, ProgramRuntime.Run run, Runnable finish, Stats stats) {
+            this.run = run;
+            this.finish = finish;
+            this.stats = stats;
+            stack.push(node);
+        }
+
+        private void journal(Program program, Node node) {
+            ProgramJournal programJournal = Program.runtime.getJournal();
+            if (programJournal != null)
+                journal = programJournal.begin(program, node);
+        }
+
+        private void checkpoint(long wake) {
+            if (journal != null)
+                journal.checkpoint(stack, wake);
+        }
+
+        private void enqueue() {
+            queued = System.nanoTime();
+            carriers.execute(this);
+        }
+
+        /**
+         * Ends a wait early so a stopped program ends straight away
+         */
+        synchronized void wake() {
+            if (wake != null && wake.cancel()) {
+                wake = null;
+                enqueue();
+            }
+            // Cancelling the work queues the program again
+            if (pending != null)
+                pending.cancel(true);
+        }
+
+        private void resume() {
+            synchronized (this) {
+                wake = null;
+            }
+            enqueue();
+        }
+
+        @Override
+        public void run() {
+            long now = System.nanoTime();
+            stats.addQueueWait(now - queued);
+            if (run.started == 0)
+                run.started = now;
+
+            int steps = 0;
+            // The outputs loops keep are bound to the carrier thread only while the program runs on it
+            stack.forEach(Frame::bind);
+            try {
+                CompletableFuture<?> future;
+                synchronized (this) {
+                    future = pending;
+                    pending = null;
+                }
+                if (future != null) {
+                    if (run.cancelled)
+                        throw new ProgramCancelledException();
+                    complete(BlockBase.await(future), external);
+                }
+                while (!stack.isEmpty()) {
+                    if (run.cancelled)
+                        throw new ProgramCancelledException();
+                    Frame frame = stack.peek();
+                    Node node = frame.node;
+
+                    if (node instanceof Node.While) {
+                        Node.While whileNode = (Node.While) node;
+                        if (!frame.waiting) {
+                            // Yield at the loop's back-edge once the budget is used up
+                            if (frame.index > 0 && steps >= SLICE) {
+                                stack.forEach(Frame::unbind);
+                                checkpoint(0);
+                                stats.endSlice(steps);
+                                enqueue();
+                                return;
+                            }
+                            if (frame.index == 0)
+                                frame.bind();
+                            if (frame.index++ > 0)
+                                whileNode.backEdges.count++;
+                        }
+                        if (test(frame, whileNode.condition)) {
+                            if ((boolean) result) {
+                                stack.push(whileNode.body);
+                            } else {
+                                frame.unbind();
+                                stack.pop();
+                            }
+                        }
+                    } else if (node instanceof Node.Sequence) {
+                        Node[] statements = ((Node.Sequence) node).statements;
+                        if (frame.index < statements.length)
+                            stack.push(statements[frame.index++]);
+                        else
+                            stack.pop();
+                    } else if (node instanceof Node.If) {
+                        Node.If ifNode = (Node.If) node;
+                        if (test(frame, ifNode.condition)) {
+                            stack.pop();
+                            if ((boolean) result)
+                                stack.push(ifNode.body);
+                        }
+                    } else if (node instanceof Node.IfElse) {
+                        Node.IfElse ifElse = (Node.IfElse) node;
+                        if (test(frame, ifElse.condition)) {
+                            stack.pop();
+                            stack.push((boolean) result ? ifElse.body : ifElse.elseBody);
+                        }
+                    } else if (frame.operands == null && height(node) > 0) {
+                        // Shallow nodes run straight through, the same as on a thread of their own
+                        stack.pop();
+                        node.invoke();
+                        // Sending mail or writing a file is not repeated after a restart
+                        if (isStatement() && (node instanceof Node.Trigger || isExternal(node)))
+                            checkpoint(0);
+                    } else if (step(frame)) {
+                        stack.pop();
+                        Object[] operands = frame.values;
+                        if (node.block != null && node.block.getBase() == BlockBase.WAIT) {
+                            long millis = (long) ((double) operands[0] * 1000);
+                            stats.endSlice(steps + 1);
+                            stack.forEach(Frame::unbind);
+                            checkpoint(System.currentTimeMillis() + millis);
+                            synchronized (this) {
+                                wake = Program.timer.schedule(this::resume, millis);
+                            }
+                            if (run.cancelled)
+                                wake();
+                            return;
+                        } else if (node instanceof Node.ForEach || getAsyncCode(node) != null) {
+                            // A for each block runs its items on the fork/join pool, the same as async work
+                            boolean forEach = node instanceof Node.ForEach;
+                            future = forEach ? ((Node.ForEach) node).start(operands)
+                                    : getAsyncCode(node).apply(operands).toCompletableFuture();
+                            if (future.isDone()) {
+                                complete(BlockBase.await(future), forEach || isExternal(node));
+                            } else {
+                                // The program leaves the carrier until the work is done
+                                stats.endSlice(steps + 1);
+                                stack.forEach(Frame::unbind);
+                                external = forEach || isExternal(node);
+                                synchronized (this) {
+                                    pending = future;
+                                }
+                                future.whenComplete((value, e) -> enqueue());
+                                if (run.cancelled)
+                                    wake();
+                                return;
+                            }
+                        } else if (node instanceof Node.Invariant) {
+                            complete(((Node.Invariant) node).save(frame.version, operands[0]), false);
+                        } else {
+                            complete(node.apply(operands), node instanceof Node.Trigger || isExternal(node));
+                        }
+                    }
+                    steps++;
+                }
+            } catch (ProgramCancelledException ignored) {
+            } catch (RuntimeException e) {
+                // Reported by the finish callback
+                run.failure = e;
+            }
+            stack.forEach(Frame::unbind);
+            stats.endSlice(steps);
+            if (journal != null)
+                journal.end();
+            finish.run();
+        }
+
+        /**
+         * Works out the condition of a control frame, either straight away or by stepping through it
+         * @return True if the output of the condition is in {@link #result}, false if it was pushed to be stepped
+         */
+        private boolean test(Frame frame, Node condition) {
+            if (frame.waiting) {
+                frame.waiting = false;
+                return true;
+            }
+            if (height(condition) > 0) {
+                result = condition.invokeBoolean();
+                return true;
+            }
+            frame.waiting = true;
+            stack.push(condition);
+            return false;
+        }
+
+        /**
+         * Works out the operands of a node that can not run straight through, one at a time, pushing the ones
+         * that have to be stepped themselves
+         * @return True once every operand's output is in the frame's values
+         */
+        private boolean step(Frame frame) {
+            if (frame.operands == null) {
+                // A loop that has already worked out an invariant node does not step through it again
+                if (frame.node instanceof Node.Invariant) {
+                    Object kept = ((Node.Invariant) frame.node).kept();
+                    if (kept != null) {
+                        stack.pop();
+                        result = kept;
+                        return false;
+                    }
+                    frame.version = ((Node.Invariant) frame.node).version();
+                }
+                frame.operands = frame.node.operands();
+                frame.values = new Object[frame.operands.length];
+            }
+            if (frame.waiting) {
+                frame.waiting = false;
+                frame.values[frame.index++] = result;
+            }
+            while (frame.index < frame.operands.length) {
+                Node operand = frame.operands[frame.index];
+                if (height(operand) <= 0) {
+                    frame.waiting = true;
+                    stack.push(operand);
+                    return false;
+                }
+                frame.values[frame.index++] = operand.invoke();
+            }
+            return true;
+        }
+
+        /**
+         * Keeps the output of a node that has finished for the frame that pushed it
+         * @param external True if the node affects something outside of the program
+         */
+        private void complete(Object value, boolean external) {
+            result = value;
+            // Sending mail or writing a file is not repeated after a restart
+            if (external && isStatement())
+                checkpoint(0);
+        }
+
+        /**
+         * Returns true if the node that finished last was a statement, rather than an input of the frame below it
+         */
+        private boolean isStatement() {
+            return stack.isEmpty() || !stack.peek().waiting;
+        }
+    }
+
+    private static boolean isExternal(Node node) {
+        if (node.block == null)
+            return false;
+        Set<BlockBase.Effect> effects = node.block.getBase().getEffects();
+        return effects.contains(BlockBase.Effect.EXTERNAL) || effects.contains(BlockBase.Effect.WRITES_FILES);
+    }
+
+    private static BlockBase.AsyncCode getAsyncCode(Node node) {
+        if (node.block == null || !(node instanceof Node.Normal || node instanceof Node.Field))
+            return null;
+        return node.block.getBase().getAsyncCode();
+    }
+
+    /**
+     * Gets how deep the operands of a node go if it can run straight through with {@link Node#invoke()}, or -1 if
+     * the scheduler has to step through it. Nodes that wait, run a for each block or go deeper than DEPTH are
+     * stepped, so they never hold the carrier or overflow its stack.<br>
+     *     The height is worked out once per node without recursion and kept in {@link Node#directHeight}
+     */
+    static int height(Node node) {
+        if (node.directHeight != 0)
+            return node.directHeight;
+        List<Node> pending = new ArrayList<>(List.of(node));
+        while (!pending.isEmpty()) {
+            Node next = pending.get(pending.size() - 1);
+            if (next.directHeight != 0) {
+                pending.remove(pending.size() - 1);
+                continue;
+            }
+            if (next instanceof Node.Sequence || next instanceof Node.If || next instanceof Node.IfElse
+                    || next instanceof Node.While || next instanceof Node.ForEach || getAsyncCode(next) != null
+                    || next.block != null && next.block.getBase() == BlockBase.WAIT) {
+                next.directHeight = -1;
+                continue;
+            }
+            int height = 1;
+            boolean ready = true;
+            for (Node operand : next.operands()) {
+                if (operand.directHeight == 0) {
+                    pending.add(operand);
+                    ready = false;
+                } else if (operand.directHeight < 0 || height < 0) {
+                    height = -1;
+                } else {
+                    height = Math.max(height, operand.directHeight + 1);
+                }
+            }
+            // Worked out again once the operands it has just pushed are done
+            if (ready)
+                next.directHeight = height > DEPTH ? -1 : height;
+        }
+        return node.directHeight;
+    }
+
+    /**
+     * The frames of a task, kept in an array that grows as needed.<br>
+     *     Frames above the top are kept to be reused, so stepping through a program does not allocate a frame for
+     *     every statement. Iterates from the innermost frame out
+     */
+    static final class FrameStack implements Iterable<Frame> {
+        private Frame[] frames = new Frame[16];
+        private int size;
+
+        void push(Node node) {
+            if (size == frames.length)
+                frames = Arrays.copyOf(frames, size * 2);
+            Frame frame = frames[size];
+            if (frame == null)
+                frames[size] = new Frame(node);
+            else
+                frame.reset(node, 0);
+            size++;
+        }
+
+        /**
+         * Pushes a copy of a frame read back from the journal
+         */
+        void push(Frame frame) {
+            push(frame.node);
+            frames[size - 1].index = frame.index;
+        }
+
+        Frame peek() {
+            return frames[size - 1];
+        }
+
+        void pop() {
+            size--;
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        void clear() {
+            size = 0;
+        }
+
+        @Override
+        public Iterator<Frame> iterator() {
+            return new Iterator<>() {
+                private int next = size - 1;
+
+                @Override
+                public boolean hasNext() {
+                    return next >= 0;
+                }
+
+                @Override
+                public Frame next() {
+                    if (next < 0)
+                        throw new NoSuchElementException();
+                    return frames[next--];
+                }
+            };
+        }
+    }
+
+    /**
+     * A node being run, and how far through it the program is
+     */
+    static final class Frame {
+        Node node;
+        int index;
+        /**
+         * True while the frame waits for the output of a node it pushed
+         */
+        private boolean waiting;
+        /**
+         * The nodes whose outputs a stepped node is given, or null before it starts working them out
+         */
+        private Node[] operands;
+        private Object[] values;
+        /**
+         * The outputs of the invariant nodes of a loop, kept for the run of the loop
+         * @see Node.While#invariants
+         */
+        private Object[] kept;
+        /**
+         * The version of what an invariant node reads, taken before stepping through it
+         * @see Node.Invariant#version()
+         */
+        private long version;
+
+        Frame(Node node) {
+            this.node = node;
+        }
+
+        Frame(Node node, int index) {
+            this.node = node;
+            this.index = index;
+        }
+
+        private void reset(Node node, int index) {
+            this.node = node;
+            this.index = index;
+            waiting = false;
+            operands = null;
+            values = null;
+            kept = null;
+        }
+
+        private void bind() {
+            if (node instanceof Node.While && ((Node.While) node).invariants.length > 0) {
+                // Frames read back from the journal run their invariant nodes again
+                if (kept == null)
+                    kept = new Object[((Node.While) node).invariants.length];
+                ((Node.While) node).values.set(kept);
+            }
+        }
+
+        private void unbind() {
+            if (node instanceof Node.While)
+                ((Node.While) node).values.remove();
+        }
+    }
+
+    /**
+     * Counts the steps and slices a program has run and the time it spent waiting for a carrier thread.<br>
+     *     The counts are added up over every run of the program, and runs can overlap, either when the runtime
+     *     allows more than one run at once or when triggers fire while the program runs, so each count is striped
+     *     by thread like the counts of the profiler
+     */
+    public static final class Stats {
+        private final LongAdder steps = new LongAdder();
+        private final LongAdder slices = new LongAdder();
+        private final LongAdder queueWait = new LongAdder();
+        private final LongAccumulator maxQueueWait = new LongAccumulator(Math::max, 0);
+
+        private void addQueueWait(long nanos) {
+            queueWait.add(nanos);
+            maxQueueWait.accumulate(nanos);
+        }
+
+        private void endSlice(long steps) {
+            this.steps.add(steps);
+            slices.increment();
+        }
+
+        public long getSteps() {
+            return steps.sum();
+        }
+
+        public long getSlices() {
+            return slices.sum();
+        }
+
+        /**
+         * Gets the total time in nanoseconds the program waited in the queue for a carrier thread
+         */
+        public long getQueueWait() {
+            return queueWait.sum();
+        }
+
+        /**
+         * Gets the longest time in nanoseconds the program waited in the queue for a carrier thread
+         */
+        public long getMaxQueueWait() {
+            return maxQueueWait.get();
+        }
+
+        /**
+         * Gets the average time in nanoseconds the program waited in the queue for each slice
+         */
+        public long getAverageQueueWait() {
+            long count = slices.sum();
+            return count == 0 ? 0 : queueWait.sum() / count;
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package com.blocks;
+
+import java.time.Duration;
+import java.time.LocalTime;
+import java.time.ZonedDateTime;
+
+/**
+ * Works out when a trigger block fires
+ * @see TriggerService
+ */
+@FunctionalInterface
+public interface Schedule {
+    /**
+     * Gets the next time after the given time that the trigger fires
+     */
+    ZonedDateTime next(ZonedDateTime after);
+
+    /**
+     * Fires every day at the given time
+     */
+    static Schedule daily(LocalTime time) {
+        return (after) -> {
+            ZonedDateTime next = after.with(time);
+            return next.isAfter(after) ? next : next.plusDays(1).with(time);
+        };
+    }
+
+    /**
+     * Fires repeatedly with the given time between each firing, starting one interval from now
+     */
+    static Schedule every(Duration interval) {
+        if (interval.isNegative() || interval.isZero())
+            throw new IllegalArgumentException("The interval must be more than 0");
+        return (after) -> after.plus(interval);
+    }
+}
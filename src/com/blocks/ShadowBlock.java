@@ -8,7 +8,7 @@ public class ShadowBlock extends Block {
         super(BlockBase.SHADOW);
         this.shadowedBlock = switch (shadowedBlock.getBase().getType()) {
             case NORMAL, FIELD -> new Block(shadowedBlock.getBase());
-            case IF, IF_ELSE, WHILE -> new ControlBlock(shadowedBlock.getBase());
+            case IF, IF_ELSE, WHILE, FOR_EACH, TRIGGER -> new ControlBlock(shadowedBlock.getBase());
             case VARIABLE -> new VariableBlock(((VariableBlock) shadowedBlock).getVariable());
             default -> null;
         };
@@ -0,0 +1,294 @@
+package com.blocks;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A hierarchical timing wheel that runs tasks after a delay, used for every program wakeup: trigger firings,
+ * waits in the scheduler and waits on virtual threads.<br>
+ *     Time advances in ticks. Each level of the wheel has a ring of buckets, a bucket of the lowest level holds
+ *     the timers due in one tick and a bucket of each level above covers a whole turn of the level below.
+ *     Timers are only ever added to or removed from a linked bucket, so scheduling and cancelling is O(1) no
+ *     matter how many timers are pending. When a level turns over, the next bucket of the level above is moved
+ *     down a level.<br>
+ *     Tasks run on the wheel's own thread and should only hand work off to another thread.
+ *     Timers fire up to one tick late, never early
+ */
+public class TimingWheel {
+    /**
+     * The length of a tick in milliseconds, can be set with the automailer.timer.tick system property
+     */
+    static final long TICK = Long.getLong("automailer.timer.tick", 10);
+
+    private static final int BITS = 9;
+    private static final int BUCKETS = 1 << BITS;
+    private static final int MASK = BUCKETS - 1;
+    /**
+     * With 512 buckets per level and 10ms ticks, 4 levels cover more than 20 years
+     */
+    private static final int LEVELS = 4;
+
+    private final long tickNanos;
+    private final long start = System.nanoTime();
+    private final Bucket[][] wheels = new Bucket[LEVELS][BUCKETS];
+    private final Queue<Timeout> added = new ConcurrentLinkedQueue<>();
+    private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final String name;
+    /**
+     * The thread that advances the wheel, started by the first timer so the constructor does not publish the
+     * wheel to it half built
+     */
+    private volatile Thread worker;
+    private long tick;
+
+    /**
+     * @param tickMillis The length of a tick, which is the most a timer can fire late by
+     */
+    public TimingWheel(long tickMillis, String name) {
+        if (tickMillis <= 0)
+            throw new IllegalArgumentException("The tick must be more than 0");
+        tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        for (Bucket[] wheel : wheels) {
+            for (int i = 0; i < BUCKETS; i++)
+                wheel[i] = new Bucket();
+        }
+        this.name = name;
+    }
+
+    /**
+     * Runs a task on the wheel's thread once the delay has passed
+     * @return The timer, which can be cancelled before it fires
+     */
+    public Timeout schedule(Runnable task, long delayMillis) {
+        Thread worker = worker();
+        long deadline = System.nanoTime() - start + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMillis));
+        // Round up, so timers never fire early
+        Timeout timeout = new Timeout(task, (deadline + tickNanos - 1) / tickNanos);
+        added.add(timeout);
+        if (pending.getAndIncrement() == 0)
+            LockSupport.unpark(worker);
+        return timeout;
+    }
+
+    /**
+     * Parks the current thread until the delay has passed. A virtual thread gives up its carrier while parked
+     * @throws InterruptedException If the thread is interrupted while waiting
+     */
+    public void sleep(long millis) throws InterruptedException {
+        Thread thread = Thread.currentThread();
+        Timeout timeout = schedule(() -> LockSupport.unpark(thread), millis);
+        try {
+            while (!timeout.isExpired()) {
+                if (Thread.interrupted())
+                    throw new InterruptedException();
+                LockSupport.park(this);
+            }
+        } finally {
+            timeout.cancel();
+        }
+    }
+
+    private Thread worker() {
+        Thread thread = worker;
+        if (thread == null) {
+            synchronized (this) {
+                thread = worker;
+                if (thread == null)
+                    worker = thread = Thread.ofPlatform().name(name).daemon().start(this::work);
+            }
+        }
+        return thread;
+    }
+
+    /**
+     * Gets the number of timers waiting to fire
+     */
+    public int getPending() {
+        return pending.get();
+    }
+
+    private void work() {
+        while (true) {
+            long now = (System.nanoTime() - start) / tickNanos;
+            if (pending.get() == 0 && added.isEmpty()) {
+                // Nothing to fire, so skip the idle ticks instead of waking up for each one
+                transfer();
+                tick = now;
+                LockSupport.park(this);
+                continue;
+            }
+            while (tick < now) {
+                tick++;
+                transfer();
+                advance();
+            }
+            transfer();
+            long next = start + (tick + 1) * tickNanos - System.nanoTime();
+            if (next > 0)
+                LockSupport.parkNanos(this, next);
+        }
+    }
+
+    /**
+     * Adds newly scheduled timers to the wheel and removes cancelled ones
+     */
+    private void transfer() {
+        Timeout timeout;
+        while ((timeout = cancelled.poll()) != null) {
+            if (timeout.bucket != null)
+                timeout.bucket.remove(timeout);
+        }
+        while ((timeout = added.poll()) != null) {
+            if (timeout.state == Timeout.PENDING)
+                place(timeout);
+        }
+    }
+
+    /**
+     * Moves the buckets of upper levels down as lower levels turn over, then fires the timers due this tick
+     */
+    private void advance() {
+        for (int level = LEVELS - 1; level > 0; level--) {
+            if ((tick & ((1L << (BITS * level)) - 1)) == 0) {
+                Bucket bucket = wheels[level][(int) (tick >>> (BITS * level)) & MASK];
+                Timeout timeout;
+                while ((timeout = bucket.poll()) != null)
+                    place(timeout);
+            }
+        }
+
+        Bucket bucket = wheels[0][(int) tick & MASK];
+        Timeout timeout;
+        while ((timeout = bucket.poll()) != null)
+            fire(timeout);
+    }
+
+    /**
+     * Puts a timer in the lowest level whose bucket covers its deadline, or fires it if it is already due
+     */
+    private void place(Timeout timeout) {
+        long deadline = timeout.deadline;
+        if (deadline <= tick) {
+            fire(timeout);
+            return;
+        }
+        for (int level = 0; level < LEVELS; level++) {
+            // The deadline is in this level once it shares every higher digit with the current tick
+            int shift = BITS * (level + 1);
+            if (level == LEVELS - 1 || (deadline >>> shift) == (tick >>> shift)) {
+                int index = level == LEVELS - 1 && (deadline >>> shift) != (tick >>> shift)
+                        // Too far away for the wheel, park it in the last bucket of this turn to be placed again
+                        ? (int) ((tick >>> (BITS * level)) - 1) & MASK
+                        : (int) (deadline >>> (BITS * level)) & MASK;
+                wheels[level][index].add(timeout);
+                return;
+            }
+        }
+    }
+
+    private void fire(Timeout timeout) {
+        if (!timeout.expire())
+            return;
+        pending.decrementAndGet();
+        try {
+            timeout.task.run();
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * A timer waiting in the wheel
+     */
+    public final class Timeout {
+        private static final int PENDING = 0, EXPIRED = 1, CANCELLED = 2;
+        private static final VarHandle STATE;
+
+        static {
+            try {
+                STATE = MethodHandles.lookup().findVarHandle(Timeout.class, "state", int.class);
+            } catch (ReflectiveOperationException e) {
+                throw new ExceptionInInitializerError(e);
+            }
+        }
+
+        private final Runnable task;
+        private final long deadline;
+        private volatile int state;
+        private Bucket bucket;
+        private Timeout previous, next;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Stops the timer from firing
+         * @return True if the timer had not fired or been cancelled yet
+         */
+        public boolean cancel() {
+            if (!STATE.compareAndSet(this, PENDING, CANCELLED))
+                return false;
+            pending.decrementAndGet();
+            cancelled.add(this);
+            return true;
+        }
+
+        public boolean isExpired() {
+            return state == EXPIRED;
+        }
+
+        public boolean isCancelled() {
+            return state == CANCELLED;
+        }
+
+        private boolean expire() {
+            return STATE.compareAndSet(this, PENDING, EXPIRED);
+        }
+    }
+
+    /**
+     * A doubly linked list of timers, only used by the wheel's thread
+     */
+    private static final class Bucket {
+        private Timeout head, tail;
+
+        void add(Timeout timeout) {
+            timeout.bucket = this;
+            timeout.previous = tail;
+            timeout.next = null;
+            if (tail == null)
+                head = timeout;
+            else
+                tail.next = timeout;
+            tail = timeout;
+        }
+
+        void remove(Timeout timeout) {
+            if (timeout.previous == null)
+                head = timeout.next;
+            else
+                timeout.previous.next = timeout.next;
+            if (timeout.next == null)
+                tail = timeout.previous;
+            else
+                timeout.next.previous = timeout.previous;
+            timeout.bucket = null;
+            timeout.previous = timeout.next = null;
+        }
+
+        Timeout poll() {
+            Timeout timeout = head;
+            if (timeout != null)
+                remove(timeout);
+            return timeout;
+        }
+    }
+}
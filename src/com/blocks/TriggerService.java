@@ -0,0 +1,103 @@
+package com.blocks;
+
+import java.time.ZonedDateTime;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Fires the trigger blocks of every program from the shared timing wheel.<br>
+ *     A program with triggers does nothing between firings, when a trigger fires its body is started in the
+ *     program runtime. A firing is skipped if the program is still running from before
+ * @see Schedule
+ */
+public class TriggerService {
+    private final Map<Program, List<Armed>> armed = new ConcurrentHashMap<>();
+
+    /**
+     * Starts waiting for a trigger of a program to fire
+     */
+    void arm(Program program, Schedule schedule, Node body) {
+        Armed trigger = new Armed(program, schedule, body);
+        armed.computeIfAbsent(program, (p) -> new CopyOnWriteArrayList<>()).add(trigger);
+        trigger.schedule(ZonedDateTime.now());
+        ProgramJournal journal = Program.runtime.getJournal();
+        if (journal != null)
+            journal.armed(program, body);
+    }
+
+    /**
+     * Stops every trigger of a program from firing again
+     */
+    public void disarm(Program program) {
+        List<Armed> triggers = armed.remove(program);
+        if (triggers != null) {
+            triggers.forEach(Armed::cancel);
+            ProgramJournal journal = Program.runtime.getJournal();
+            if (journal != null)
+                journal.disarmed(program);
+        }
+    }
+
+    /**
+     * Returns true if the program has triggers waiting to fire
+     */
+    public boolean isArmed(Program program) {
+        return armed.containsKey(program);
+    }
+
+    /**
+     * Gets the next time any trigger of a program fires, or null if it has none
+     */
+    public ZonedDateTime getNextFire(Program program) {
+        List<Armed> triggers = armed.get(program);
+        if (triggers == null)
+            return null;
+        return triggers.stream().map((t) -> t.next).min(ZonedDateTime::compareTo).orElse(null);
+    }
+
+    /**
+     * A trigger waiting for its next firing
+     */
+    private final class Armed {
+        final Program program;
+        final Schedule schedule;
+        final Node body;
+        volatile ZonedDateTime next;
+        private TimingWheel.Timeout timeout;
+        private boolean cancelled;
+
+        Armed(Program program, Schedule schedule, Node body) {
+            this.program = program;
+            this.schedule = schedule;
+            this.body = body;
+        }
+
+        /**
+         * Schedules the next firing after the given time
+         */
+        synchronized void schedule(ZonedDateTime after) {
+            if (cancelled)
+                return;
+            next = schedule.next(after);
+            long delay = Math.max(0, next.toInstant().toEpochMilli() - System.currentTimeMillis());
+            timeout = Program.timer.schedule(this::fire, delay);
+        }
+
+        private void fire() {
+            Program.runtime.start(program, body);
+            // The wheel fires a little late, so schedule from the planned time to keep firings from drifting.
+            // Only if whole firings were missed, such as while the computer slept, are they skipped up to now
+            ZonedDateTime planned = next;
+            ZonedDateTime now = ZonedDateTime.now();
+            schedule(schedule.next(planned).isAfter(now) ? planned : now);
+        }
+
+        synchronized void cancel() {
+            cancelled = true;
+            if (timeout != null)
+                timeout.cancel();
+        }
+    }
+}
@@ -0,0 +1,381 @@
+package com.blocks;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Stores the values of variables in slots, so compiled programs can access them by index instead of by name.<br>
+ *     Numbers are kept unboxed, reading and writing them as doubles does not allocate.<br>
+ *     The frame is shared by every running program and the GUI. Reads do not lock, writes lock one of a fixed
+ *     set of stripes chosen by the slot, so programs using different variables rarely wait on each other.
+ *     Slots are stored in chunks that never move, so creating a variable does not lose writes to existing ones
+ */
+public class VariableFrame {
+    /**
+     * Marks a slot whose value is stored in the numbers array
+     */
+    private static final Object NUMBER = new Object();
+    private static final int CHUNK = 16;
+    private static final int STRIPES = 16;
+    private static final VarHandle VALUES = MethodHandles.arrayElementVarHandle(Object[].class);
+    private static final VarHandle NUMBERS = MethodHandles.arrayElementVarHandle(double[].class);
+    private static final VarHandle VERSIONS = MethodHandles.arrayElementVarHandle(long[].class);
+    private static final VarHandle CHANGED;
+    private static final VarHandle LIST_CHANGES;
+
+    static {
+        try {
+            CHANGED = MethodHandles.lookup().findVarHandle(Chunk.class, "changed", int.class);
+            LIST_CHANGES = MethodHandles.lookup().findVarHandle(VariableFrame.class, "listChanges", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final Map<String, Integer> slots = new ConcurrentHashMap<>();
+    private final ReentrantLock[] stripes = new ReentrantLock[STRIPES];
+    private volatile Chunk[] chunks = {new Chunk()};
+    private volatile int size;
+    private volatile boolean tracking;
+    /**
+     * The number of times lists have been changed in place
+     */
+    private volatile long listChanges;
+    /**
+     * The lists changed in place since the changes were last drained
+     */
+    private final Set<List<?>> changedLists = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    public VariableFrame() {
+        for (int i = 0; i < STRIPES; i++)
+            stripes[i] = new ReentrantLock();
+    }
+
+    /**
+     * Gets the slot of a variable
+     * @return The slot, or -1 if the variable does not exist
+     */
+    public int slotOf(String name) {
+        Integer slot = slots.get(name);
+        return slot == null ? -1 : slot;
+    }
+
+    public boolean containsKey(String name) {
+        return slots.containsKey(name);
+    }
+
+    /**
+     * Sets a variable, creating it if it does not exist
+     */
+    public void put(String name, Object value) {
+        int slot = slotOf(name);
+        if (slot == -1)
+            slot = create(name);
+        set(slot, value);
+    }
+
+    /**
+     * Sets a variable only if it exists
+     * @return True if the variable exists
+     */
+    public boolean replace(String name, Object value) {
+        int slot = slotOf(name);
+        if (slot == -1)
+            return false;
+        set(slot, value);
+        return true;
+    }
+
+    /**
+     * Gets the value of a variable, or null if it does not exist
+     */
+    public Object get(String name) {
+        int slot = slotOf(name);
+        return slot == -1 ? null : get(slot);
+    }
+
+    public Object get(int slot) {
+        Chunk chunk = chunk(slot);
+        int index = slot % CHUNK;
+        Object value = VALUES.getAcquire(chunk.values, index);
+        return value == NUMBER ? (Object) (double) NUMBERS.getAcquire(chunk.numbers, index) : value;
+    }
+
+    /**
+     * Gets the value of a variable converted to a double
+     */
+    public double getDouble(int slot) {
+        Chunk chunk = chunk(slot);
+        int index = slot % CHUNK;
+        Object value = VALUES.getAcquire(chunk.values, index);
+        return value == NUMBER ? (double) NUMBERS.getAcquire(chunk.numbers, index)
+                : (double) Block.convert(BlockBase.InputType.DOUBLE, value);
+    }
+
+    public void set(int slot, Object value) {
+        ReentrantLock lock = lock(slot);
+        try {
+            store(slot, value);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void setDouble(int slot, double value) {
+        ReentrantLock lock = lock(slot);
+        try {
+            storeDouble(slot, value);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Atomically adds to a variable, treating its current value as a number
+     * @return The new value
+     */
+    public double add(int slot, double delta) {
+        ReentrantLock lock = lock(slot);
+        try {
+            double value = getDouble(slot) + delta;
+            storeDouble(slot, value);
+            return value;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Atomically sets a variable if it currently holds the expected value.<br>
+     *     Numbers are compared by value, so 1 and 1.0 are equal
+     * @return True if the variable was set
+     */
+    public boolean compareAndSet(int slot, Object expected, Object value) {
+        ReentrantLock lock = lock(slot);
+        try {
+            if (!matches(get(slot), expected))
+                return false;
+            store(slot, value);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Atomically sets a variable
+     * @return The value the variable held before
+     */
+    public Object getAndSet(int slot, Object value) {
+        ReentrantLock lock = lock(slot);
+        try {
+            Object old = get(slot);
+            store(slot, value);
+            return old;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the names of all variables, in the order they were created
+     */
+    public Set<String> keySet() {
+        return toMap().keySet();
+    }
+
+    /**
+     * Builds a map of the variables by name, used for saving and listing them.<br>
+     *     Every stripe is held while copying, so the map is a consistent snapshot that never shows
+     *     half of a group of atomic updates
+     */
+    public Map<String, Object> toMap() {
+        for (ReentrantLock stripe : stripes)
+            stripe.lock();
+        try {
+            Map<String, Object> map = new LinkedHashMap<>();
+            int count = size;
+            for (int i = 0; i < count; i++)
+                map.put(chunk(i).names[i % CHUNK], get(i));
+            return map;
+        } finally {
+            for (int i = STRIPES - 1; i >= 0; i--)
+                stripes[i].unlock();
+        }
+    }
+
+    /**
+     * Starts recording which variables are changed, so they can be collected with {@link #drainChanged()}
+     */
+    void trackChanges() {
+        tracking = true;
+    }
+
+    /**
+     * Records that a list was changed in place. The list blocks change lists without going through the frame,
+     * so they call this for the variables holding the list to count as changed
+     */
+    void changed(List<?> list) {
+        LIST_CHANGES.getAndAdd(this, 1L);
+        if (tracking) {
+            synchronized (changedLists) {
+                changedLists.add(list);
+            }
+        }
+    }
+
+    /**
+     * Adds up the number of times the variables in the slots have been written, and the number of times lists have
+     * been changed in place if lists is true. The sum stays the same only while none of them change, so an output
+     * worked out from them after reading the sum can be reused for as long as it does
+     * @see Node.Invariant
+     */
+    long version(int[] slots, boolean lists) {
+        long version = lists ? (long) LIST_CHANGES.getAcquire(this) : 0;
+        for (int slot : slots)
+            version += (long) VERSIONS.getAcquire(chunk(slot).versions, slot % CHUNK);
+        return version;
+    }
+
+    /**
+     * Gets the variables changed since the last call with their current values, and forgets the changes.<br>
+     *     Variables holding a list changed in place are included too, and so are the ones holding it inside
+     *     another list
+     */
+    Map<String, Object> drainChanged() {
+        Set<List<?>> lists = Collections.newSetFromMap(new IdentityHashMap<>());
+        synchronized (changedLists) {
+            lists.addAll(changedLists);
+            changedLists.clear();
+        }
+        Set<List<?>> found = Collections.newSetFromMap(new IdentityHashMap<>());
+        Map<String, Object> map = new LinkedHashMap<>();
+        Map<String, Object> unchanged = new LinkedHashMap<>();
+        int count = size;
+        for (int c = 0; c * CHUNK < count; c++) {
+            Chunk chunk = chunks[c];
+            int changed = (int) CHANGED.getAndSet(chunk, 0);
+            for (int index = 0; index < CHUNK && c * CHUNK + index < count; index++) {
+                Object value = get(c * CHUNK + index);
+                if ((changed & 1 << index) != 0 || lists.contains(value)) {
+                    map.put(chunk.names[index], value);
+                    if (value instanceof List)
+                        found.add((List<?>) value);
+                } else if (value instanceof List) {
+                    unchanged.put(chunk.names[index], value);
+                }
+            }
+        }
+        lists.removeAll(found);
+        if (!lists.isEmpty()) {
+            unchanged.forEach((name, value) -> {
+                if (holds((List<?>) value, lists))
+                    map.put(name, value);
+            });
+        }
+        return map;
+    }
+
+    /**
+     * Returns true if one of the lists is inside a list, at any depth
+     */
+    private static boolean holds(List<?> list, Set<List<?>> lists) {
+        for (Object item : list.toArray()) {
+            if (item instanceof List && (lists.contains(item) || holds((List<?>) item, lists)))
+                return true;
+        }
+        return false;
+    }
+
+    private static boolean matches(Object value, Object expected) {
+        if (value instanceof Number && expected instanceof Number)
+            return ((Number) value).doubleValue() == ((Number) expected).doubleValue();
+        return Objects.equals(value, expected);
+    }
+
+    private Chunk chunk(int slot) {
+        return chunks[slot / CHUNK];
+    }
+
+    private ReentrantLock lock(int slot) {
+        ReentrantLock lock = stripes[slot % STRIPES];
+        lock.lock();
+        return lock;
+    }
+
+    /**
+     * Stores a value, should only be called while holding the slot's stripe
+     */
+    private void store(int slot, Object value) {
+        if (value instanceof Double) {
+            storeDouble(slot, (Double) value);
+        } else {
+            VALUES.setRelease(chunk(slot).values, slot % CHUNK, value);
+            written(chunk(slot), slot % CHUNK);
+        }
+    }
+
+    private void storeDouble(int slot, double value) {
+        Chunk chunk = chunk(slot);
+        // The number is published before the marker, so readers that see the marker see the number
+        NUMBERS.setRelease(chunk.numbers, slot % CHUNK, value);
+        VALUES.setRelease(chunk.values, slot % CHUNK, NUMBER);
+        written(chunk, slot % CHUNK);
+    }
+
+    /**
+     * Counts a write to a slot after the value is stored, so a reader that sees the new count sees the new value
+     */
+    private void written(Chunk chunk, int index) {
+        VERSIONS.setRelease(chunk.versions, index, (long) VERSIONS.get(chunk.versions, index) + 1);
+        if (tracking)
+            CHANGED.getAndBitwiseOr(chunk, 1 << index);
+    }
+
+    /**
+     * Creates a variable, or gets its slot if another thread created it first
+     */
+    private synchronized int create(String name) {
+        Integer existing = slots.get(name);
+        if (existing != null)
+            return existing;
+        int slot = size;
+        if (slot / CHUNK == chunks.length) {
+            Chunk[] grown = new Chunk[chunks.length * 2];
+            System.arraycopy(chunks, 0, grown, 0, chunks.length);
+            for (int i = chunks.length; i < grown.length; i++)
+                grown[i] = new Chunk();
+            chunks = grown;
+        }
+        chunk(slot).names[slot % CHUNK] = name;
+        size = slot + 1;
+        slots.put(name, slot);
+        return slot;
+    }
+
+    /**
+     * A fixed block of slots, shared by every version of the chunk array so growing it never copies values
+     */
+    private static final class Chunk {
+        final String[] names = new String[CHUNK];
+        final Object[] values = new Object[CHUNK];
+        final double[] numbers = new double[CHUNK];
+        /**
+         * The number of times each slot has been written
+         */
+        final long[] versions = new long[CHUNK];
+        /**
+         * A bit for each slot changed since the changes were last drained
+         */
+        volatile int changed;
+    }
+}
@@ -0,0 +1,253 @@
+package com.blocks;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs the same programs through every way the app can run them and checks that the optimized ones end with the
+ * same variables as the block interpreter, which runs the blocks as they are
+ * @see ProgramOptimizer
+ */
+class ProgramTiersTest {
+    private static ProgramScheduler scheduler;
+
+    /**
+     * A way of running a program
+     */
+    enum Tier {
+        BLOCKS {
+            @Override
+            void run(Program program) {
+                program.getBlocks().forEach(Block::invoke);
+            }
+        },
+        UNOPTIMIZED {
+            @Override
+            void run(Program program) {
+                ProgramCompiler.compile(program, program.getBlocks(), new Node.Counter(), null).invoke();
+            }
+        },
+        OPTIMIZED {
+            @Override
+            void run(Program program) {
+                program.getInterpreted().invoke();
+            }
+        },
+        BYTECODE {
+            @Override
+            void run(Program program) {
+                Node node = BytecodeCompiler.compile(program.getInterpreted());
+                assertNotNull(node, "The program could not be compiled to bytecode");
+                node.invoke();
+            }
+        },
+        SCHEDULER {
+            @Override
+            void run(Program program) {
+                CountDownLatch finished = new CountDownLatch(1);
+                ProgramRuntime.Run run = new ProgramRuntime.Run();
+                scheduler.submit(program, program.getInterpreted(), run, finished::countDown);
+                try {
+                    assertTrue(finished.await(10, TimeUnit.SECONDS), "The program did not finish in the scheduler");
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+                if (run.failure != null)
+                    throw run.failure;
+            }
+        };
+
+        abstract void run(Program program);
+    }
+
+    @BeforeAll
+    static void loadPalette() {
+        BlockPalette.loadDefaultPalette();
+        scheduler = new ProgramScheduler(1);
+    }
+
+    static Stream<Arguments> programs() {
+        return Stream.of(
+                Arguments.of("counting", List.of(loop(lt(var("i"), 2500.0),
+                        set("x", block("0.4", block("0.0", block("0.2", var("x"), 3.0), var("i")), 1000.0)), inc("i")))),
+                Arguments.of("text read every iteration", List.of(loop(lt(var("i"), size(var("l"))),
+                        change("n", block("5.1", block("5.6", var("s")))), inc("i")))),
+                Arguments.of("list grows in the loop", List.of(loop(lt(size(var("l")), 10.0),
+                        block("6.5", "x", var("l")), inc("i")))),
+                Arguments.of("variable written in the loop", List.of(loop(lt(var("i"), 5.0),
+                        set("s", block("5.0", var("s"), "a")), change("n", block("5.1", var("s"))), inc("i")))),
+                Arguments.of("nested loops", List.of(loop(lt(var("j"), 3.0),
+                        set("i", 0.0),
+                        loop(lt(var("i"), 4.0), change("n", block("5.1", block("5.0", var("t"), "xyz"))), inc("i")),
+                        change("m", block("5.1", block("5.0", var("t"), "xyz"))), inc("j")))),
+                Arguments.of("loop that never runs", List.of(loop(block("0.5", var("i"), 100.0),
+                        set("n", block("6.3", 99, var("l")))))),
+                Arguments.of("error behind a condition", List.of(loop(lt(var("i"), 3.0),
+                        control(BlockBase.IF, block("0.5", var("i"), 5.0), set("n", block("5.4", "abc", 5, 9))),
+                        inc("i")))),
+                Arguments.of("error in the loop", List.of(loop(lt(var("i"), 3.0),
+                        inc("n"), set("m", block("6.3", 99, var("l"))), inc("i")))),
+                Arguments.of("sorting", List.of(loop(lt(var("i"), 20.0),
+                        block("6.5", block("0.4", block("0.2", var("i"), 7.0), 20.0), var("l")), inc("i")),
+                        block("6.9", var("l")),
+                        set("x", block("6.3", 10, var("l"))))),
+                Arguments.of("parallel for each", List.of(control(BlockBase.FOR_EACH, var("r"),
+                        set("x", block("0.0", var("x"), new Block(BlockBase.ITEM))),
+                        block("6.5", block("0.2", new Block(BlockBase.ITEM), 2.0), var("l")),
+                        block("6.7", 0, var("d")))))
+        );
+    }
+
+    @ParameterizedTest(name = "{0}")
+    @MethodSource("programs")
+    void optimizedRunsMatchTheBlocks(String name, List<Block> blocks) {
+        Program program = new Program(new ArrayList<>(blocks));
+        String expected = runIn(Tier.BLOCKS, program);
+        for (Tier tier : Tier.values())
+            assertEquals(expected, runIn(tier, program), tier + " gave different variables");
+    }
+
+    static Stream<Arguments> waits() {
+        return Stream.of(Tier.values()).flatMap((tier) -> Stream.of(
+                // Nothing is kept, the variable is read on every iteration
+                Arguments.of(tier, loop(block("0.11", block("0.8", var("flag"), 1.0)), inc("n")),
+                        set("flag", 1.0)),
+                // The length is kept until the other program writes the variable it is worked out from
+                Arguments.of(tier, loop(lt(block("5.1", block("5.6", var("s"))), 3.0), inc("n")),
+                        set("s", "abc")),
+                // The size is kept until the other program adds to the list
+                Arguments.of(tier, loop(lt(size(var("l")), 4.0), inc("n")),
+                        block("6.5", "d", var("l")))));
+    }
+
+    /**
+     * A loop waiting for another program to change a variable or list sees the change, even though nothing in the
+     * loop writes them and the loop may keep what it works out from them
+     */
+    @ParameterizedTest
+    @MethodSource("waits")
+    void loopsSeeChangesMadeByOtherPrograms(Tier tier, Block loop, Block write) throws InterruptedException {
+        reset();
+        Program waiting = new Program(new ArrayList<>(List.of(loop)));
+        Program writer = new Program(new ArrayList<>(List.of(write)));
+        Thread thread = Thread.ofPlatform().daemon().start(() -> tier.run(waiting));
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (Program.variables.getDouble(Program.variables.slotOf("n")) == 0 && System.nanoTime() < deadline)
+            Thread.sleep(1);
+        writer.getInterpreted().invoke();
+        thread.join(TimeUnit.SECONDS.toMillis(10));
+        assertTrue(!thread.isAlive(), "The loop did not see the change made by the other program");
+    }
+
+    @Test
+    void reportsItemBlocksOutsideForEachBlocks() {
+        reset();
+        Program outside = new Program(new ArrayList<>(List.of(set("x", new Block(BlockBase.ITEM)))));
+        assertTrue(outside.hasErrors(), "The item block outside a for each block was not reported");
+        Program inside = new Program(new ArrayList<>(List.of(control(BlockBase.FOR_EACH, var("r"),
+                set("x", new Block(BlockBase.ITEM))))));
+        assertTrue(!inside.hasErrors(), "The item block inside a for each block was reported");
+    }
+
+    @Test
+    void keepsOnlyWhatTheLoopDoesNotChange() {
+        reset();
+        Program reads = new Program(new ArrayList<>(List.of(loop(lt(var("i"), size(var("l"))),
+                change("n", block("5.1", block("5.6", var("s")))), inc("i")))));
+        assertEquals(2, reads.getHoistedNodes());
+        Program writes = new Program(new ArrayList<>(List.of(loop(lt(size(var("l")), 10.0),
+                set("s", block("5.0", var("s"), "a")), change("n", block("5.1", var("s"))),
+                block("6.5", "x", var("l"))))));
+        assertEquals(0, writes.getHoistedNodes());
+        // Substring out of range can not be folded ahead of time, but gives the same error on every iteration
+        Program constant = new Program(new ArrayList<>(List.of(loop(lt(var("i"), 3.0),
+                control(BlockBase.IF, block("0.5", var("i"), 5.0), set("n", block("5.1", block("5.4", "abc", 5, 9)))),
+                inc("i")))));
+        assertEquals(1, constant.getHoistedNodes());
+    }
+
+    /**
+     * Runs a program from the same starting variables
+     * @return The variables the program ended with, and the error it failed with
+     */
+    private static String runIn(Tier tier, Program program) {
+        reset();
+        String failure = "";
+        try {
+            tier.run(program);
+        } catch (RuntimeException e) {
+            failure = " failed with " + e.getClass().getSimpleName();
+        }
+        Map<String, Object> variables = new TreeMap<>(Program.variables.toMap());
+        return variables + failure;
+    }
+
+    private static void reset() {
+        for (String name : List.of("i", "j", "n", "m", "x", "flag"))
+            Program.variables.put(name, 0.0);
+        Program.variables.put("s", "ab");
+        Program.variables.put("t", "q");
+        Program.variables.put("l", new ArrayList<>(List.of("a", "b", "c")));
+        List<Object> items = new ArrayList<>();
+        for (int k = 1; k <= 200; k++)
+            items.add((double) k);
+        Program.variables.put("r", items);
+        Program.variables.put("d", new ArrayList<>(items));
+    }
+
+    private static Block block(String baseCode, Object... inputs) {
+        Block block = new Block(BlockBase.fromBaseCode(baseCode));
+        System.arraycopy(inputs, 0, block.getInputs(), 0, inputs.length);
+        return block;
+    }
+
+    private static ControlBlock control(BlockBase base, Object input, Block... body) {
+        ControlBlock block = new ControlBlock(base);
+        block.getInputs()[0] = input;
+        block.getHeldBlocks().get(0).addAll(List.of(body));
+        return block;
+    }
+
+    private static ControlBlock loop(Object condition, Block... body) {
+        return control(BlockBase.WHILE, condition, body);
+    }
+
+    private static Block var(String name) {
+        return new VariableBlock(name);
+    }
+
+    private static Block set(String name, Object value) {
+        return block("7.0", name, value);
+    }
+
+    private static Block change(String name, Object by) {
+        return block("7.2", name, by);
+    }
+
+    private static Block inc(String name) {
+        return change(name, 1.0);
+    }
+
+    private static Block lt(Object a, Object b) {
+        return block("0.6", a, b);
+    }
+
+    private static Block size(Object list) {
+        return block("6.1", list);
+    }
+}